@@ -0,0 +1,207 @@
+package com.eagles.sensors;
+
+import java.util.ArrayList;
+
+import org.usfirst.frc4579.instrumentation.ConfigFile;
+
+/***********************************************************************************
+ * GYRO TEMPERATURE MODEL
+ *
+ * How the bias of each gyro axis changes with the die temperature: a straight line,
+ * bias = intercept + slope * temperature, fitted by least squares to the samples taken
+ * while the robot is still (see MPU6050_I2C.setTemperatureCompensation()).  The MPU
+ * warms up over a match, and its gyro biases move with it.
+ *
+ * The fit is kept as running sums, so each sample is added in constant time and the
+ * fit can be continued from run to run: the sums are saved in
+ * MPU6050TemperatureModel.txt in the user home directory.  Once the sums hold more
+ * than maxWeight samples they are scaled down, so that old samples fade out.
+ *
+ * The slope is zero until the samples span at least minTempStdDev (standard
+ * deviation), and it is limited to maxSlope (about the worst case of the MPU6050's
+ * specification), so a model fitted at one temperature has no effect.
+ *
+ * Axes are xGyro, yGyro, zGyro.  Temperatures are degrees F and biases degrees/sec.
+ ***********************************************************************************/
+public class GyroTemperatureModel extends ConfigFile {
+
+	public static final String[] AXIS_NAMES = {"xGyro", "yGyro", "zGyro"};
+	public static final int      NUM_SUMS   = 5;   // Sums of each axis (see getSums()).
+
+	private static final int    NUM_AXES      = 3;
+	private static final double refTempF      = 100.0;     // Temperatures are summed from this, for precision.
+	private static final double minTempStdDev = 1.0;       // Degrees F spanned before there is a slope.
+	private static final double maxSlope      = 0.1;       // Degrees/sec per degree F.
+	private static final double maxWeight     = 450000.0;  // Samples kept (an hour of still samples at 125 Hz).
+
+	// Running sums of each axis, with t = temperature - refTempF and b = bias.
+	private final double[] sumW  = new double[NUM_AXES];   // Number of samples.
+	private final double[] sumT  = new double[NUM_AXES];
+	private final double[] sumB  = new double[NUM_AXES];
+	private final double[] sumTT = new double[NUM_AXES];
+	private final double[] sumTB = new double[NUM_AXES];
+
+	public GyroTemperatureModel () {
+		super("MPU6050TemperatureModel");
+	}
+
+	//*************************************************************************************
+	// Adds a still sample of gyro axis "axis" (0 to 2): its rate and the temperature.
+	//*************************************************************************************
+	public void add (int axis, double tempF, double rate) {
+
+		double t = tempF - refTempF;
+
+		if (sumW[axis] >= maxWeight) {
+
+			double k = 0.5;
+
+			sumW [axis] *= k;
+			sumT [axis] *= k;
+			sumB [axis] *= k;
+			sumTT[axis] *= k;
+			sumTB[axis] *= k;
+		}
+
+		sumW [axis] += 1.0;
+		sumT [axis] += t;
+		sumB [axis] += rate;
+		sumTT[axis] += t * t;
+		sumTB[axis] += t * rate;
+	}
+
+	//*************************************************************************************
+	// Change in the bias of "axis" per degree F (zero if the samples don't span enough
+	// temperatures).
+	//*************************************************************************************
+	public double slope (int axis) {
+
+		double w = sumW[axis];
+
+		if (w < 2.0) return 0.0;
+
+		double meanT = sumT[axis] / w;
+		double varT  = sumTT[axis] / w - meanT * meanT;
+
+		if (!(varT >= minTempStdDev * minTempStdDev)) return 0.0;
+
+		double covTB = sumTB[axis] / w - meanT * (sumB[axis] / w);
+
+		return Math.max(-maxSlope, Math.min(maxSlope, covTB / varT));
+	}
+
+	// The fitted bias of "axis" at "tempF" (NaN if there are no samples).
+	public double bias (int axis, double tempF) {
+
+		double w = sumW[axis];
+
+		if (w == 0.0) return Double.NaN;
+
+		return sumB[axis] / w + slope(axis) * (tempF - refTempF - sumT[axis] / w);
+	}
+
+	// Number of samples in the fit of "axis" (after fading).
+	public double numSamples (int axis) {
+		return sumW[axis];
+	}
+
+	// Copies the sums of "axis" into "sums": number of samples, then the sums of t, bias, t^2 and t*bias.
+	public void getSums (int axis, double[] sums) {
+		sums[0] = sumW [axis];
+		sums[1] = sumT [axis];
+		sums[2] = sumB [axis];
+		sums[3] = sumTT[axis];
+		sums[4] = sumTB[axis];
+	}
+
+	// Replaces the sums of "axis" with "sums" (as from getSums()), e.g. to replay a log from the model
+	// the robot loaded.
+	public void setSums (int axis, double[] sums) {
+		sumW [axis] = sums[0];
+		sumT [axis] = sums[1];
+		sumB [axis] = sums[2];
+		sumTT[axis] = sums[3];
+		sumTB[axis] = sums[4];
+	}
+
+	// Copies the sums of "other", e.g. to save them while "other" is being added to.
+	public void copyFrom (GyroTemperatureModel other) {
+
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			sumW [axis] = other.sumW [axis];
+			sumT [axis] = other.sumT [axis];
+			sumB [axis] = other.sumB [axis];
+			sumTT[axis] = other.sumTT[axis];
+			sumTB[axis] = other.sumTB[axis];
+		}
+	}
+
+	// Forgets all samples.
+	public void clear () {
+
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			sumW [axis] = 0.0;
+			sumT [axis] = 0.0;
+			sumB [axis] = 0.0;
+			sumTT[axis] = 0.0;
+			sumTB[axis] = 0.0;
+		}
+	}
+
+	@Override
+	public void readConfigFileParameters () {
+
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			sumW [axis] = readDouble(AXIS_NAMES[axis] + " samples");
+			sumT [axis] = readDouble(AXIS_NAMES[axis] + " sum t");
+			sumB [axis] = readDouble(AXIS_NAMES[axis] + " sum bias");
+			sumTT[axis] = readDouble(AXIS_NAMES[axis] + " sum t^2");
+			sumTB[axis] = readDouble(AXIS_NAMES[axis] + " sum t*bias");
+		}
+
+		closeFile();
+	}
+
+	// Reads the file.  Returns false, with no samples, if there is no file or it can't be read.
+	public boolean load () {
+
+		if (!exists()) return false;
+
+		try {
+			readConfigFileParameters();
+		}
+		catch (RuntimeException e) {
+			closeFile();
+			clear();
+			System.out.println("MPU6050 temperature model file could not be read: " + e.getMessage());
+			return false;
+		}
+
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			if (!(sumW[axis] >= 0.0) || Double.isNaN(sumT[axis] + sumB[axis] + sumTT[axis] + sumTB[axis])) {
+				System.out.println("MPU6050 temperature model file has an invalid " + AXIS_NAMES[axis] + " model.");
+				clear();
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// Writes the sums to the file.
+	public void save () {
+
+		ArrayList<String> params = new ArrayList<String>();
+
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			params.add(AXIS_NAMES[axis] + " samples : "    + sumW [axis]);
+			params.add(AXIS_NAMES[axis] + " sum t : "      + sumT [axis]);
+			params.add(AXIS_NAMES[axis] + " sum bias : "   + sumB [axis]);
+			params.add(AXIS_NAMES[axis] + " sum t^2 : "    + sumTT[axis]);
+			params.add(AXIS_NAMES[axis] + " sum t*bias : " + sumTB[axis]);
+		}
+
+		writeConfigFileParameters(params);
+	}
+
+}
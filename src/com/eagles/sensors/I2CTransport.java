@@ -0,0 +1,18 @@
+package com.eagles.sensors;
+
+/***********************************************************************************
+ * I2C TRANSPORT
+ * 
+ * Register access to a device on an I2C bus.  The methods match those of the WPILib
+ * I2C class (see WPILibI2C), so sensor code can be run against the real bus or a
+ * simulated device (see com.eagles.sensors.sim).
+ ***********************************************************************************/
+public interface I2CTransport {
+
+	// Reads "count" bytes into buffer, starting at "register".  Returns true if the transfer was aborted.
+	boolean read (int register, int count, byte[] buffer);
+	
+	// Writes "data" to "register".  Returns true if the transfer was aborted.
+	boolean write (int register, int data);
+	
+}
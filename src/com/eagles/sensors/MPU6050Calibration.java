@@ -0,0 +1,111 @@
+package com.eagles.sensors;
+
+import java.util.ArrayList;
+
+import org.usfirst.frc4579.instrumentation.ConfigFile;
+
+/***********************************************************************************
+ * MPU6050 CALIBRATION
+ *
+ * The calibration of the MPU6050 (the average and standard deviation of each axis
+ * while the robot is still, and the die temperature), saved in MPU6050Calibration.txt
+ * in the user home directory so that the next boot can use it at once instead of
+ * calibrating (see MPU6050_I2C.init()).
+ *
+ * Axes are in the order xAccel, yAccel, zAccel, xGyro, yGyro, zGyro, in g and
+ * degrees/sec.
+ ***********************************************************************************/
+public class MPU6050Calibration extends ConfigFile {
+
+	public static final String[] AXIS_NAMES = {"xAccel", "yAccel", "zAccel", "xGyro", "yGyro", "zGyro"};
+
+	public final double[] average      = new double[AXIS_NAMES.length];
+	public final double[] stdDeviation = new double[AXIS_NAMES.length];
+	public double         tempF        = 0.0;
+	public int            numSamples   = 0;    // Number of samples the values were computed from.
+
+	// The values read from the file, copied to the ones above by load() once they are checked.
+	private final double[] readAverage      = new double[AXIS_NAMES.length];
+	private final double[] readStdDeviation = new double[AXIS_NAMES.length];
+	private double         readTempF        = 0.0;
+	private int            readNumSamples   = 0;
+
+	public MPU6050Calibration () {
+		super("MPU6050Calibration");
+	}
+
+	// Copies the values of "other", e.g. to save them while "other" is being changed.
+	public void copyFrom (MPU6050Calibration other) {
+
+		tempF      = other.tempF;
+		numSamples = other.numSamples;
+
+		for (int i = 0; i < AXIS_NAMES.length; i++) {
+			average     [i] = other.average     [i];
+			stdDeviation[i] = other.stdDeviation[i];
+		}
+	}
+
+	@Override
+	public void readConfigFileParameters () {
+
+		readTempF      = readDouble("Temperature F");
+		readNumSamples = readInt   ("Samples");
+
+		for (int i = 0; i < AXIS_NAMES.length; i++) {
+			readAverage     [i] = readDouble(AXIS_NAMES[i] + " average");
+			readStdDeviation[i] = readDouble(AXIS_NAMES[i] + " std deviation");
+		}
+
+		closeFile();
+	}
+
+	// Reads the file.  Returns false, leaving the values unchanged, if there is no file or it can't be read.
+	public boolean load () {
+
+		if (!exists()) return false;
+
+		try {
+			readConfigFileParameters();
+		}
+		catch (RuntimeException e) {
+			closeFile();
+			System.out.println("MPU6050 calibration file could not be read: " + e.getMessage());
+			return false;
+		}
+
+		for (int i = 0; i < AXIS_NAMES.length; i++) {
+			if (Double.isNaN(readAverage[i]) || !(readStdDeviation[i] >= 0.0)) {
+				System.out.println("MPU6050 calibration file has an invalid " + AXIS_NAMES[i] + " calibration.");
+				return false;
+			}
+		}
+
+		tempF      = readTempF;
+		numSamples = readNumSamples;
+
+		for (int i = 0; i < AXIS_NAMES.length; i++) {
+			average     [i] = readAverage     [i];
+			stdDeviation[i] = readStdDeviation[i];
+		}
+
+		return true;
+	}
+
+	// Writes the values to the file.
+	public void save () {
+
+		ArrayList<String> params = new ArrayList<String>();
+
+		params.add("Temperature F : " + tempF);
+		params.add("Samples : "       + numSamples);
+
+		for (int i = 0; i < AXIS_NAMES.length; i++) {
+			params.add(AXIS_NAMES[i] + " average : "       + average[i]);
+			params.add(AXIS_NAMES[i] + " std deviation : " + stdDeviation[i]);
+		}
+
+		writeConfigFileParameters(params);
+	}
+
+}
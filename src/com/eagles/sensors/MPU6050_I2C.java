@@ -1,20 +1,46 @@
 package com.eagles.sensors;
 
+import org.usfirst.frc4579.filters.AttitudeEstimator;
 import org.usfirst.frc4579.filters.AverageFilter;
-import org.usfirst.frc4579.filters.FirstOrderLPF;
+import org.usfirst.frc4579.filters.HampelFilter;
+import org.usfirst.frc4579.filters.StationaryDetector;
 import org.usfirst.frc4579.instrumentation.DebugTextFile;
 import org.usfirst.frc4579.instrumentation.EventLogging;
+import org.usfirst.frc4579.instrumentation.FRCSmartDashboard;
+import org.usfirst.frc4579.instrumentation.Instrumentation;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import edu.wpi.first.wpilibj.I2C;
+import edu.wpi.first.wpilibj.Notifier;
 import edu.wpi.first.wpilibj.Timer;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 public class MPU6050_I2C {
 	
 	private static final byte   deviceAddress         = 0x68;
 	private static final int    numCalibrationSamples = 100;
+	private static final double calibrationTolerance  = 0.1;   // Degrees/sec a gyro bias may move without a new calibration,
+	                                                           // on top of 3 standard errors of the new measurement.
+	private static final int    sampleRateDivider     = 7;   // Sample rate = 1 kHz / (1 + divider), with the DLPF on.
+	private static final long   modelSavePeriod       = 60000000000L;  // Nanoseconds between saves of the temperature model.
+	private static final double modelMaxRate          = 1.0;   // Degrees/sec from the bias of a still sample fitted to the temperature model.
+	
+	// Time between samples produced by the MPU (seconds), and the rate of the sampling thread.
+	public  static final double SAMPLE_PERIOD         = (1 + sampleRateDivider) / 1000.0;
+	
+	// FIFO mode (see setFifoMode()).
+	public  static final double FIFO_READ_PERIOD      = 0.02;  // Time between FIFO reads (seconds).
+	private static final int    fifoSampleBytes       = 14;    // Accel, temp and gyro: the same layout as the data registers.
+	private static final int    fifoSize              = 1024;  // Bytes.
+	private static final int    fifoSamplesPerRead    = 8;     // Max samples read per I2C transaction.
+	private static final int    fifoEnableBits        = 0xF8;  // TEMP, XG, YG, ZG and ACCEL into the FIFO.
+	private static final int    userCtrlFifoEnable    = 0x40;
+	private static final int    userCtrlFifoReset     = 0x04;
 	
-	private I2C MPU = new I2C(I2C.Port.kOnboard, (int)deviceAddress);
+	// The I2C bus, or a simulated MPU (see com.eagles.sensors.sim).  Unless one is passed to the constructor
+	// it's created by init(), so that the data processing can be used off-robot without the bus (see SensorReplay).
+	private I2CTransport MPU;
 	
 	// Acceleration configuration data.
 	public  enum ACCELFULLSCALE { ACCEL2G  , ACCEL4G  , ACCEL8G   , ACCEL16G };
@@ -27,6 +53,23 @@ public class MPU6050_I2C {
 		accelScaleFactor    = accelScaleFactors        [accelFullScale.ordinal()]; // / GsToAccel;
 		gyroRegConfigValue  = gyroFullScaleRegSettings [gyroFullScale .ordinal()];
 		gyroScaleFactor     = gyroScaleFactors         [gyroFullScale .ordinal()];
+		
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			scaleFactor[axis] = (axis < FIRST_GYRO) ? accelScaleFactor : gyroScaleFactor;
+			biasStats  [axis] = new AverageFilter(numCalibrationSamples);
+			windowStats[axis] = new AverageFilter(numCalibrationSamples);
+			biasTemps  [axis] = new AverageFilter(numCalibrationSamples);
+		}
+		
+		axisDataFile.setDecimals(6);
+	}
+	
+	// Constructor for an MPU on another transport (e.g. a simulated MPU).
+	public MPU6050_I2C (ACCELFULLSCALE accelFullScale, GYROFULLSCALE gyroFullScale, I2CTransport transport)
+	{
+		this(accelFullScale, gyroFullScale);
+		
+		MPU = transport;
 	}
     
 	// Acceleration axes configuration data.
@@ -41,21 +84,120 @@ public class MPU6050_I2C {
 	private final int      gyroRegConfigValue;
 	private final double   gyroScaleFactor;
 
-	// Data maintained for each axis.
-	AxisData xAccelData = new AxisData("xAccel", 0.5, numCalibrationSamples, 0.0); // Name, LPF time constant, num cal samples, nominal axis value.
-	AxisData yAccelData = new AxisData("yAccel", 0.5, numCalibrationSamples, 0.0);
-	AxisData zAccelData = new AxisData("zAccel", 0.5, numCalibrationSamples, 1.0);
-	AxisData xGyroData  = new AxisData("xGyro" , 0.7, numCalibrationSamples, 0.0);
-	AxisData yGyroData  = new AxisData("yGyro" , 0.7, numCalibrationSamples, 0.0);
-	AxisData zGyroData  = new AxisData("zGyro" , 0.23, numCalibrationSamples, 0.0);
+	/***********************************************************************************
+	 * Data maintained for each axis, as a structure of arrays indexed by axis (see
+	 * decodeData() and processAxes()).  The axes are in the order of the data registers
+	 * (and MPU6050Calibration.AXIS_NAMES): X, Y and Z acceleration (g), then X, Y and Z
+	 * rate (degrees/sec).
+	 ***********************************************************************************/
+	private static final int      NUM_AXES       = 6;
+	private static final int      FIRST_GYRO     = 3;
+	private static final int      Z_GYRO         = 5;
+	private static final int[]    registerOffset = {0, 2, 4, 8, 10, 12};            // Offset of each axis in the data registers.
+	
+	private final double[]        scaleFactor    = new double[NUM_AXES];            // Raw value per g or degree/sec.
+	private final double[]        nominal        = {0.0, 0.0, 1.0, 0.0, 0.0, 0.0};  // Value when level and not moving.
+	private final double[]        lpfK           = {0.5, 0.5, 0.5, 0.7, 0.7, 0.23}; // Low pass filter constant (see FirstOrderLPF).
+	private final int[]           raw            = new int   [NUM_AXES];            // As returned by the MPU6050.
+	private final double[]        scaled         = new double[NUM_AXES];            // Raw value scaled to the proper units (logged as it is).
+	private final double[]        gated          = new double[NUM_AXES];            // Scaled value with spikes replaced (see setSpikeRejection()).
+	private final double[]        corrected      = new double[NUM_AXES];            // Gated value less the bias, plus the nominal value.
+	private final double[]        filtered       = new double[NUM_AXES];            // Corrected value, low pass filtered.
+	private final double[]        bias           = new double[NUM_AXES];            // Bias removed from the last sample.
+	private final double[]        biasStdDev     = new double[NUM_AXES];            // Its standard deviation.
+	private final AverageFilter[] biasStats      = new AverageFilter[NUM_AXES];     // Still samples: the bias and noise (corrects drift).
+	private final AverageFilter[] windowStats    = new AverageFilter[NUM_AXES];     // Samples of the background calibration.
+	private final AverageFilter[] biasTemps      = new AverageFilter[NUM_AXES];     // Temperatures of the still samples.
+	
+	// Processing of every sample (see logAxisData()).
+	private final DebugTextFile   axisDataFile   = new DebugTextFile("axisMPUData", true, axisDataColumns(), 30000);
+	private final double[]        axisDataRow    = new double[NUM_AXES * 5];
+	
+	// Every scaled sample, with everything else needed to replay it through the processing below (see 
+	// SensorReplay): the "not moving" indicator, whether it was a calibration sample, and heading resets.
+	DebugTextFile allAxisRawDataFile = new DebugTextFile("allAxisScaledMPUData", true, 
+			new String[] {"xAccelRaw", "yAccelRaw", "zAccelRaw", "xGyroRaw", "yGyroRaw", "zGyroRaw", "Temp", 
+						  "NotMoving", "Calibration", "Reset"}, 30000);
+	private final double[] allAxisRawDataRow = new double[10]; // Reused for each row written to allAxisRawDataFile.
 	
-	DebugTextFile allAxisRawDataFile = new DebugTextFile("allAxisScaledMPUData", true, "xAccelRaw\tyAccelRaw\tzAccelRaw\txGyroRaw\tyGyroRaw\tzGyroRaw\tTemp", 30000);
+	// The temperature model loaded by init(), and the one in use each time logging starts again (see
+	// setLogging()), one row per gyro axis (see GyroTemperatureModel.getSums()), so that a replay starts
+	// from the same model (see SensorReplay).
+	private final DebugTextFile temperatureModelFile = new DebugTextFile("mpuTemperatureModel", true, 
+			new String[] {"Axis", "Samples", "SumT", "SumBias", "SumT2", "SumTBias"}, 10);
+	private final double[] temperatureModelRow = new double[1 + GyroTemperatureModel.NUM_SUMS];
 
 	double   tempF      = 0.0; // Temperature degrees F.
 	
+	// Heading, integrated from the filtered Z rate.
+	private double  angleZ       = 0.0;  // Degrees.
+	private long    lastReadTime = 0;    // Time of the last read (nanoseconds).
+	private boolean firstRead    = true; // True => no read since the last heading reset.
+	
+	// Roll, pitch and yaw from all six axes, updated with every sample.
+	private final AttitudeEstimator attitude = new AttitudeEstimator(AttitudeEstimator.Algorithm.MADGWICK);
+	
 	private Timer readTimer   = new Timer();
+	private static final FRCSmartDashboard.FormattedNumber readTimeDisplay = new FRCSmartDashboard.FormattedNumber("MPU6050 Read Time:", 7, 4);
+	private static final FRCSmartDashboard.FormattedNumber initTimeDisplay = new FRCSmartDashboard.FormattedNumber("MPU6050 Init Time:", 7, 4);
+	
+	private volatile boolean mpuAvailable = false;
+	
+	// Sampling thread (see startSampling()).
+	private Notifier         sampler;
+	private volatile boolean samplingBegun    = false;         // True once sampling has started (see beginSampling()).
+	private volatile boolean notMoving        = false;         // Latest "not moving" indicator from the robot loop.
+	private volatile boolean resetRequested   = false;         // True => reset the heading at the next sample.
+	private long             lastSampleTime   = 0;             // Time of the last good sample (nanoseconds).
+	private final byte[]     sampleData       = new byte[15];  // Interrupt status followed by the 14 data registers.
+	private boolean          fifoMode         = false;         // True => the sampling thread reads the FIFO.
+	private final byte[]     fifoCount        = new byte[2];
+	private final byte[]     fifoData         = new byte[fifoSamplesPerRead * fifoSampleBytes];
+	private final long       samplePeriodNanos = (long)(SAMPLE_PERIOD * 1.0e9);
+	private HampelFilter[]   spikeFilters     = null;          // Spike rejection for each axis, null if off (see setSpikeRejection()).
+	private StationaryDetector stationaryDetector = null;      // Confirms "not moving" from the samples, null if off (see setStationaryDetection()).
+	private boolean          stationary       = false;         // The robot was still at the last sample (see processAxes()).
 	
-	private boolean mpuAvailable = false;
+	// Latest heading and axis data, published with a sequence lock (see publishSnapshot()).
+	private volatile long    snapshotSeq      = 0;             // Odd while the snapshot is being written.
+	private volatile long    snapshotTime     = 0;
+	private volatile double  snapshotAngleZ   = 0.0;
+	private volatile double  snapshotRateZ    = 0.0;
+	private volatile double  snapshotRateX    = 0.0;
+	private volatile double  snapshotRateY    = 0.0;
+	private volatile double  snapshotAccelX   = 0.0;
+	private volatile double  snapshotAccelY   = 0.0;
+	private volatile double  snapshotAccelZ   = 0.0;
+	private volatile double  snapshotRoll     = 0.0;
+	private volatile double  snapshotPitch    = 0.0;
+	private volatile double  snapshotYaw      = 0.0;
+	private volatile double  snapshotLinearX  = 0.0;
+	private volatile double  snapshotLinearY  = 0.0;
+	private volatile double  snapshotLinearZ  = 0.0;
+	private volatile boolean snapshotStationary = false;
+	private volatile long    snapshotSamples  = 0;
+	private long             sampleCount      = 0;             // Number of samples processed.
+	
+	// Logging (see setLogging()).
+	private volatile boolean loggingRequested = true;
+	private boolean          logging          = true;          // loggingRequested, as last seen by the thread processing the samples.
+	
+	// Calibration (see init() and setCalibrating()).
+	private boolean                  usePersistedCalibration = true;
+	private volatile boolean         calibrating      = false;   // True => still samples refine the calibration.
+	private volatile boolean         calibrated       = false;   // True once a calibration has been loaded or measured.
+	private final MPU6050Calibration calibration      = new MPU6050Calibration();  // The calibration in use.
+	private int                      windowCount      = 0;       // Still samples in a row, up to numCalibrationSamples.
+
+	// Gyro bias temperature compensation (see setTemperatureCompensation()).
+	private boolean                    temperatureCompensation = false;
+	private final GyroTemperatureModel temperatureModel = new GyroTemperatureModel();
+	private long                       lastModelSave    = 0;     // Time the model was last saved (nanoseconds).
+
+	// Saving thread (see startSaver()).  A copy waiting to be saved, null if none.
+	private final AtomicReference<MPU6050Calibration>   calibrationToSave = new AtomicReference<MPU6050Calibration>();
+	private final AtomicReference<GyroTemperatureModel> modelToSave       = new AtomicReference<GyroTemperatureModel>();
+	private Thread                                      saver;
 
 	//Define registers to be used
 	@SuppressWarnings("unused")
@@ -74,20 +216,26 @@ public class MPU6050_I2C {
 							 REGISTER_TEMP              = 0x41,
 							 REGISTER_GYRO              = 0x43,
 							 REGISTER_SIGNAL_PATH_RESET = 0x68, // bit 0 =  Temp, 1 = accel, 2 = gyro
+							 REGISTER_USER_CTRL         = 0x6A,
 							 REGISTER_PWRMGMT_1         = 0x6B, 
-							 REGISTER_PWRMGMT_2         = 0x6C;
+							 REGISTER_PWRMGMT_2         = 0x6C,
+							 REGISTER_FIFO_COUNT_H      = 0x72,
+							 REGISTER_FIFO_R_W          = 0x74;
 
 	// Initializes the MPU with pre-defined settings
 	public boolean init() {
 		
-		EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.START_MPU_INIT, "");
+		EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.START_MPU_INIT);
+		
+		// To determine how long init takes (readRawData() uses readTimer).
+		long initStart = Instrumentation.timeNowNanos();
 		
-		// Start the timer to determine how long init takes.
-		readTimer.reset();
-		readTimer.start();
+		logging = loggingRequested;
+		
+		if (MPU == null) MPU = new WPILibI2C(I2C.Port.kOnboard, (int)deviceAddress);
 		
 		// Set up the chip.
-		MPU.write(REGISTER_SAMPLE_RATE      , 7);  // Sample rate divider.
+		MPU.write(REGISTER_SAMPLE_RATE      , sampleRateDivider);  // Sample rate divider.
 		MPU.write(REGISTER_CONFIG           , 6);  // No external sync, DLPF mode 6.
 		MPU.write(REGISTER_GYRO_CONFIG , gyroRegConfigValue);
 		MPU.write(REGISTER_ACCEL_CONFIG, accelRegConfigValue);
@@ -95,38 +243,219 @@ public class MPU6050_I2C {
 		MPU.write(REGISTER_FIFO_ENABLE      , 0);  // Disable FIFO.
 		MPU.write(REGISTER_INTERRUPT_ENABLE , 1);  // Interrupt enable
 
-		// Compute calibration data for each axis.
+		startSaver();
 
-    	for(int i = 0; i < numCalibrationSamples; i++) {
-    		
-    		computeCalibrationData();
-    		if (!mpuAvailable) break;
+		// Check that the MPU responds.
+		if (readRawData()) {
 
-    	}
-    	
-		readTimer.stop();
+			// Use the calibration saved by the last boot, if there is one, so that the robot is usable at once.
+			// Otherwise the heading isn't integrated until one has been measured (see setCalibrating()).
+			if (usePersistedCalibration && calibration.load()) {
+
+				applyCalibration(calibration, Instrumentation.timeNowNanos());
+				
+				EventLogging.logInterestingEvent(EventLogging.INTERESTINGEVENTS.MPU_CALIBRATION_LOADED, calibration.tempF);
+			}
+			else
+				System.out.println("MPU6050 has no stored calibration.  It will calibrate while the robot is disabled.");
+			
+			if (temperatureCompensation && usePersistedCalibration) {
+				
+				if (temperatureModel.load())
+					logTemperatureModel(Instrumentation.timeNowNanos());
+				else
+					System.out.println("MPU6050 has no stored temperature model.  It will be fitted while the robot is still.");
+			}
+		}
     	
-    	SmartDashboard.putString ("MPU6050 Init Time:", String.format("%7.4f", readTimer.get()));
+    	initTimeDisplay.put(Instrumentation.nanosToSeconds(Instrumentation.timeNowNanos() - initStart));
     	
-		EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.END_MPU_INIT, "");
+		EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.END_MPU_INIT);
 
     	return mpuAvailable;
     	
 	}
 	
-	public void computeCalibrationData () {
+	// Selects whether init() uses the calibration file (see MPU6050Calibration), and the background
+	// calibration saves to it.  On by default.
+	public void setPersistedCalibration (boolean usePersisted) {
+		usePersistedCalibration = usePersisted;
+	}
+	
+	// Loads a calibration into each axis, through the same path as measured calibration samples: each axis
+	// is given numCalibrationSamples samples, alternately one standard deviation below and above the
+	// average.  The samples are logged like measured ones, so the replay (see SensorReplay) loads it too.
+	private void applyCalibration (MPU6050Calibration calibration, long timeNanos) {
 		
-		if (readRawData()) {
-
-			xAccelData.accumulateCalibrationData();
-			yAccelData.accumulateCalibrationData();
-			zAccelData.accumulateCalibrationData();
-			xGyroData .accumulateCalibrationData();
-			yGyroData .accumulateCalibrationData();
-			zGyroData .accumulateCalibrationData();
-
+		tempF = calibration.tempF;
+		
+		for (int i = 0; i < numCalibrationSamples; i++) {
+			
+			calibrationSample(calibration, i, scaled);
+			
+			accumulateCalibrationData();
+		}
+		
+		logCalibration(calibration, timeNanos);
+		
+		calibrated = true;
+	}
+	
+	// Sets "values" to calibration sample "i" of applyCalibration().
+	private static void calibrationSample (MPU6050Calibration calibration, int i, double[] values) {
+		
+		double sign = ((i % 2) == 0) ? -1.0 : 1.0;
+		
+		for (int axis = 0; axis < NUM_AXES; axis++)
+			values[axis] = calibration.average[axis] + sign * calibration.stdDeviation[axis];
+	}
+	
+	/***********************************************************************************
+	 * Background calibration.
+	 * 
+	 * While setCalibrating(true) (e.g. while the robot is disabled), every
+	 * numCalibrationSamples samples in a row taken while the robot isn't moving make a
+	 * new calibration.  If there is no calibration yet, or a gyro bias has moved by more
+	 * than the noise of the new measurement explains, the new calibration replaces the
+	 * one in use and is saved for the next boot (see startSaver()).  It's done by the
+	 * thread reading the MPU, between two samples, so the processing changes over from
+	 * one calibration to the other at once and nobody waits for it.
+	 ***********************************************************************************/
+	public void setCalibrating (boolean calibrate) {
+		calibrating = calibrate;
+	}
+		
+	// Returns true once the MPU has a calibration (loaded or measured).  Until then the heading stays at zero.
+	public boolean isCalibrated () {
+		return calibrated;
+	}
+		
+	// Adds the latest sample to the calibration window.  Called for every sample, after it is processed
+	// and logged, so that a new calibration is logged after the sample (see applyCalibration()).
+	private void updateCalibration (boolean isNotMoving, long timeNanos) {
+		
+		if (!calibrating || !isNotMoving) {
+			windowCount = 0;
+			return;
 		}
+		
+		for (int axis = 0; axis < NUM_AXES; axis++) windowStats[axis].accumulate(scaled[axis]);
+		
+		if (++windowCount < numCalibrationSamples) return;
+	
+		windowCount = 0;
+		
+		saveTemperatureModel(timeNanos);
+		
+		// Compare the gyros with the calibration in use.
+		double  worstError = 0.0;
+		boolean confirmed  = calibrated;
+		
+		for (int axis = FIRST_GYRO; axis < NUM_AXES; axis++) {
+			
+			AverageFilter window = windowStats[axis];
+			double        error  = Math.abs(window.average() - calibration.average[axis]);
+			double        limit  = 3.0 * window.stdDeviation() / Math.sqrt(numCalibrationSamples) + calibrationTolerance;
+			
+			worstError = Math.max(worstError, error);
+			
+			if (error > limit) confirmed = false;
+		}
+		
+		if (confirmed) {
+			EventLogging.logInterestingEvent(EventLogging.INTERESTINGEVENTS.MPU_CALIBRATION_CONFIRMED, worstError);
+			return;
+		}
+		
+		if (calibrated)
+			System.out.println("MPU6050 calibration replaced, gyro bias moved " + String.format("%.3f", worstError) + " deg/sec.");
+		else
+			System.out.println("MPU6050 calibrated.");
+		
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			calibration.average     [axis] = windowStats[axis].average();
+			calibration.stdDeviation[axis] = windowStats[axis].stdDeviation();
+		}
+		
+		calibration.tempF      = tempF;
+		calibration.numSamples = numCalibrationSamples;
+		
+		applyCalibration(calibration, timeNanos);
+		
+		if (usePersistedCalibration) {
+			MPU6050Calibration copy = new MPU6050Calibration();
+			copy.copyFrom(calibration);
+			requestSave(calibrationToSave, copy);
+		}
+		
+		EventLogging.logInterestingEvent(EventLogging.INTERESTINGEVENTS.MPU_CALIBRATION_REPLACED, worstError);
+	}
+	
+	// Saves the temperature model, at most once per modelSavePeriod.
+	private void saveTemperatureModel (long timeNanos) {
+		
+		if (!temperatureCompensation || !usePersistedCalibration) return;
+		
+		if ((lastModelSave != 0) && (timeNanos - lastModelSave < modelSavePeriod)) return;
+		
+		GyroTemperatureModel copy = new GyroTemperatureModel();
+		copy.copyFrom(temperatureModel);
+		requestSave(modelToSave, copy);
+		
+		lastModelSave = timeNanos;
+	}
+	
+	/***********************************************************************************
+	 * Saving thread.
+	 * 
+	 * The calibration and the temperature model change on the sampling thread, which
+	 * mustn't wait on a file write.  It hands a copy of each to a low priority thread
+	 * that writes the files.  If a copy is handed over before the last one is written,
+	 * only the latest is written.
+	 ***********************************************************************************/
+	private synchronized void startSaver () {
+		
+		if (saver != null) return;
+		
+		saver = new Thread(() -> {
+			
+			while (true) {
+				
+				MPU6050Calibration   calibrationCopy = calibrationToSave.getAndSet(null);
+				GyroTemperatureModel modelCopy       = modelToSave      .getAndSet(null);
+				
+				try {
+					if (calibrationCopy != null) calibrationCopy.save();
+					if (modelCopy       != null) modelCopy      .save();
+				}
+				catch (RuntimeException e) {
+					System.out.println("MPU6050 calibration could not be saved: " + e.getMessage());
+				}
+				
+				LockSupport.park();
+			}
+			
+		}, "MPU6050 saver");
+		
+		saver.setPriority(Thread.MIN_PRIORITY);
+		saver.setDaemon(true);
+		saver.start();
+	}
+	
+	// Hands "copy" to the saving thread.
+	private <T> void requestSave (AtomicReference<T> toSave, T copy) {
+		
+		toSave.set(copy);
+		
+		LockSupport.unpark(saver);
+	}
+	
+	private void accumulateCalibrationData () {
 
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			biasStats[axis].accumulate(scaled[axis]);
+			biasTemps[axis].accumulate(tempF);
+		}
 	}
 	
 	// Read the raw data for each axis.
@@ -166,154 +495,630 @@ public class MPU6050_I2C {
 		
         mpuAvailable = true;
 	
-		zGyroData.computeRawAndScaledValue( READS[12], READS[13], gyroScaleFactor);
-//		System.out.print(zGyroData.rawValue);
-//		System.out.print("  ");
-//		System.out.println(zGyroData.correctedValue);
-		int temp = ((int)READS[6] << 8) | (READS[7] & 0xff);
-		tempF      = (double) temp * 0.0052941 + 97.754;
+        decodeData(READS, 0);
 		
 		readTimer.stop();
 
-    	SmartDashboard.putString ("MPU6050 Read Time:", String.format("%7.4f", readTimer.get()));
+    	readTimeDisplay.put(readTimer.get());
 		//System.out.println( "ah= " + String.format("0x%02X", READS[0]) + "  al= " + String.format("0x%02X", READS[1]));
 		
 		return true;
 	}
 	
+	// Converts the 14 data registers, starting at data[offset], to scaled values.
+	private void decodeData (byte[] data, int offset) {
+		
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			
+			int i = offset + registerOffset[axis];
+			
+			raw   [axis] = ((int)data[i] << 8) | (data[i + 1] & 0xff);
+			scaled[axis] = (double)raw[axis] / scaleFactor[axis];
+		}
+		
+		int temp = ((int)data[offset + 6] << 8) | (data[offset + 7] & 0xff);
+		tempF      = (double) temp * 0.0052941 + 97.754;
+	}
+	
 	// Called iteratively to read the MPU axis values.  Once called the individual
-	// public access methods can be called to return values.
-	public void read( boolean isNotMoving, double timeNow) {
+	// public access methods can be called to return values.  timeNanos is the time of
+	// the read (see Instrumentation.timeNowNanos()) and is used to integrate the heading.
+	// Not used once the sampling thread is started (see startSampling()).
+	public void read( boolean isNotMoving, long timeNanos) {
+		
+		if (sampler != null) throw new RuntimeException("MPU6050: read() called while the sampling thread is running.");
 		
-		EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.START_UPDATE_MPU_DATA, "");
+		updateLogging();
+		
+		if (logging) EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.START_UPDATE_MPU_DATA);
 
 		// Read the raw data and convert to scaled values.
 		if (readRawData()) {
 
-			// Process the data for each axis.
-			xAccelData.processAxisData(isNotMoving);
-			yAccelData.processAxisData(isNotMoving);
-			zAccelData.processAxisData(isNotMoving);
-			xGyroData .processAxisData(isNotMoving);
-			yGyroData .processAxisData(isNotMoving);
-			zGyroData .processAxisData(isNotMoving);
-			
-			// Log the data for each axis.  Could have incorporated this in processAxisData but
-			// this way allows you to disable the data for selected axes if you get overwhelmed by data.
-			xAccelData.logAxisData();
-			yAccelData.logAxisData();
-			zAccelData.logAxisData();
-			xGyroData .logAxisData();
-			yGyroData .logAxisData();
-			zGyroData .logAxisData(); 
+			processAndLogData(isNotMoving, timeNanos);
 			
-			// Log the raw data for each axis.
-			allAxisRawDataFile.write(xAccelData.axisScaledValue() + "\t" +
-									 yAccelData.axisScaledValue() + "\t" +
-									 zAccelData.axisScaledValue() + "\t" +
-									 xGyroData.axisScaledValue()  + "\t" +
-									 yGyroData.axisScaledValue()  + "\t" +
-									 zGyroData.axisScaledValue()  + "\t" +
-									 tempF);
-			
-			//SmartDashboard.putString ("MPU6050 Temp:"     , String.format("%5.1f", getTemp()));
-			SmartDashboard.putString ("MPU6050 Read Time:", String.format("%7.4f", readTimer.get()));
+			readTimeDisplay.put(readTimer.get());
 
 		}
 		
-		EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.END_UPDATE_MPU_DATA, "");
+		if (logging) EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.END_UPDATE_MPU_DATA);
 
 
 	}
 
+	/***********************************************************************************
+	 * Sampling thread.
+	 * 
+	 * startSampling() reads the MPU on its own thread (a Notifier), once per sample that
+	 * the MPU produces (SAMPLE_PERIOD), and integrates the heading at that rate.  The
+	 * robot loop then never waits on the I2C bus: it passes in the "not moving" indicator
+	 * with setNotMoving() and gets the latest heading with getSnapshot() (or getAngleZ()
+	 * and getGyroRateZ()), none of which block.
+	 * 
+	 * In FIFO mode the MPU queues its samples in its FIFO, and the thread reads all of
+	 * the queued samples every FIFO_READ_PERIOD, a few samples per I2C transaction.
+	 * No sample is missed and the status register isn't polled.
+	 ***********************************************************************************/
+	public void startSampling () {
+		
+		if (sampler != null) return;
+		
+		beginSampling();
+		
+		sampler = new Notifier(this::poll);
+		sampler.startPeriodic(fifoMode ? FIFO_READ_PERIOD : SAMPLE_PERIOD);
+	}
 	
-	//	Return the Z gyro value in deg/sec, 
-	public double getGyroRateZ() {
-		return zGyroData.axisFilteredValue();
+	// Starts the sample timing and, in FIFO mode, starts filling the FIFO.  Done once, before the first poll().
+	private void beginSampling () {
+		
+		if (MPU == null) throw new RuntimeException("MPU6050: init() must be called before sampling starts.");
+		
+		lastSampleTime = Instrumentation.timeNowNanos();
+		
+		if (fifoMode) resetFifo();
+		
+		samplingBegun = true;
 	}
 	
-	/***********************************************************************************
-	 * Class that encapsulates the data and processing of each IMU axis type.
-     ***********************************************************************************/
-	private class AxisData {
-		
-		private String        name;                 // Name of the axis for debug purposes.
-		private int           rawValue       = 0;   // The raw value of the axis as returned by the MPU6050.
-		private double        scaledValue    = 0.0; // The raw value scaled to the proper units.
-		public  double        correctedValue = 0.0; // The scaled value with the average (offset) and trim applied.
-		private double        filteredValue  = 0.0; // Result of running the correctedValue thru the low pass filter.
-		private double		  desiredCalValue;      // The value to be returned under no motion/level orientation.
-		private FirstOrderLPF lpf;                  // Low pass filter for the correctedValue, producing filteredValue.
-		private AverageFilter avgStats;				// Average and std deviation used to correct drift.
-		private DebugTextFile mpuDataFile;			// A text file to write debug data to.
-		
-		// Constructor
-		private AxisData (String name, double lpfK, int numSamplesForAverage, double desiredCalValue) {
-
-			this.name    		 = name;
-			this.lpf             = new FirstOrderLPF(lpfK); // lpfK may need to be tuned for each axis.
-			this.avgStats        = new AverageFilter(numSamplesForAverage);
-			this.desiredCalValue = desiredCalValue;
+	// Selects FIFO mode for the sampling thread.  Must be called before startSampling().
+	public void setFifoMode (boolean useFifo) {
+		
+		if (samplingBegun) throw new RuntimeException("MPU6050: setFifoMode() called after sampling started.");
+		
+		fifoMode = useFifo;
+	}
+	
+	// Replaces spikes in each axis (e.g. from a corrupted transfer) with the median of the last
+	// "windowSize" samples: samples further from the median than "numSigmas" standard deviations,
+	// and at least minAccel (g) or minRate (degrees/sec) (see HampelFilter).  Off unless called.
+	// Must be called before startSampling(), and before replaying a log of a robot that used it.
+	public void setSpikeRejection (int windowSize, double numSigmas, double minAccel, double minRate) {
+		
+		if (samplingBegun) throw new RuntimeException("MPU6050: setSpikeRejection() called after sampling started.");
+		
+		HampelFilter[] filters = new HampelFilter[NUM_AXES];
+		
+		for (int axis = 0; axis < NUM_AXES; axis++)
+			filters[axis] = new HampelFilter(windowSize, numSigmas, (axis < FIRST_GYRO) ? minAccel : minRate);
+		
+		spikeFilters = filters;
+	}
+	
+	// Decides whether the robot is still from the samples themselves (see StationaryDetector), with the
+	// "not moving" indicator as a hint, instead of taking the indicator as it is.  Once there is a
+	// calibration, bias tracking and the background calibration only use samples the detector finds
+	// still.  Off unless called (null turns it off).  Must be called before startSampling(), and before
+	// replaying a log of a robot that used it.
+	public void setStationaryDetection (StationaryDetector detector) {
+		
+		if (samplingBegun) throw new RuntimeException("MPU6050: setStationaryDetection() called after sampling started.");
+		
+		stationaryDetector = detector;
+	}
+	
+	// Corrects the gyro biases for the die temperature.  The bias of each gyro axis is fitted to the
+	// temperature from the samples taken while the robot is still (see GyroTemperatureModel), and the
+	// bias learned from the still samples is moved along the fit to the current temperature.  The fit
+	// is loaded by init() and saved with the background calibration, if the calibration file is used.
+	// Off unless called.  Must be called before init(), and before replaying a log of a robot that used
+	// it (a replay starts from the model the robot loaded, see logTemperatureModel()).
+	public void setTemperatureCompensation (boolean compensate) {
+		
+		if (samplingBegun) throw new RuntimeException("MPU6050: setTemperatureCompensation() called after sampling started.");
+		
+		temperatureCompensation = compensate;
+	}
+	
+	// The gyro bias temperature model (see setTemperatureCompensation()).
+	public GyroTemperatureModel getTemperatureModel () {
+		return temperatureModel;
+	}
+	
+	public boolean isSampling () {
+		return sampler != null;
+	}
+	
+	// Selects whether the samples, and the events of reading them, are logged.  On by default.  The
+	// robot only logs while it is enabled, so that a robot left on while disabled doesn't fill the
+	// flash.  When logging starts again, the calibration and temperature model in use are logged before
+	// the next sample, and a replay of the log starts from them (see SensorReplay).
+	public void setLogging (boolean log) {
+		loggingRequested = log;
+	}
+	
+	// Follows setLogging().  Called by the thread processing the samples, before it reads them.
+	private void updateLogging () {
+		
+		if (logging == loggingRequested) return;
+		
+		logging = !logging;
+		
+		if (!logging) return;
+		
+		long timeNanos = Instrumentation.timeNowNanos();
+		
+		if (calibrated)              logCalibration(calibration, timeNanos);
+		if (temperatureCompensation) logTemperatureModel(timeNanos);
+	}
+	
+	// Sets the "not moving" indicator used by the sampling thread to correct drift.
+	public void setNotMoving (boolean isNotMoving) {
+		notMoving = isNotMoving;
+	}
+	
+	// Reads and processes the new samples.  Called by the sampling thread every SAMPLE_PERIOD
+	// (FIFO_READ_PERIOD in FIFO mode).  May be called directly instead of starting the thread,
+	// e.g. by a benchmark running off-robot where there is no Notifier (see SensorPathBenchmark).
+	public void poll () {
+		
+		if (!samplingBegun) beginSampling();
+		
+		updateLogging();
+		
+		if (resetRequested) {
+			resetRequested = false;
+			applyAngleReset();
+		}
+		
+		if (logging) EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.START_UPDATE_MPU_DATA);
+		
+		if (fifoMode)
+			readFifo();
+		else
+			readDataRegisters();
+		
+		if (logging) EventLogging.logNormalEvent(EventLogging.NORMALEVENTS.END_UPDATE_MPU_DATA);
+	}
+	
+	// Reads the latest sample from the data registers, if there is a new one.
+	private void readDataRegisters () {
+		
+		long timeNanos = Instrumentation.timeNowNanos();
+		
+		// Read the interrupt status and the data registers (which follow it) in one transaction.
+		boolean aborted   = MPU.read(REGSITER_INTERRUPT_STATUS, sampleData.length, sampleData);
+		boolean dataReady = !aborted && ((sampleData[0] & 0x01) != 0) && ((sampleData[1] != 0) || (sampleData[2] != 0));
+		
+		if (dataReady) {
 			
-			// Instrumentation debug file for this axis.
-			mpuDataFile = new DebugTextFile(name + "MPUData", true, "ScaledValue\tCcorrectedValue\tFilteredValue\tCalAvg\tCalStdDev", 30000);
+			decodeData(sampleData, 1);
 			
+			processAndLogData(notMoving, timeNanos);
+			
+			readTimeDisplay.put(Instrumentation.nanosToSeconds(Instrumentation.timeNowNanos() - timeNanos));
+			
+			lastSampleTime = timeNanos;
+			mpuAvailable   = true;
+		}
+		// No new sample.  It will be read next time, unless the MPU has stopped.
+		else
+			checkTimeout(timeNanos);
+	}
+	
+	// Reads and processes every sample queued in the FIFO.
+	private void readFifo () {
+		
+		long timeNanos = Instrumentation.timeNowNanos();
+		
+		if (MPU.read(REGISTER_FIFO_COUNT_H, 2, fifoCount)) return;
+		
+		int count = ((fifoCount[0] & 0xff) << 8) | (fifoCount[1] & 0xff);
+		
+		// If the FIFO filled up, samples were lost and the next byte may not start a sample.  Start over.
+		if (count > fifoSize - fifoSampleBytes) {
+			EventLogging.logBadEvent(EventLogging.BADEVENTS.MPU_FIFO_OVERFLOW, (double)count);
+			resetFifo();
+			return;
 		}
 		
-		// Compute intermediate stats during calibration.
-		public void accumulateCalibrationData (){
+		// Only read whole samples.  The rest are read next time.
+		int numSamples = count / fifoSampleBytes;
+		
+		if (numSamples == 0) {
+			checkTimeout(timeNanos);
+			return;
+		}
+		
+		// The newest sample was produced within the last sample period.  The samples were
+		// produced one sample period apart, so their times are counted back from now.
+		long sampleTime = Math.max(timeNanos - (numSamples - 1) * samplePeriodNanos, lastSampleTime + 1);
+		
+		while (numSamples > 0) {
 			
-			avgStats.accumulate(this.scaledValue);
-
+			int chunk = Math.min(numSamples, fifoSamplesPerRead);
+			
+			// If the transfer failed, the position in the FIFO is unknown.  Start over.
+			if (MPU.read(REGISTER_FIFO_R_W, chunk * fifoSampleBytes, fifoData)) {
+				resetFifo();
+				return;
+			}
+			
+			for (int i = 0; i < chunk; i++) {
+				
+				decodeData(fifoData, i * fifoSampleBytes);
+				
+				processAndLogData(notMoving, sampleTime);
+				
+				lastSampleTime = sampleTime;
+				sampleTime    += samplePeriodNanos;
+			}
+			
+			numSamples -= chunk;
 		}
 		
-		// Computes the raw and scaled value as supplied by the MPU6050.
-		public void computeRawAndScaledValue (byte highOrder, byte lowOrder, double scaleFactor) {
+		readTimeDisplay.put(Instrumentation.nanosToSeconds(Instrumentation.timeNowNanos() - timeNanos));
+		
+		mpuAvailable = true;
+	}
+	
+	// Empties the FIFO and (re)starts filling it.
+	private void resetFifo () {
+		
+		MPU.write(REGISTER_USER_CTRL  , 0);
+		MPU.write(REGISTER_FIFO_ENABLE, fifoEnableBits);
+		MPU.write(REGISTER_USER_CTRL  , userCtrlFifoReset);
+		MPU.write(REGISTER_USER_CTRL  , userCtrlFifoEnable);
+	}
+	
+	// Marks the MPU unavailable if it hasn't produced a sample for a second.
+	private void checkTimeout (long timeNanos) {
+		
+		if (mpuAvailable && (timeNanos - lastSampleTime > 1000000000L)) {
+			System.out.println("MPU6050 read timeout!");
+			mpuAvailable = false;
+		}
+	}
+	
+	// Processes the latest sample and logs it.
+	private void processAndLogData (boolean isNotMoving, long timeNanos) {
 
-			this.rawValue    = ((int)highOrder << 8) | (lowOrder & 0xff);
-			this.scaledValue = (double)this.rawValue / scaleFactor;
+		processData(isNotMoving, timeNanos);
+		
+		logAxisData(timeNanos);
+		
+		// Log the raw data for each axis.
+		logScaledData(timeNanos, isNotMoving, false, false);
+		
+		updateCalibration(stationary, timeNanos);
+		
+		//SmartDashboard.putString ("MPU6050 Temp:"     , String.format("%5.1f", getTemp()));
+	}
+
+	// Processes one sample from allAxisScaledMPUData without the MPU, the same way that init() (for
+	// calibration samples) and read() or the sampling thread (for all others) process it.  Used to
+	// replay a log off-robot.
+	public void replaySample (long timeNanos, double[] scaledValues, double tempF, boolean isNotMoving, boolean isCalibration) {
+		
+		System.arraycopy(scaledValues, 0, scaled, 0, NUM_AXES);
+		
+		this.tempF = tempF;
+		
+		if (isCalibration) {
+			accumulateCalibrationData();
+			calibrated = true;
 		}
+		else
+			processData(isNotMoving, timeNanos);
+	}
+	
+	// Processes the scaled values of the latest sample and integrates the heading.
+	private void processData (boolean isNotMoving, long timeNanos) {
+
+		// Replace spikes with the median of the recent samples (see setSpikeRejection()).  The scaled
+		// values are left as the sensor produced them, for the log.
+		for (int axis = 0; axis < NUM_AXES; axis++)
+			gated[axis] = (spikeFilters == null) ? scaled[axis] : spikeFilters[axis].filter(scaled[axis]);
+
+		// Without a calibration there is no bias to correct, so nothing is processed, and the
+		// indicator is taken as it is.
+		stationary = isNotMoving;
 		
-		// Child class provides unique implementation based on axis type.
-		public void processAxisData (boolean notMoving) {
+		if (calibrated) {
+		
+			stationary = processAxes(isNotMoving);
+			
+			// Integrate the Z rate over the time since the last read, and fuse the unfiltered
+			// axes into the attitude (the estimator filters them itself).
+			if (!firstRead) {
+				
+				double dt = Instrumentation.nanosToSeconds(timeNanos - lastReadTime);
+				
+				angleZ += filtered[Z_GYRO] * dt;
+				
+				attitude.update(corrected[FIRST_GYRO], corrected[FIRST_GYRO + 1], corrected[Z_GYRO], 
+								corrected[0], corrected[1], corrected[2], dt);
+			}
+		}
+		
+		lastReadTime = timeNanos;
+		firstRead    = false;
+		
+		sampleCount++;
+		
+		publishSnapshot(timeNanos);
+	}
 	
-			double average = this.avgStats.average();
+	// Publishes the heading data for other threads.  The sequence number is odd while the
+	// data is being changed, so a reader can tell if it read a mix of old and new data.
+	private void publishSnapshot (long timeNanos) {
+		
+		long seq = snapshotSeq;
+		
+		snapshotSeq     = seq + 1;
+		snapshotTime    = timeNanos;
+		snapshotAngleZ  = angleZ;
+		snapshotRateZ   = filtered[Z_GYRO];
+		snapshotRateX   = filtered[FIRST_GYRO];
+		snapshotRateY   = filtered[FIRST_GYRO + 1];
+		snapshotAccelX  = filtered[0];
+		snapshotAccelY  = filtered[1];
+		snapshotAccelZ  = filtered[2];
+		snapshotRoll    = attitude.roll();
+		snapshotPitch   = attitude.pitch();
+		snapshotYaw     = attitude.yaw();
+		snapshotLinearX = attitude.levelAccelX();
+		snapshotLinearY = attitude.levelAccelY();
+		snapshotLinearZ = attitude.levelAccelZ();
+		snapshotStationary = stationary;
+		snapshotSamples = sampleCount;
+		snapshotSeq     = seq + 2;
+	}
+	
+	/***********************************************************************************
+	 * Heading and filtered axis data from one sample.
+	 ***********************************************************************************/
+	public static class Snapshot {
+		public long   timeNanos = 0;    // Time of the sample (see Instrumentation.timeNowNanos()).
+		public double angleZ    = 0.0;  // Heading (degrees).
+		public double rateZ     = 0.0;  // Filtered Z rate (degrees/sec).
+		public double rateX     = 0.0;  // Filtered X and Y rates (degrees/sec).
+		public double rateY     = 0.0;
+		public double accelX    = 0.0;  // Filtered acceleration (g).
+		public double accelY    = 0.0;
+		public double accelZ    = 0.0;
+		public double roll      = 0.0;  // Attitude (degrees, see AttitudeEstimator).  Yaw is wrapped to +/-180.
+		public double pitch     = 0.0;
+		public double yaw       = 0.0;
+		public double linearX   = 0.0;  // Acceleration less gravity, X and Y level and Z up (g).
+		public double linearY   = 0.0;
+		public double linearZ   = 0.0;
+		public boolean stationary = false;  // The robot was still (see setStationaryDetection()).
+		public long   samples   = 0;    // Number of samples processed so far.
+	}
+	
+	// Copies the latest heading data into "snapshot".  Never waits for the sampling thread
+	// except to retry if it published a new sample during the copy.
+	public void getSnapshot (Snapshot snapshot) {
+		
+		long seq;
+		
+		do {
+			seq = snapshotSeq;
+			
+			snapshot.timeNanos = snapshotTime;
+			snapshot.angleZ    = snapshotAngleZ;
+			snapshot.rateZ     = snapshotRateZ;
+			snapshot.rateX     = snapshotRateX;
+			snapshot.rateY     = snapshotRateY;
+			snapshot.accelX    = snapshotAccelX;
+			snapshot.accelY    = snapshotAccelY;
+			snapshot.accelZ    = snapshotAccelZ;
+			snapshot.roll      = snapshotRoll;
+			snapshot.pitch     = snapshotPitch;
+			snapshot.yaw       = snapshotYaw;
+			snapshot.linearX   = snapshotLinearX;
+			snapshot.linearY   = snapshotLinearY;
+			snapshot.linearZ   = snapshotLinearZ;
+			snapshot.stationary = snapshotStationary;
+			snapshot.samples   = snapshotSamples;
 			
-			// Apply the offset (running average) to remove any bias.
-			this.correctedValue = this.scaledValue - average + this.desiredCalValue;
+		} while (((seq & 1) != 0) || (seq != snapshotSeq));
+	}
+	
+	// Writes the scaled values of the latest sample to allAxisRawDataFile.
+	private void logScaledData (long timeNanos, boolean isNotMoving, boolean isCalibration, boolean isReset) {
+		
+		if (!logging) return;
+		
+		System.arraycopy(scaled, 0, allAxisRawDataRow, 0, NUM_AXES);
+		
+		allAxisRawDataRow[6] = tempF;
+		allAxisRawDataRow[7] = isNotMoving   ? 1.0 : 0.0;
+		allAxisRawDataRow[8] = isCalibration ? 1.0 : 0.0;
+		allAxisRawDataRow[9] = isReset       ? 1.0 : 0.0;
+		allAxisRawDataFile.record(timeNanos, allAxisRawDataRow);
+	}
+	
+	// Writes the samples that applyCalibration() gives the axes to allAxisRawDataFile, as calibration samples.
+	private void logCalibration (MPU6050Calibration calibration, long timeNanos) {
+		
+		if (!logging) return;
+		
+		for (int i = 0; i < numCalibrationSamples; i++) {
 			
-			// Apply the LPF to the corrected value.
-			this.filteredValue  = lpf.filter(this.correctedValue);
+			calibrationSample(calibration, i, allAxisRawDataRow);
 			
-			// if we are not moving then recompute the offset to apply to measurements.  This is intended
-			// to correct drift.  "Not moving" may be difficult to determine.  For instance, motors may be
-			// commanded to zero but the robot is still coasting.  Here it is defined as the external "not moving"
-			// indicator being "true" and the measurement being within one standard deviation of its current
-			// "not moving" average.
-			if (notMoving)
-				if (Math.abs(this.scaledValue - average) < this.avgStats.stdDeviation())
-				    accumulateCalibrationData();
+			allAxisRawDataRow[6] = calibration.tempF;
+			allAxisRawDataRow[7] = 0.0;
+			allAxisRawDataRow[8] = 1.0;
+			allAxisRawDataRow[9] = 0.0;
+			allAxisRawDataFile.record(timeNanos, allAxisRawDataRow);
+		}
+	}
+	
+	// Writes the sums of each axis of the temperature model to temperatureModelFile.
+	private void logTemperatureModel (long timeNanos) {
+		
+		if (!logging) return;
+		
+		double[] sums = new double[GyroTemperatureModel.NUM_SUMS];
+		
+		for (int axis = 0; axis < GyroTemperatureModel.AXIS_NAMES.length; axis++) {
+			
+			temperatureModel.getSums(axis, sums);
+			
+			temperatureModelRow[0] = axis;
+			
+			System.arraycopy(sums, 0, temperatureModelRow, 1, sums.length);
+			
+			temperatureModelFile.record(timeNanos, temperatureModelRow);
+		}
+	}
+	
+	// Sets the heading to zero.  The next read starts a new integration.  If the sampling
+	// thread is running the reset is done by that thread, before its next sample.
+	public void resetAngleZ () {
+		
+		if (sampler != null)
+			resetRequested = true;
+		else
+			applyAngleReset();
+	}
+	
+	private void applyAngleReset () {
+		
+		angleZ    = 0.0;
+		firstRead = true;
+		
+		attitude.resetYaw();
+		
+		publishSnapshot(lastReadTime);
+		
+		logScaledData(Instrumentation.timeNowNanos(), false, false, true);
+	}
+	
+	// Sets the low pass filter constant of the Z gyro (see FirstOrderLPF).  Used to tune the filter by replaying logs.
+	public void setGyroFilterConstantZ (double lpfK) {
+		this.lpfK[Z_GYRO] = lpfK;
+	}
+
+	
+	//	Return the Z gyro value in deg/sec, 
+	public double getGyroRateZ() {
+		return snapshotRateZ;
+	}
+	
+	//	Return the heading in degrees (positive and negative, not wrapped to 360).
+	public double getAngleZ() {
+		return snapshotAngleZ;
+	}
+	
+	// Returns true if the robot was still at the last sample (see setStationaryDetection()).
+	public boolean isStationary() {
+		return snapshotStationary;
+	}
+	
+	// Returns false if the MPU stopped producing data.
+	public boolean isAvailable() {
+		return mpuAvailable;
+	}
+	
+	/***********************************************************************************
+	 * Processes the gated values (the scaled values with spikes replaced) of all axes
+	 * in one pass:
+	 * 
+	 *   - Removes the bias (the average of the still samples, for gyros moved to the
+	 *     current temperature if there is temperature compensation) and adds the
+	 *     nominal value.
+	 *   - Low pass filters the result (the same filter as FirstOrderLPF).
+	 *   - If the robot isn't moving, and the sample is within one standard deviation of
+	 *     the bias, adds the sample to the still samples.  This is intended to correct
+	 *     drift.  "Not moving" may be difficult to determine.  For instance, motors may
+	 *     be commanded to zero but the robot is still coasting, so with a
+	 *     StationaryDetector the indicator is only a hint, confirmed by the samples.
+	 * 
+	 * Returns true if the robot is still.
+	 ***********************************************************************************/
+	private boolean processAxes (boolean isNotMoving) {
+		
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+		
+			double average = biasStats[axis].average();
+			double stdDev  = biasStats[axis].stdDeviation();
+
+			if (temperatureCompensation && (axis >= FIRST_GYRO))
+				average += temperatureModel.slope(axis - FIRST_GYRO) * (tempF - biasTemps[axis].average());
+
+			corrected[axis] = gated[axis] - average + nominal[axis];
+			filtered [axis] = filtered[axis] + lpfK[axis] * (corrected[axis] - filtered[axis]);
 			
+			bias      [axis] = average;
+			biasStdDev[axis] = stdDev;
 		}
 		
-		public void logAxisData () {
+		boolean isStill = isNotMoving;
+		
+		if (stationaryDetector != null)
+			isStill = stationaryDetector.update(corrected[FIRST_GYRO], corrected[FIRST_GYRO + 1], corrected[Z_GYRO], 
+												corrected[0], corrected[1], corrected[2], isNotMoving);
+		
+		if (isStill) {
 			
-	    	mpuDataFile.write(
-	    			this.scaledValue        + "\t" +
-	    			this.correctedValue     + "\t" + 
-	    			this.filteredValue      + "\t" + 
-	    			this.avgStats.average() + "\t" + 
-	    			this.avgStats.stdDeviation()
-	    			);
+			for (int axis = 0; axis < NUM_AXES; axis++) {
+				if (Math.abs(gated[axis] - bias[axis]) < biasStdDev[axis]) {
+					biasStats[axis].accumulate(gated[axis]);
+					biasTemps[axis].accumulate(tempF);
+				}
+			}
+			
+			// The temperature model is fitted to all the still samples near the bias, not only those within
+			// one standard deviation, which are too few once the bias moves with the temperature.
+			if (temperatureCompensation)
+				for (int axis = FIRST_GYRO; axis < NUM_AXES; axis++)
+					if (Math.abs(gated[axis] - bias[axis]) < modelMaxRate) temperatureModel.add(axis - FIRST_GYRO, tempF, gated[axis]);
 		}
 		
-		// Access methods for internal data.
-		public int    axisRawValue       () { return this.rawValue; }
-		public double axisScaledValue    () { return this.scaledValue; }
-		public double axisCorrectedValue () { return this.correctedValue; }
-		public double axisFilteredValue  () { return this.filteredValue; }
+		return isStill;
+	}
+	
+	// Writes the processing of each axis for the latest sample to axisDataFile.
+	private void logAxisData (long timeNanos) {
+		
+		if (!logging) return;
+		
+		for (int axis = 0; axis < NUM_AXES; axis++) {
+			axisDataRow[5 * axis    ] = scaled    [axis];
+			axisDataRow[5 * axis + 1] = corrected [axis];
+			axisDataRow[5 * axis + 2] = filtered  [axis];
+			axisDataRow[5 * axis + 3] = bias      [axis];
+			axisDataRow[5 * axis + 4] = biasStdDev[axis];
+		}
 		
+		axisDataFile.record(timeNanos, axisDataRow);
 	}
 	
+	// Columns of axisDataFile: "xAccelScaled", "xAccelCorrected", ... for each axis.
+	private static String[] axisDataColumns () {
+		
+		String[] names   = {"Scaled", "Corrected", "Filtered", "CalAvg", "CalStdDev"};
+		String[] columns = new String[NUM_AXES * names.length];
+		
+		for (int axis = 0; axis < NUM_AXES; axis++)
+			for (int i = 0; i < names.length; i++)
+				columns[names.length * axis + i] = MPU6050Calibration.AXIS_NAMES[axis] + names[i];
+		
+		return columns;
+	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,24 @@
+package com.eagles.sensors;
+
+/***********************************************************************************
+ * SPI TRANSPORT
+ * 
+ * Access to a device on an SPI bus.  The methods match those of the WPILib SPI class
+ * (see WPILibSPI), so sensor code can be run against the real bus or a simulated
+ * device (see com.eagles.sensors.sim).
+ ***********************************************************************************/
+public interface SPITransport {
+
+	// Sends "size" bytes of dataToSend while receiving "size" bytes into dataReceived.  Returns the
+	// number of bytes transferred.
+	int transaction (byte[] dataToSend, byte[] dataReceived, int size);
+	
+	// Sends "size" bytes of data.  Returns the number of bytes written.
+	int write (byte[] data, int size);
+	
+	// Sends "address", waits at least "delayNanos" with the device still selected, then receives "size"
+	// bytes into dataReceived.  For devices that need time between the address and the data of a read
+	// (e.g. the PMW3901, see FlowMotion).  Returns the number of bytes received.
+	int read (byte address, long delayNanos, byte[] dataReceived, int size);
+	
+}
@@ -0,0 +1,26 @@
+package com.eagles.sensors;
+
+import edu.wpi.first.wpilibj.I2C;
+
+/***********************************************************************************
+ * I2C transport on the roboRIO, using the WPILib I2C class.
+ ***********************************************************************************/
+public class WPILibI2C implements I2CTransport {
+
+	private final I2C i2c;
+	
+	public WPILibI2C (I2C.Port port, int deviceAddress) {
+		i2c = new I2C(port, deviceAddress);
+	}
+	
+	@Override
+	public boolean read (int register, int count, byte[] buffer) {
+		return i2c.read(register, count, buffer);
+	}
+	
+	@Override
+	public boolean write (int register, int data) {
+		return i2c.write(register, data);
+	}
+	
+}
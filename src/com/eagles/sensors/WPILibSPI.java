@@ -0,0 +1,102 @@
+package com.eagles.sensors;
+
+import edu.wpi.first.wpilibj.DigitalOutput;
+import edu.wpi.first.wpilibj.SPI;
+
+/***********************************************************************************
+ * SPI transport on the roboRIO, using the WPILib SPI class.  The port is set up
+ * for the devices on this robot: clock active high, data sampled on the rising
+ * edge, MSB first and chip select active low.
+ * 
+ * The port's chip select is released after each transfer.  A device that must
+ * stay selected between the address and the data of a read (see read()) has its
+ * chip select wired to a DIO instead, which this class drives around each
+ * transaction; the port's own chip select is then left unconnected.
+ ***********************************************************************************/
+public class WPILibSPI implements SPITransport {
+
+	private final SPI           spi;
+	private final DigitalOutput chipSelect;              // Null if the port's chip select is used.
+	private final byte[]        addressByte = new byte[1];
+	
+	public WPILibSPI (SPI.Port port, int clockRate) {
+		this(port, clockRate, null);
+	}
+	
+	// For a device with its chip select on DIO "chipSelectChannel".
+	public WPILibSPI (SPI.Port port, int clockRate, int chipSelectChannel) {
+		this(port, clockRate, new DigitalOutput(chipSelectChannel));
+	}
+	
+	private WPILibSPI (SPI.Port port, int clockRate, DigitalOutput chipSelect) {
+		
+		this.chipSelect = chipSelect;
+		
+		if (chipSelect != null) chipSelect.set(true);
+		
+		spi = new SPI(port);
+		
+		spi.setClockRate(clockRate);
+		spi.setChipSelectActiveLow();
+		spi.setClockActiveHigh();
+		spi.setSampleDataOnRising();
+		spi.setMSBFirst();
+		spi.resetAccumulator();
+		spi.freeAuto();
+	}
+	
+	@Override
+	public int transaction (byte[] dataToSend, byte[] dataReceived, int size) {
+		
+		select(true);
+		
+		int transferred = spi.transaction(dataToSend, dataReceived, size);
+		
+		select(false);
+		
+		return transferred;
+	}
+	
+	@Override
+	public int write (byte[] data, int size) {
+		
+		select(true);
+		
+		int written = spi.write(data, size);
+		
+		select(false);
+		
+		return written;
+	}
+	
+	// The device stays selected from the address to the data, so it needs the chip select on a DIO.
+	@Override
+	public int read (byte address, long delayNanos, byte[] dataReceived, int size) {
+		
+		if (chipSelect == null) 
+			throw new RuntimeException("WPILibSPI: read() with a delay needs the chip select on a DIO.");
+		
+		addressByte[0] = address;
+		
+		select(true);
+		
+		spi.write(addressByte, 1);
+		
+		// Too short to sleep.
+		long end = System.nanoTime() + delayNanos;
+		
+		while (System.nanoTime() < end) {}
+		
+		int received = spi.read(true, dataReceived, size);
+		
+		select(false);
+		
+		return received;
+	}
+	
+	// Drives the chip select (active low), if this class drives it.
+	private void select (boolean selected) {
+		if (chipSelect != null) chipSelect.set(!selected);
+	}
+	
+}
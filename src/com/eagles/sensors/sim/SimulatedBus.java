@@ -0,0 +1,60 @@
+package com.eagles.sensors.sim;
+
+/***********************************************************************************
+ * Timing and statistics of the bus of a simulated device.
+ * 
+ * Each transfer takes the time the real bus would take to clock its bits, plus a
+ * fixed overhead per transaction (the driver and controller time on the roboRIO).
+ * The caller busy-waits for that time, like it would for the real bus, so that
+ * latencies measured off-robot include the bus.  A clock rate of 0 makes transfers
+ * instant.
+ ***********************************************************************************/
+class SimulatedBus {
+
+	private final int  bitsPerByte;                 // 9 for I2C (8 data bits and an acknowledge), 8 for SPI.
+	private long       nanosPerByte;
+	private long       overheadNanos = 0;
+	private long       transactions  = 0;
+	private long       bytes         = 0;
+	private long       busyNanos     = 0;
+	
+	SimulatedBus (int bitsPerByte, double clockHz) {
+		this.bitsPerByte = bitsPerByte;
+		setClock(clockHz);
+	}
+	
+	void setClock (double clockHz) {
+		nanosPerByte = (clockHz > 0.0) ? (long)(bitsPerByte * 1.0e9 / clockHz) : 0;
+	}
+	
+	void setOverhead (double seconds) {
+		overheadNanos = (long)(seconds * 1.0e9);
+	}
+	
+	// Counts a transaction of "numBytes" bytes and waits for the time it takes.
+	void transfer (int numBytes) {
+		transfer(numBytes, 0);
+	}
+		
+	// Same as transfer(numBytes), with a wait of "gapNanos" within the transaction (see SPITransport.read()).
+	void transfer (int numBytes, long gapNanos) {
+		
+		long nanos = overheadNanos + numBytes * nanosPerByte + gapNanos;
+		
+		transactions++;
+		bytes     += numBytes;
+		busyNanos += nanos;
+		
+		if (nanos == 0) return;
+		
+		long end = System.nanoTime() + nanos;
+		
+		while (System.nanoTime() < end) {}
+	}
+	
+	long nanosPerByte () { return nanosPerByte; }
+	long transactions () { return transactions; }
+	long bytes        () { return bytes; }
+	long busyNanos    () { return busyNanos; }
+	
+}
@@ -0,0 +1,255 @@
+package com.eagles.sensors.sim;
+
+import java.util.Random;
+
+import org.usfirst.frc4579.instrumentation.Instrumentation;
+
+import com.eagles.sensors.SPITransport;
+
+/***********************************************************************************
+ * SIMULATED FLOW SENSOR
+ * 
+ * An in-process model of the PMW3901 optical flow sensor on the SPI bus, for
+ * running FlowMotion off-robot:
+ * 
+ *     SimulatedFlowSensor device = new SimulatedFlowSensor(4579);
+ *     FlowMotion          flow   = new FlowMotion(device);
+ * 
+ * The first byte of a transaction is the register address, with the high bit set
+ * for a write.  While it is sent the sensor returns 0; a read returns the register
+ * in the second byte, and the registers after it in any further bytes.  A read of
+ * Motion_Burst (0x16) returns Motion, Observation, Delta_X_L/H, Delta_Y_L/H, SQUAL,
+ * RawData_Sum, Max_Raw, Min_Raw, Shutter_Upper and Shutter_Lower instead.
+ * 
+ * As on the PMW3901, the data of a read is only ready READ_DELAY_NANOS (tSRAD)
+ * after the address.  Data clocked out sooner, as by a read in one transaction()
+ * at 800 kHz, is returned as zeros.  read() waits between the address and the data.
+ * 
+ * The sensor moves at the rate set by setVelocity(), on the
+ * Instrumentation.timeNowNanos() time base, with white noise on each reading.
+ * Reading Motion (or Motion_Burst) latches the counts since the last reading into
+ * the Delta registers and sets the motion bit if they aren't zero.  Product_ID
+ * (0x00) and Inverse_Product_ID (0x5F) return 0x49 and 0xB6.
+ * 
+ * Transfers take the time of the real bus (see SimulatedBus), 800 kHz by default.
+ * transaction() and write() must be called from one thread at a time.
+ ***********************************************************************************/
+public class SimulatedFlowSensor implements SPITransport {
+
+	public  static final long READ_DELAY_NANOS           = 35000;  // tSRAD: time from the address to the data of a read.
+
+	private static final int REGISTER_PRODUCT_ID         = 0x00,
+							 REGISTER_MOTION             = 0x02,
+							 REGISTER_DELTA_X_L          = 0x03,
+							 REGISTER_DELTA_X_H          = 0x04,
+							 REGISTER_DELTA_Y_L          = 0x05,
+							 REGISTER_DELTA_Y_H          = 0x06,
+							 REGISTER_SQUAL              = 0x07,
+							 REGISTER_RAW_DATA_SUM       = 0x08,
+							 REGISTER_MAX_RAW            = 0x09,
+							 REGISTER_MIN_RAW            = 0x0A,
+							 REGISTER_SHUTTER_LOWER      = 0x0B,
+							 REGISTER_SHUTTER_UPPER      = 0x0C,
+							 REGISTER_OBSERVATION        = 0x15,
+							 REGISTER_MOTION_BURST       = 0x16,
+							 REGISTER_POWER_UP_RESET     = 0x3A,
+							 REGISTER_INVERSE_PRODUCT_ID = 0x5F;
+	
+	// Order of the registers returned by a Motion_Burst read.
+	private static final int[] burstRegisters = {
+			REGISTER_MOTION, REGISTER_OBSERVATION, REGISTER_DELTA_X_L, REGISTER_DELTA_X_H, REGISTER_DELTA_Y_L, 
+			REGISTER_DELTA_Y_H, REGISTER_SQUAL, REGISTER_RAW_DATA_SUM, REGISTER_MAX_RAW, REGISTER_MIN_RAW, 
+			REGISTER_SHUTTER_UPPER, REGISTER_SHUTTER_LOWER};
+	
+	private final byte[]       registers = new byte[128];
+	private final Random       random;
+	private final SimulatedBus bus       = new SimulatedBus(8, 800000.0);
+	
+	// The motion of the sensor.
+	private volatile double    velocityX = 0.0;   // Counts/sec.
+	private volatile double    velocityY = 0.0;
+	private volatile int       squal     = 0x40;  // Surface quality.
+	private double             noise     = 0.5;   // Standard deviation of each reading (counts).
+	
+	private long               lastUpdate;        // Nanoseconds.
+	private double             moveX     = 0.0;   // Counts moved since the last reading, not yet latched.
+	private double             moveY     = 0.0;
+	private volatile long      trueX     = 0;     // Counts latched since power up (less the noise).
+	private volatile long      trueY     = 0;
+	private long               readings  = 0;
+	
+	public SimulatedFlowSensor (long seed) {
+		random = new Random(seed);
+		powerUpReset();
+	}
+	
+	/***********************************************************************************
+	 * Model settings.
+	 ***********************************************************************************/
+	
+	// Sets the rate of motion (counts/sec).  May be called from any thread.
+	public void setVelocity (double countsPerSecondX, double countsPerSecondY) {
+		velocityX = countsPerSecondX;
+		velocityY = countsPerSecondY;
+	}
+	
+	// Sets the surface quality (SQUAL, 0 to 255).  May be called from any thread.
+	public void setSqual (int squal) {
+		this.squal = squal;
+	}
+	
+	// Sets the standard deviation of the noise on each reading (counts).
+	public void setNoise (double counts) {
+		noise = counts;
+	}
+	
+	// Sets the SPI clock rate (0 => transfers take no time) and the fixed time of each transaction.
+	public void setBusTiming (double clockHz, double overheadSeconds) {
+		bus.setClock(clockHz);
+		bus.setOverhead(overheadSeconds);
+	}
+	
+	/***********************************************************************************
+	 * Model state.
+	 ***********************************************************************************/
+	public long trueX        () { return trueX; }       // Counts latched since power up, without the noise.
+	public long trueY        () { return trueY; }
+	public long readings     () { return readings; }    // Number of Motion reads.
+	public long transactions () { return bus.transactions(); }
+	public long bytes        () { return bus.bytes(); }
+	public long busyNanos    () { return bus.busyNanos(); }
+	
+	/***********************************************************************************
+	 * SPITransport
+	 ***********************************************************************************/
+	@Override
+	public int transaction (byte[] dataToSend, byte[] dataReceived, int size) {
+		
+		bus.transfer(size);
+		
+		if (size == 0) return 0;
+		
+		int     address = dataToSend[0] & 0x7F;
+		boolean isWrite = (dataToSend[0] & 0x80) != 0;
+		
+		if (isWrite) {
+			
+			if (size > 1) writeRegister(address, dataToSend[1]);
+			
+			for (int i = 0; i < size; i++) dataReceived[i] = 0;
+			
+			return size;
+		}
+		
+		dataReceived[0] = 0;
+		
+		readRegisters(address, bus.nanosPerByte(), dataReceived, 1, size - 1);
+		
+		return size;
+	}
+	
+	@Override
+	public int read (byte address, long delayNanos, byte[] dataReceived, int size) {
+		
+		bus.transfer(1 + size, delayNanos);
+		
+		readRegisters(address & 0x7F, bus.nanosPerByte() + delayNanos, dataReceived, 0, size);
+		
+		return size;
+	}
+	
+	// Reads "size" bytes from "address" into dataReceived from "offset", "delayNanos" after the address was sent.
+	private void readRegisters (int address, long delayNanos, byte[] dataReceived, int offset, int size) {
+		
+		if ((address == REGISTER_MOTION) || (address == REGISTER_MOTION_BURST)) latchMotion();
+		
+		for (int i = 0; i < size; i++) {
+		
+			if (delayNanos < READ_DELAY_NANOS)
+				dataReceived[offset + i] = 0;
+			else if (address == REGISTER_MOTION_BURST)
+				dataReceived[offset + i] = (i < burstRegisters.length) ? registers[burstRegisters[i]] : 0;
+			else
+				dataReceived[offset + i] = registers[(address + i) & 0x7F];
+		}
+	}
+	
+	@Override
+	public int write (byte[] data, int size) {
+		
+		bus.transfer(size);
+		
+		if ((size > 1) && ((data[0] & 0x80) != 0)) writeRegister(data[0] & 0x7F, data[1]);
+		
+		return size;
+	}
+	
+	private void writeRegister (int address, byte value) {
+		
+		if ((address == REGISTER_POWER_UP_RESET) && (value == (byte)0x5A)) {
+			powerUpReset();
+			return;
+		}
+		
+		// The identification and motion registers are read only.
+		if ((address <= REGISTER_SHUTTER_UPPER) || (address == REGISTER_OBSERVATION) || 
+			(address == REGISTER_MOTION_BURST)  || (address == REGISTER_INVERSE_PRODUCT_ID)) return;
+		
+		registers[address] = value;
+	}
+	
+	private void powerUpReset () {
+		
+		for (int i = 0; i < registers.length; i++) registers[i] = 0;
+		
+		registers[REGISTER_PRODUCT_ID]         = 0x49;
+		registers[REGISTER_INVERSE_PRODUCT_ID] = (byte)0xB6;
+		
+		lastUpdate = Instrumentation.timeNowNanos();
+		moveX      = 0.0;
+		moveY      = 0.0;
+	}
+	
+	// Latches the counts since the last reading into the Delta registers.
+	private void latchMotion () {
+		
+		long   now = Instrumentation.timeNowNanos();
+		double dt  = (now - lastUpdate) * 1.0e-9;
+		
+		lastUpdate = now;
+		moveX     += velocityX * dt;
+		moveY     += velocityY * dt;
+		
+		// Whole counts are reported, the fractions are kept for the next reading.
+		int countsX = (int)moveX;
+		int countsY = (int)moveY;
+		
+		moveX  -= countsX;
+		moveY  -= countsY;
+		trueX  += countsX;
+		trueY  += countsY;
+		readings++;
+		
+		int deltaX  = clamp(countsX + (int)Math.round(noise * random.nextGaussian()));
+		int deltaY  = clamp(countsY + (int)Math.round(noise * random.nextGaussian()));
+		int quality = squal;
+		
+		registers[REGISTER_MOTION]        = (byte)(((deltaX != 0) || (deltaY != 0)) ? 0x80 : 0x00);
+		registers[REGISTER_DELTA_X_L]     = (byte)deltaX;
+		registers[REGISTER_DELTA_X_H]     = (byte)(deltaX >> 8);
+		registers[REGISTER_DELTA_Y_L]     = (byte)deltaY;
+		registers[REGISTER_DELTA_Y_H]     = (byte)(deltaY >> 8);
+		registers[REGISTER_SQUAL]         = (byte)quality;
+		registers[REGISTER_OBSERVATION]   = (byte)0xBF;
+		registers[REGISTER_RAW_DATA_SUM]  = (byte)(quality / 2);
+		registers[REGISTER_MAX_RAW]       = (byte)0x80;
+		registers[REGISTER_MIN_RAW]       = (byte)0x10;
+		registers[REGISTER_SHUTTER_UPPER] = 0x00;
+		registers[REGISTER_SHUTTER_LOWER] = (byte)0x80;
+	}
+	
+	private static int clamp (int counts) {
+		return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, counts));
+	}
+	
+}
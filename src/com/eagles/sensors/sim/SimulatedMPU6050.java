@@ -0,0 +1,311 @@
+package com.eagles.sensors.sim;
+
+import java.util.Random;
+
+import org.usfirst.frc4579.instrumentation.Instrumentation;
+
+import com.eagles.sensors.I2CTransport;
+
+/***********************************************************************************
+ * SIMULATED MPU6050
+ * 
+ * An in-process model of the MPU6050 on the I2C bus, for running MPU6050_I2C
+ * off-robot:
+ * 
+ *     SimulatedMPU6050 device = new SimulatedMPU6050(4579);
+ *     MPU6050_I2C      mpu    = new MPU6050_I2C(ACCELFULLSCALE.ACCEL2G, GYROFULLSCALE.DEGSEC250, device);
+ * 
+ * The model has the register map used by MPU6050_I2C.  Once woken up (PWR_MGMT_1)
+ * it produces samples at the configured sample rate (SMPLRT_DIV and the DLPF
+ * setting of CONFIG) on the Instrumentation.timeNowNanos() time base: each sample
+ * updates the data registers, sets DATA_RDY in INT_STATUS (cleared when read) and,
+ * if enabled by USER_CTRL and FIFO_EN, is queued in the 1024 byte FIFO, which
+ * drops its oldest bytes when full and sets FIFO_OFLOW in INT_STATUS.  FIFO_COUNT
+ * and FIFO_R_W read the FIFO like the real chip.
+ * 
+ * The sensor is level and still except for a rotation about Z at the rate set by
+ * setRateZ().  Every axis has white noise, and the gyros have a constant bias.
+ * trueAngleZ() is the exact heading, to measure the error of the processing.
+ * 
+ * Transfers take the time of the real bus (see SimulatedBus), 400 kHz by default.
+ * read() and write() must be called from one thread at a time.
+ ***********************************************************************************/
+public class SimulatedMPU6050 implements I2CTransport {
+
+	private static final int REGISTER_SAMPLE_RATE      = 0x19,
+							 REGISTER_CONFIG           = 0x1A,
+							 REGISTER_GYRO_CONFIG      = 0x1B,
+							 REGISTER_ACCEL_CONFIG     = 0x1C,
+							 REGISTER_FIFO_ENABLE      = 0x23,
+							 REGISTER_INTERRUPT_STATUS = 0x3A,
+							 REGISTER_ACCEL            = 0x3B,
+							 REGISTER_USER_CTRL        = 0x6A,
+							 REGISTER_PWRMGMT_1        = 0x6B,
+							 REGISTER_FIFO_COUNT_H     = 0x72,
+							 REGISTER_FIFO_COUNT_L     = 0x73,
+							 REGISTER_FIFO_R_W         = 0x74,
+							 REGISTER_WHO_AM_I         = 0x75;
+	
+	private static final int    fifoSize            = 1024;
+	private static final int    dataReady           = 0x01;  // INT_STATUS bits.
+	private static final int    fifoOverflow        = 0x10;
+	private static final int    userCtrlFifoEnable  = 0x40;  // USER_CTRL bits.
+	private static final int    userCtrlFifoReset   = 0x04;
+	private static final int    pwrMgmtReset        = 0x80;  // PWR_MGMT_1 bits.
+	private static final int    pwrMgmtSleep        = 0x40;
+	private static final double tempRawPerDegF      = 1.0 / 0.0052941;  // The inverse of MPU6050_I2C's conversion.
+	
+	private final byte[]        registers   = new byte[128];
+	private final byte[]        fifo        = new byte[fifoSize];  // Circular.
+	private int                 fifoStart   = 0;                   // Index of the oldest byte.
+	private int                 fifoCount   = 0;
+	private final short[]       sample      = new short[7];        // AX, AY, AZ, TEMP, GX, GY, GZ, as in the data registers.
+	private final Random        random;
+	private final SimulatedBus  bus         = new SimulatedBus(9, 400000.0);
+	
+	// The motion and errors of the sensor.
+	private volatile double     rateZ       = 0.0;    // True Z rate (degrees/sec).
+	private double              gyroBias    = 0.5;    // Degrees/sec, all axes.
+	private double              gyroNoise   = 0.05;   // Standard deviation (degrees/sec).
+	private double              accelNoise  = 0.002;  // Standard deviation (g).
+	private double              tempF       = 77.0;
+	
+	private long                nextSampleTime;       // Time of the next sample (nanoseconds).
+	private volatile double     trueAngleZ   = 0.0;   // Degrees.
+	private volatile long       samples      = 0;     // Samples produced.
+	private long                fifoOverflows = 0;    // Bytes dropped from the FIFO.
+	
+	public SimulatedMPU6050 (long seed) {
+		random = new Random(seed);
+		powerOnReset();
+	}
+	
+	/***********************************************************************************
+	 * Model settings.
+	 ***********************************************************************************/
+	
+	// Sets the true Z rate (degrees/sec).  May be called from any thread.
+	public void setRateZ (double degreesPerSecond) {
+		rateZ = degreesPerSecond;
+	}
+	
+	// Sets the gyro bias (degrees/sec) and the standard deviations of the gyro (degrees/sec) and accelerometer (g) noise.
+	public void setErrors (double gyroBias, double gyroNoise, double accelNoise) {
+		this.gyroBias   = gyroBias;
+		this.gyroNoise  = gyroNoise;
+		this.accelNoise = accelNoise;
+	}
+	
+	public void setTemperature (double degreesF) {
+		tempF = degreesF;
+	}
+	
+	// Sets the I2C clock rate (0 => transfers take no time) and the fixed time of each transaction.
+	public void setBusTiming (double clockHz, double overheadSeconds) {
+		bus.setClock(clockHz);
+		bus.setOverhead(overheadSeconds);
+	}
+	
+	/***********************************************************************************
+	 * Model state.
+	 ***********************************************************************************/
+	public double trueAngleZ    () { return trueAngleZ; }     // Heading at the last sample (degrees).
+	public long   samples       () { return samples; }        // Samples produced.
+	public long   fifoOverflows () { return fifoOverflows; }  // Bytes dropped because the FIFO was full.
+	public long   transactions  () { return bus.transactions(); }
+	public long   bytes         () { return bus.bytes(); }
+	public long   busyNanos     () { return bus.busyNanos(); }  // Total time of the transfers.
+	
+	/***********************************************************************************
+	 * I2CTransport
+	 ***********************************************************************************/
+	@Override
+	public boolean read (int register, int count, byte[] buffer) {
+		
+		// Device address and register written, then the device address and the data read.
+		bus.transfer(3 + count);
+		
+		update();
+		
+		if (register == REGISTER_FIFO_R_W) {
+			for (int i = 0; i < count; i++) buffer[i] = popFifo();
+			return false;
+		}
+		
+		for (int i = 0; i < count; i++) buffer[i] = readRegister((register + i) & 0x7F);
+		
+		// Reading the status clears it.
+		if ((register <= REGISTER_INTERRUPT_STATUS) && (register + count > REGISTER_INTERRUPT_STATUS))
+			registers[REGISTER_INTERRUPT_STATUS] = 0;
+		
+		return false;
+	}
+	
+	@Override
+	public boolean write (int register, int data) {
+		
+		bus.transfer(3);
+		
+		update();
+		
+		register &= 0x7F;
+		
+		switch (register) {
+		
+		case REGISTER_PWRMGMT_1:
+			if ((data & pwrMgmtReset) != 0) {
+				powerOnReset();
+				return false;
+			}
+			break;
+			
+		case REGISTER_USER_CTRL:
+			if ((data & userCtrlFifoReset) != 0) {
+				fifoStart = 0;
+				fifoCount = 0;
+				data     &= ~userCtrlFifoReset;  // Self-clearing.
+			}
+			break;
+			
+		case REGISTER_INTERRUPT_STATUS:
+		case REGISTER_FIFO_COUNT_H:
+		case REGISTER_FIFO_COUNT_L:
+		case REGISTER_WHO_AM_I:
+			return false;  // Read only.
+		}
+		
+		registers[register] = (byte)data;
+		
+		return false;
+	}
+	
+	// The register values after power up: asleep, everything else zero.
+	private void powerOnReset () {
+		
+		for (int i = 0; i < registers.length; i++) registers[i] = 0;
+		
+		registers[REGISTER_PWRMGMT_1] = (byte)pwrMgmtSleep;
+		registers[REGISTER_WHO_AM_I]  = 0x68;
+		
+		fifoStart      = 0;
+		fifoCount      = 0;
+		nextSampleTime = Instrumentation.timeNowNanos();
+	}
+	
+	private byte readRegister (int register) {
+		
+		switch (register) {
+		case REGISTER_FIFO_COUNT_H: return (byte)(fifoCount >> 8);
+		case REGISTER_FIFO_COUNT_L: return (byte)fifoCount;
+		case REGISTER_FIFO_R_W:     return popFifo();
+		default:                    return registers[register];
+		}
+	}
+	
+	// Time between samples: the gyro output rate (8 kHz with the DLPF off, else 1 kHz) / (1 + SMPLRT_DIV).
+	private long samplePeriodNanos () {
+		
+		int    dlpf       = registers[REGISTER_CONFIG] & 0x07;
+		double outputRate = ((dlpf == 0) || (dlpf == 7)) ? 8000.0 : 1000.0;
+		
+		return (long)((1 + (registers[REGISTER_SAMPLE_RATE] & 0xFF)) * 1.0e9 / outputRate);
+	}
+	
+	// Produces the samples due by now.
+	private void update () {
+		
+		long now = Instrumentation.timeNowNanos();
+		
+		if ((registers[REGISTER_PWRMGMT_1] & pwrMgmtSleep) != 0) {
+			nextSampleTime = now;
+			return;
+		}
+		
+		long period = samplePeriodNanos();
+		
+		while (nextSampleTime <= now) {
+			produceSample(period);
+			nextSampleTime += period;
+		}
+	}
+	
+	private void produceSample (long periodNanos) {
+		
+		int    gyroRange   = (registers[REGISTER_GYRO_CONFIG ] >> 3) & 0x03;
+		int    accelRange  = (registers[REGISTER_ACCEL_CONFIG] >> 3) & 0x03;
+		double gyroPerDeg  = 131.0 / (1 << gyroRange);   // LSB per degree/sec.
+		double accelPerG   = 16384.0 / (1 << accelRange);
+		double rate        = rateZ;
+		
+		trueAngleZ += rate * periodNanos * 1.0e-9;
+		samples++;
+		
+		sample[0] = toShort((accelNoise * random.nextGaussian()) * accelPerG);
+		sample[1] = toShort((accelNoise * random.nextGaussian()) * accelPerG);
+		sample[2] = toShort((1.0 + accelNoise * random.nextGaussian()) * accelPerG);
+		sample[3] = toShort((tempF - 97.754) * tempRawPerDegF);
+		sample[4] = toShort((gyroBias + gyroNoise * random.nextGaussian()) * gyroPerDeg);
+		sample[5] = toShort((gyroBias + gyroNoise * random.nextGaussian()) * gyroPerDeg);
+		sample[6] = toShort((rate + gyroBias + gyroNoise * random.nextGaussian()) * gyroPerDeg);
+		
+		for (int i = 0; i < sample.length; i++) {
+			registers[REGISTER_ACCEL + 2 * i    ] = (byte)(sample[i] >> 8);
+			registers[REGISTER_ACCEL + 2 * i + 1] = (byte)sample[i];
+		}
+		
+		registers[REGISTER_INTERRUPT_STATUS] |= dataReady;
+		
+		if ((registers[REGISTER_USER_CTRL] & userCtrlFifoEnable) != 0) queueSample();
+	}
+	
+	// Queues the enabled data registers, in register order: accel, temp, gyro X, Y, Z.
+	private void queueSample () {
+		
+		int enable = registers[REGISTER_FIFO_ENABLE];
+		
+		if ((enable & 0x08) != 0) pushFifo(0, 3);  // ACCEL_FIFO_EN
+		if ((enable & 0x80) != 0) pushFifo(3, 1);  // TEMP_FIFO_EN
+		if ((enable & 0x40) != 0) pushFifo(4, 1);  // XG_FIFO_EN
+		if ((enable & 0x20) != 0) pushFifo(5, 1);  // YG_FIFO_EN
+		if ((enable & 0x10) != 0) pushFifo(6, 1);  // ZG_FIFO_EN
+	}
+	
+	private void pushFifo (int first, int count) {
+		
+		for (int i = first; i < first + count; i++) {
+			pushFifo((byte)(sample[i] >> 8));
+			pushFifo((byte)sample[i]);
+		}
+	}
+	
+	private void pushFifo (byte value) {
+		
+		// When full, the oldest byte is overwritten.
+		if (fifoCount == fifoSize) {
+			fifoStart = (fifoStart + 1) % fifoSize;
+			fifoCount--;
+			fifoOverflows++;
+			registers[REGISTER_INTERRUPT_STATUS] |= fifoOverflow;
+		}
+		
+		fifo[(fifoStart + fifoCount) % fifoSize] = value;
+		fifoCount++;
+	}
+	
+	private byte popFifo () {
+		
+		if (fifoCount == 0) return 0;
+		
+		byte value = fifo[fifoStart];
+		
+		fifoStart = (fifoStart + 1) % fifoSize;
+		fifoCount--;
+		
+		return value;
+	}
+	
+	private static short toShort (double value) {
+		return (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+	}
+	
+}
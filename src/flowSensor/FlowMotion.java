@@ -3,56 +3,232 @@ package flowSensor;
 import java.nio.ByteBuffer;
 
 import org.usfirst.frc4579.filters.AverageFilter;
-import org.usfirst.frc4579.testRobot2018.Robot;
+import org.usfirst.frc4579.filters.HampelFilter;
+import org.usfirst.frc4579.instrumentation.DebugTextFile;
+import org.usfirst.frc4579.instrumentation.Instrumentation;
 
+import com.eagles.sensors.SPITransport;
+import com.eagles.sensors.WPILibSPI;
+
+import edu.wpi.first.wpilibj.Notifier;
 import edu.wpi.first.wpilibj.SPI;
-import edu.wpi.first.wpilibj.SensorBase;
 import edu.wpi.first.wpilibj.Timer;
-import edu.wpi.first.wpilibj.smartdashboard.SendableBuilder;
 
-public class FlowMotion extends SensorBase  {
+// Not a SensorBase, so that the data processing can be used off-robot without the HAL (see SensorReplay).
+public class FlowMotion {
 	// Variables for the SPI interface and sensor data.
-	private SPI flow = new SPI(SPI.Port.kOnboardCS0);
+	private SPITransport flow;									//SPI bus or simulated sensor.  Created by init() if not given.
 	private ByteBuffer regBuffer = ByteBuffer.allocate(12);    //SPI transaction buffer.
-	private ByteBuffer longBuffer = ByteBuffer.allocate(12);   //SPI transaction buffer.
-	private byte[] counts = new byte[5];					//Byte buffer for received data.
 	private int oldDeltaX, oldDeltaY;						//Previous readings.
 	public int deltaX, deltaY;								//Current readings.
 	public int accumDeltaX, accumDeltaY = 0;				//Accumulated readings.
 	public double rateX, rateY = 0.0;						//Calculated instantaneous motion rate, counts/sec.
+	
+	//The sensor is on the onboard SPI port with its chip select on a DIO, so that it stays selected from the
+	//address to the data of a read (see WPILibSPI).  The port's own chip select (CS1) isn't connected.
+	private static final SPI.Port SPI_PORT = SPI.Port.kOnboardCS1;
+	private static final int CHIP_SELECT_DIO = 9;
+	
+	//A read waits this long between the address and the data.  The PMW3901 needs at least 35 us (tSRAD),
+	//and the Bitcraze driver waits 50 us.
+	private static final long READ_DELAY_NANOS = 50000;
+	
+	//Motion_Burst read (see getCounts()): Motion, Observation, Delta_X_L/H, Delta_Y_L/H, SQUAL,
+	//RawData_Sum, Maximum_RawData, Minimum_RawData, Shutter_Upper and Shutter_Lower.
+	private static final byte REGISTER_MOTION_BURST = 0x16;
+	private static final int  BURST_BYTES = 12;
+	private final byte[] burstData = new byte[BURST_BYTES];	//Received registers.
+	
+	//The latest reading's time and quality.
+	public long sampleTime = 0;								//Time of the reading (nanoseconds, see Instrumentation.timeNowNanos()).
+	public int squal = 0;									//Surface quality: number of features seen (0 to 255).
+	public int rawDataSum = 0;								//Average brightness of the image, / 32 (0 to 255).
+	public int shutter = 0;									//Exposure time (clock cycles): high over a dark or shiny surface.
+	public int observation = 0;								//Observation register: 0xBF while the sensor is working.
 	public AverageFilter filteredDeltaX = new AverageFilter(5);
 	public AverageFilter filteredDeltaY = new AverageFilter(5);
+	private HampelFilter outlierX, outlierY;				//Spurious reading rejection, null if off (see setOutlierRejection()).
+	private long oldTime = 0;								//Time of the previous reading (nanoseconds).
+	
+	//Reading quality (see setQualityLimits()).  Every reading is scored; bad readings are only
+	//rejected if gating is on (see setQualityGating()).
+	public static final int QUALITY_WINDOW = 50;			//Readings in the rolling quality (half a second).
+	private int minSqual = 0x19;							//Fewer features than this => bad (PMW3901 datasheet).
+	private int goodSqual = 0x32;							//Features for a score of 1.
+	private int maxShutter = 0x1F00;						//Exposure at its limit (Shutter_Upper 0x1F) => bad.
+	private int minRawDataSum = 4;							//A nearly black image => bad (lifted, or no LED).
+	private boolean qualityGating = false;					//True => bad readings are rejected.
+	public double quality = 0.0;							//Score of the latest reading, 0 (bad) to 1.
+	private AverageFilter qualityFilter = new AverageFilter(QUALITY_WINDOW);
+	private long numBadReadings = 0;						//Readings scored 0.
+	
+	//Sampling thread (see startSampling()).
+	public static final double SAMPLE_PERIOD = 0.01;			//Time between readings (seconds).
+	private Notifier sampler;
+	private volatile boolean resetRequested = false;		//True => reset at the next reading.
+	private long totalX, totalY = 0;						//Every delta since construction, never reset.
+	private long originX, originY = 0;						//Totals at the last reset.
+	private long numReadings = 0;
+	
+	//Latest totals, published with a sequence lock (see publishSnapshot()).
+	private volatile long snapshotSeq = 0;					//Odd while the snapshot is being written.
+	private volatile long snapshotTime = 0;
+	private volatile long snapshotTotalX = 0;
+	private volatile long snapshotTotalY = 0;
+	private volatile long snapshotOriginX = 0;
+	private volatile long snapshotOriginY = 0;
+	private volatile double snapshotRateX = 0.0;
+	private volatile double snapshotRateY = 0.0;
+	private volatile int snapshotSqual = 0;
+	private volatile double snapshotQuality = Double.NaN;
+	private volatile long snapshotBadReadings = 0;
+	private volatile long snapshotReadings = 0;
+	
+	//Every reading and reset, so that the motion can be replayed off-robot (see SensorReplay).
+	private DebugTextFile flowData = new DebugTextFile("flowData", true, 
+			new String[] {"Motion", "DeltaX", "DeltaY", "Squal", "RawDataSum", "Shutter", "Reset"}, 30000);
+	private final double[] flowDataRow = new double[7];
+	private volatile boolean logging = true;				//False => nothing is logged (see setLogging()).
+	
+	public FlowMotion() {
+	}
+	
+	//Constructor for a sensor on another transport (e.g. a simulated sensor, see com.eagles.sensors.sim).
+	public FlowMotion(SPITransport transport) {
+		flow = transport;
+	}
+	
+	//Rejects spurious readings: deltas further from the median of the last "windowSize" readings than
+	//"numSigmas" standard deviations, and at least "minCounts", are replaced by the median (see HampelFilter).
+	public void setOutlierRejection(int windowSize, double numSigmas, double minCounts) {
+		outlierX = new HampelFilter(windowSize, numSigmas, minCounts);
+		outlierY = new HampelFilter(windowSize, numSigmas, minCounts);
+	}
+	
+	//Selects whether the readings and resets are logged.  On by default.  The robot only logs while it is
+	//enabled, so that a robot left on while disabled doesn't fill the flash.
+	public void setLogging(boolean log) {
+		logging = log;
+	}
 	
+	//Sets the limits of a good reading: at least "minSqual" surface features (a score of 1 from
+	//"goodSqual" up), an exposure ("shutter") below "maxShutter" and a brightness ("rawDataSum") of
+	//at least "minRawDataSum".
+	public void setQualityLimits(int minSqual, int goodSqual, int maxShutter, int minRawDataSum) {
+		this.minSqual      = minSqual;
+		this.goodSqual     = Math.max(goodSqual, minSqual + 1);
+		this.maxShutter    = maxShutter;
+		this.minRawDataSum = minRawDataSum;
+	}
+	
+	//Rejects (zeroes) the deltas of readings that score 0, as when there is no motion.  Off by default.
+	public void setQualityGating(boolean reject) {
+		qualityGating = reject;
+	}
+	
+	//Scores a reading from 0 (bad: the sensor can't see the surface) to 1 (enough surface features).
+	private double scoreReading(int squal, int rawDataSum, int shutter) {
+		if ((squal < minSqual) || (shutter >= maxShutter) || (rawDataSum < minRawDataSum)) return 0.0;
+		
+		return Math.min(1.0, (double)(squal - minSqual + 1) / (goodSqual - minSqual + 1));
+	}
+	
+	//Sets the position to zero.  If the sampling thread is running the reset is done by that thread,
+	//before its next reading, so until then getSnapshot() returns the old position.  A reader that needs
+	//the reset at once can keep its own origin from the totals (see measurement.resetFlowMotion()).
 	public void reset(){
+		if (sampler != null)
+			resetRequested = true;
+		else
+			applyReset();
+		}
+	
+	private void applyReset() {
 		accumDeltaX = 0;
 		accumDeltaY = 0;
+		originX = totalX;
+		originY = totalY;
+		publishSnapshot(oldTime);
+		logCounts(Instrumentation.timeNowNanos(), (byte)0, 0, 0, 0, 0, 0, true);
+	}
+	
+	/***********************************************************************************
+	 * Sampling thread.
+	 * 
+	 * startSampling() reads the sensor on its own thread (a Notifier) every SAMPLE_PERIOD,
+	 * faster than the robot loop, so that its counters don't saturate at speed.  Every
+	 * delta is added to totals that are never reset or filtered, so no count is lost.
+	 * The robot loop gets the totals with getSnapshot() without waiting on the SPI bus.
+	 ***********************************************************************************/
+	public void startSampling() {
+		if (sampler != null) return;
+		
+		if (flow == null) throw new RuntimeException("FlowMotion: init() must be called before sampling starts.");
+		
+		sampler = new Notifier(this::poll);
+		sampler.startPeriodic(SAMPLE_PERIOD);
+	}
+	
+	public boolean isSampling() {
+		return sampler != null;
+	}
+	
+	//Takes one reading.  Called by the sampling thread every SAMPLE_PERIOD.  May be called directly
+	//instead of starting the thread, e.g. by a benchmark running off-robot (see SensorPathBenchmark).
+	public void poll() {
+		if (resetRequested) {
+			resetRequested = false;
+			applyReset();
 		}
 	
+		readCounts();
+	}
+	
+	//Reads the motion since the last reading.  Not used once the sampling thread is started.
 	public void getCounts() {
-		double newTime, deltaTime, oldTime = 0.0;		//delta time variables.
-		newTime = Timer.getFPGATimestamp();	
-		deltaTime = newTime - oldTime;
-		oldTime = newTime;
+		if (sampler != null) throw new RuntimeException("FlowMotion: getCounts() called while the sampling thread is running.");
 		
-		regBuffer.put(0, (byte)(2));              //Start with Reg No. 0x02.
-		flow.transaction(regBuffer, longBuffer, 12);  //Do the SPI transaction.
-		for (int i=0; i<5; i++) counts[i] = longBuffer.get(i);  //Get the returned bytes into the array.
+		readCounts();
+	}
+	
+	//Reads the motion since the last reading, and its quality, in one Motion_Burst read.  No
+	//output and nothing allocated, as it's called every reading.
+	private void readCounts() {
+		long newTime = Instrumentation.timeNowNanos();
+		
+		flow.read(REGISTER_MOTION_BURST, READ_DELAY_NANOS, burstData, BURST_BYTES);
 
-		/*Alternate diagnostic code segment to print out all the sensor registers, in hex.
-		regBuffer.put(0, (byte)(2));
-		flow.transaction(regBuffer,  testBuffer, 12);
-		for (int i=0; i<11; i++) System.out.printf(" %02X", (byte)testBuffer.get(i));
-		System.out.println();
-		*/
-		
-		//Diagnostic: print the byte at Reg 02.
-		//Convert the returned bytes to signed int's.
-		deltaX = (counts[2] << 8) | (counts[1] & 0x000000FF);
-		deltaY = (counts[4] << 8) | (counts[3] & 0x000000FF);
-		System.out.printf(" %02X  %02X%02X  %02X%02X  %d\n", (byte)counts[0], (byte)counts[2], (byte)counts[1], (byte)counts[4], (byte)counts[3], deltaX);
+		//Convert the returned bytes to signed int's (deltas) and unsigned int's (the rest).
+		byte motion        = burstData[0];
+		observation        = burstData[1] & 0xFF;
+		int  rawDeltaX     = (burstData[3] << 8) | (burstData[2] & 0xFF);
+		int  rawDeltaY     = (burstData[5] << 8) | (burstData[4] & 0xFF);
+		int  newSqual      = burstData[6] & 0xFF;
+		int  newRawDataSum = burstData[7] & 0xFF;
+		int  newShutter    = ((burstData[10] & 0xFF) << 8) | (burstData[11] & 0xFF);
+		
+		logCounts(newTime, motion, rawDeltaX, rawDeltaY, newSqual, newRawDataSum, newShutter, false);
+		processCounts(newTime, motion, rawDeltaX, rawDeltaY, newSqual, newRawDataSum, newShutter);
+	//End of readCounts().
+	}
+	
+	//Processes one reading: the motion register, the signed deltas and the quality registers.  Called
+	//by getCounts(), and with logged readings to replay them off-robot.
+	public void processCounts(long newTime, byte motion, int rawDeltaX, int rawDeltaY, int squal, int rawDataSum, int shutter) {
+		//Rates need the time since the previous reading, so the first reading has none.
+		double deltaTime = (oldTime == 0) ? 0.0 : Instrumentation.nanosToSeconds(newTime - oldTime);
+		oldTime = newTime;
+		
+		sampleTime      = newTime;
+		this.squal      = squal;
+		this.rawDataSum = rawDataSum;
+		this.shutter    = shutter;
+		
+		deltaX = rawDeltaX;
+		deltaY = rawDeltaY;
 
 		//Test for motion, and zero the data if none.
- 		if ((byte)(counts[0] & 0x80) != (byte)0x80) {
+ 		if ((byte)(motion & 0x80) != (byte)0x80) {
  			deltaX = 0;
  			deltaY = 0;
  		}
@@ -60,58 +236,140 @@ public class FlowMotion extends SensorBase  {
 // 		deltaY = (int)((.5*deltaY)+(.5*oldDeltaY));
  		
 
-		//		if (Math.abs(deltaX) > 250)  {
-//			deltaX = oldDeltaX;	//Reject spurious readings.
-//			System.out.printf("*** Max deltaX!  %02x%02x%02x%02x%02x\n", (byte)counts[0], (byte)counts[1], (byte)counts[2], (byte)counts[3], (byte)counts[4]);
-//		}
-//		if (Math.abs(deltaY) > 124)  {
-//			deltaY = oldDeltaY;
-//			System.out.printf("*** Max deltaX!  %02x%02x%02x%02x%02x\n", (byte)counts[0], (byte)counts[1], (byte)counts[2], (byte)counts[3], (byte)counts[4]);
-//		}
+		//Score the reading, and reject it if bad (see setQualityGating()).
+		quality = scoreReading(squal, rawDataSum, shutter);
+		qualityFilter.accumulate(quality);
+		
+		if (quality == 0.0) {
+			numBadReadings++;
+			
+			if (qualityGating) {
+				deltaX = 0;
+				deltaY = 0;
+			}
+		}
+		
+		//Reject spurious readings (see setOutlierRejection()).
+		if (outlierX != null) {
+			deltaX = (int)Math.round(outlierX.filter(deltaX));
+			deltaY = (int)Math.round(outlierY.filter(deltaY));
+		}
 		oldDeltaX = deltaX;									//Save the newest readings.
 		oldDeltaY = deltaY;
 		accumDeltaX += filteredDeltaX.filter(deltaX);		//Accumulate the latest readings.
 		accumDeltaY += filteredDeltaY.filter(deltaY);
-		rateX = deltaX /  deltaTime;						//Calculate the rates.
-		rateY = deltaY /  deltaTime;
-	//End of getCounts().
+		rateX = (deltaTime > 0.0) ? deltaX / deltaTime : 0.0;	//Calculate the rates.
+		rateY = (deltaTime > 0.0) ? deltaY / deltaTime : 0.0;
+		totalX += deltaX;									//Every count, for the sampling thread's totals.
+		totalY += deltaY;
+		numReadings++;
+		publishSnapshot(newTime);
+	//End of processCounts().
+	}
+	
+	//Publishes the totals for other threads.  The sequence number is odd while the data is being
+	//changed, so a reader can tell if it read a mix of old and new data.
+	private void publishSnapshot(long time) {
+		long seq = snapshotSeq;
+		
+		snapshotSeq         = seq + 1;
+		snapshotTime        = time;
+		snapshotTotalX      = totalX;
+		snapshotTotalY      = totalY;
+		snapshotOriginX     = originX;
+		snapshotOriginY     = originY;
+		snapshotRateX       = rateX;
+		snapshotRateY       = rateY;
+		snapshotSqual       = squal;
+		snapshotQuality     = qualityFilter.average();
+		snapshotBadReadings = numBadReadings;
+		snapshotReadings    = numReadings;
+		snapshotSeq         = seq + 2;
+	}
+	
+	/***********************************************************************************
+	 * Motion totals from one reading.
+	 ***********************************************************************************/
+	public static class Snapshot {
+		public long   timeNanos   = 0;	//Time of the reading (see Instrumentation.timeNowNanos()).
+		public long   totalX      = 0;	//Every count since construction (never reset).
+		public long   totalY      = 0;
+		public long   x           = 0;	//Counts since the last reset.
+		public long   y           = 0;
+		public double rateX       = 0.0;	//Rate at the reading (counts/sec).
+		public double rateY       = 0.0;
+		public int    squal       = 0;	//Surface quality at the reading.
+		public double quality     = Double.NaN;	//Average score of the last QUALITY_WINDOW readings (NaN before the first).
+		public long   badReadings = 0;	//Readings scored 0 so far (rejected if gating is on).
+		public long   readings    = 0;	//Number of readings so far.
+	}
+	
+	//Copies the latest totals into "snapshot".  Never waits for the sampling thread except to retry
+	//if it published a new reading during the copy.
+	public void getSnapshot(Snapshot snapshot) {
+		long seq;
+		
+		do {
+			seq = snapshotSeq;
+			
+			snapshot.timeNanos   = snapshotTime;
+			snapshot.totalX      = snapshotTotalX;
+			snapshot.totalY      = snapshotTotalY;
+			snapshot.x           = snapshotTotalX - snapshotOriginX;
+			snapshot.y           = snapshotTotalY - snapshotOriginY;
+			snapshot.rateX       = snapshotRateX;
+			snapshot.rateY       = snapshotRateY;
+			snapshot.squal       = snapshotSqual;
+			snapshot.quality     = snapshotQuality;
+			snapshot.badReadings = snapshotBadReadings;
+			snapshot.readings    = snapshotReadings;
+			
+		} while (((seq & 1) != 0) || (seq != snapshotSeq));
+	}
+	
+	private void logCounts(long time, byte motion, int rawDeltaX, int rawDeltaY, int squal, int rawDataSum, int shutter, boolean isReset) {
+		if (!logging) return;
+		
+		flowDataRow[0] = motion;
+		flowDataRow[1] = rawDeltaX;
+		flowDataRow[2] = rawDeltaY;
+		flowDataRow[3] = squal;
+		flowDataRow[4] = rawDataSum;
+		flowDataRow[5] = shutter;
+		flowDataRow[6] = isReset ? 1.0 : 0.0;
+		flowData.record(time, flowDataRow);
 	}
 	
 	  private void registerWrite(byte reg, byte value)  {
 		  regBuffer.put(0, (byte)(reg | 0x80));				//The high bit required by the sensor reg address.
 		  regBuffer.put(1, (byte)value);
 		  //System.out.printf("Reg Write: %02x%02x\n", writeBuffer.get(0), writeBuffer.get(1));
-		  flow.transaction(regBuffer, regBuffer, 2);		//Simple SPI transaction.
+		  flow.transaction(regBuffer.array(), regBuffer.array(), 2);		//Simple SPI transaction.
+	  }
+	  
+	  private byte registerRead(byte reg) {
+		  flow.read(reg, READ_DELAY_NANOS, regBuffer.array(), 1);
+		  return regBuffer.get(0);
 	  }
 	  
 	  public boolean init() {
 	    //Initialize the SPI interface.
-		flow.setClockRate(800000);					//SPI settings.
-		flow.setChipSelectActiveLow();
-		flow.setClockActiveHigh();
-		flow.setSampleDataOnRising();
-		flow.setMSBFirst();
-		flow.resetAccumulator();
-		flow.freeAuto();
+		if (flow == null) flow = new WPILibSPI(SPI_PORT, 800000, CHIP_SELECT_DIO);
 		System.out.println("End of SPI set up.");
 		// Power on reset the sensor.
 		regBuffer.put(0, (byte)0x3A);				//Send these two addresses to the Flow Breakout to POR.
 		regBuffer.put(1, (byte)0x5A);
-		flow.write(regBuffer, 2);
+		flow.write(regBuffer.array(), 2);
 	    //System.out.println("End of Sensor Power On Reset.");
 		
 	    Timer.delay(.005);  // 5 millisecond delay
 
 	    // Test the SPI communication, checking chipId and inverse chipId
-		regBuffer.put(0, (byte)0x00);
-		flow.transaction(regBuffer, regBuffer, 2);
-		System.out.printf("chipId:  %02x    %02x\n", (byte)0x49, regBuffer.get(1));
-		byte chipId = regBuffer.get(1);
+		byte chipId = registerRead((byte)0x00);
+		System.out.printf("chipId:  %02x    %02x\n", (byte)0x49, chipId);
 		
-		regBuffer.put(0, (byte)0x5F);
-		flow.transaction(regBuffer, regBuffer, 2); 
-		System.out.printf("dIpihc:  %02x    %02x\n", (byte)0xB6, regBuffer.get(1));
-		byte dIpihc = regBuffer.get(1);
+		byte dIpihc = registerRead((byte)0x5F);
+		System.out.printf("dIpihc:  %02x    %02x\n", (byte)0xB6, dIpihc);
 		
 		if (chipId == (byte)0x49 && dIpihc == (byte)0xB6) {
 			System.out.println("Motion Sensor is on line!");
@@ -201,10 +459,5 @@ public class FlowMotion extends SensorBase  {
 		return false;
 	// End of Init().
 	}
-
-	@Override
-	public void initSendable(SendableBuilder builder) {
-		// TODO Auto-generated method stub
-	}
 //End of FlowMotion Class definition.
 }
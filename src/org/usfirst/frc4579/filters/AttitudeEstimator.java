@@ -0,0 +1,291 @@
+package org.usfirst.frc4579.filters;
+
+/*************************************************************************************
+ * ATTITUDE ESTIMATOR
+ *
+ * Estimates the 3D attitude of the robot from a 3 axis gyro and a 3 axis
+ * accelerometer (e.g. the MPU6050), as a quaternion.  The gyro rates are integrated,
+ * and the accelerometer's measure of "down" corrects the drift of roll and pitch.
+ * There is no magnetometer, so yaw is the integrated gyro only.
+ *
+ * Two fusion algorithms are available:
+ *
+ *   MADGWICK - a gradient descent step towards the measured gravity each sample,
+ *              weighted by beta (S. Madgwick, 2010).
+ *   MAHONY   - a PI controller on the error between the measured and estimated
+ *              gravity, added to the gyro rates (R. Mahony et al., 2008).
+ *
+ * Call update() with every sample, at the sensor's sample rate.  It does no
+ * allocation and a few dozen multiplies (well under a microsecond), so it keeps up
+ * with a 1 kHz sensor.  Rates are in degrees/sec and accelerations in g, in the
+ * sensor's frame: Z up when level.  Angles are returned in degrees, using the Z-Y-X
+ * (yaw, pitch, roll) convention.
+ *
+ * The accelerometer is also used, with the estimated gravity removed, to give the
+ * acceleration due to motion, in the sensor's frame and in the level (field) frame.
+ *************************************************************************************/
+
+public class AttitudeEstimator {
+
+	public enum Algorithm { MADGWICK, MAHONY };
+
+	private static final double DEG_TO_RAD = Math.PI / 180.0;
+	private static final double RAD_TO_DEG = 180.0 / Math.PI;
+
+	private final Algorithm algorithm;
+	private double          beta     = 0.1;   // Madgwick gain.
+	private double          twoKp    = 1.0;   // Mahony proportional gain (x2).
+	private double          twoKi    = 0.0;   // Mahony integral gain (x2).
+
+	// Attitude: rotation from the sensor frame to the level frame.
+	private double          q0 = 1.0, q1 = 0.0, q2 = 0.0, q3 = 0.0;
+	private boolean         initialized = false;     // False => set the tilt from the first acceleration.
+
+	// Mahony integral of the gravity error (radians/sec).
+	private double          integralX = 0.0, integralY = 0.0, integralZ = 0.0;
+
+	// Acceleration less gravity (g), in the sensor frame and the level frame.
+	private double          linearX = 0.0, linearY = 0.0, linearZ = 0.0;
+	private double          levelX  = 0.0, levelY  = 0.0, levelZ  = 0.0;
+
+	//*************************************************************************************
+	// Constructor.
+	//*************************************************************************************
+	public AttitudeEstimator (Algorithm algorithm) {
+		this.algorithm = algorithm;
+	}
+
+	// Sets the Madgwick gain: larger corrects tilt faster but lets more acceleration through.
+	public void setBeta (double beta) {
+		this.beta = beta;
+	}
+
+	// Sets the Mahony gains.
+	public void setGains (double kp, double ki) {
+		twoKp = 2.0 * kp;
+		twoKi = 2.0 * ki;
+	}
+
+	//*************************************************************************************
+	// Adds one sample: rates in degrees/sec, accelerations in g, dt in seconds since the
+	// last sample.
+	//*************************************************************************************
+	public void update (double gx, double gy, double gz, double ax, double ay, double az, double dt) {
+
+		double aNorm2 = ax * ax + ay * ay + az * az;
+
+		if (!initialized) {
+
+			// Start level-corrected, so that the tilt doesn't have to converge from level.
+			if (aNorm2 > 0.0) setTilt(ax, ay, az);
+
+			initialized = true;
+		}
+
+		gx *= DEG_TO_RAD;
+		gy *= DEG_TO_RAD;
+		gz *= DEG_TO_RAD;
+
+		if (algorithm == Algorithm.MADGWICK)
+			updateMadgwick(gx, gy, gz, ax, ay, az, aNorm2, dt);
+		else
+			updateMahony(gx, gy, gz, ax, ay, az, aNorm2, dt);
+
+		computeLinearAcceleration(ax, ay, az);
+	}
+
+	private void updateMadgwick (double gx, double gy, double gz, double ax, double ay, double az, double aNorm2, double dt) {
+
+		// Rate of change of the quaternion from the gyro.
+		double qDot0 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz);
+		double qDot1 = 0.5 * ( q0 * gx + q2 * gz - q3 * gy);
+		double qDot2 = 0.5 * ( q0 * gy - q1 * gz + q3 * gx);
+		double qDot3 = 0.5 * ( q0 * gz + q1 * gy - q2 * gx);
+
+		// Step towards the measured gravity (skipped if the accelerometer reads nothing).
+		if (aNorm2 > 0.0) {
+
+			double recipNorm = 1.0 / Math.sqrt(aNorm2);
+
+			ax *= recipNorm;
+			ay *= recipNorm;
+			az *= recipNorm;
+
+			double _2q0 = 2.0 * q0, _2q1 = 2.0 * q1, _2q2 = 2.0 * q2, _2q3 = 2.0 * q3;
+			double _4q0 = 4.0 * q0, _4q1 = 4.0 * q1, _4q2 = 4.0 * q2;
+			double _8q1 = 8.0 * q1, _8q2 = 8.0 * q2;
+			double q0q0 = q0 * q0 , q1q1 = q1 * q1 , q2q2 = q2 * q2 , q3q3 = q3 * q3;
+
+			// Gradient of the gravity error.
+			double s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+			double s1 = _4q1 * q3q3 - _2q3 * ax + 4.0 * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+			double s2 = 4.0 * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+			double s3 = 4.0 * q1q1 * q3 - _2q1 * ax + 4.0 * q2q2 * q3 - _2q2 * ay;
+
+			double sNorm2 = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+
+			if (sNorm2 > 0.0) {
+
+				double step = beta / Math.sqrt(sNorm2);
+
+				qDot0 -= step * s0;
+				qDot1 -= step * s1;
+				qDot2 -= step * s2;
+				qDot3 -= step * s3;
+			}
+		}
+
+		q0 += qDot0 * dt;
+		q1 += qDot1 * dt;
+		q2 += qDot2 * dt;
+		q3 += qDot3 * dt;
+
+		normalize();
+	}
+
+	private void updateMahony (double gx, double gy, double gz, double ax, double ay, double az, double aNorm2, double dt) {
+
+		// Feed back the error between the measured and estimated gravity (skipped if the accelerometer reads nothing).
+		if (aNorm2 > 0.0) {
+
+			double recipNorm = 1.0 / Math.sqrt(aNorm2);
+
+			ax *= recipNorm;
+			ay *= recipNorm;
+			az *= recipNorm;
+
+			// Estimated gravity (half).
+			double halfVx = q1 * q3 - q0 * q2;
+			double halfVy = q0 * q1 + q2 * q3;
+			double halfVz = q0 * q0 - 0.5 + q3 * q3;
+
+			// Error: cross product of the measured and estimated gravity.
+			double halfEx = ay * halfVz - az * halfVy;
+			double halfEy = az * halfVx - ax * halfVz;
+			double halfEz = ax * halfVy - ay * halfVx;
+
+			if (twoKi > 0.0) {
+				integralX += twoKi * halfEx * dt;
+				integralY += twoKi * halfEy * dt;
+				integralZ += twoKi * halfEz * dt;
+				gx += integralX;
+				gy += integralY;
+				gz += integralZ;
+			}
+
+			gx += twoKp * halfEx;
+			gy += twoKp * halfEy;
+			gz += twoKp * halfEz;
+		}
+
+		gx *= 0.5 * dt;
+		gy *= 0.5 * dt;
+		gz *= 0.5 * dt;
+
+		double qa = q0, qb = q1, qc = q2;
+
+		q0 += -qb * gx - qc * gy - q3 * gz;
+		q1 +=  qa * gx + qc * gz - q3 * gy;
+		q2 +=  qa * gy - qb * gz + q3 * gx;
+		q3 +=  qa * gz + qb * gy - qc * gx;
+
+		normalize();
+	}
+
+	// Removes gravity (the level frame's Z, rotated into the sensor frame) from the acceleration.
+	private void computeLinearAcceleration (double ax, double ay, double az) {
+
+		double gravityX = 2.0 * (q1 * q3 - q0 * q2);
+		double gravityY = 2.0 * (q0 * q1 + q2 * q3);
+		double gravityZ = q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3;
+
+		linearX = ax - gravityX;
+		linearY = ay - gravityY;
+		linearZ = az - gravityZ;
+
+		// Rotate into the level frame: v' = q v q*.
+		levelX = (1.0 - 2.0 * (q2 * q2 + q3 * q3)) * linearX + 2.0 * (q1 * q2 - q0 * q3) * linearY + 2.0 * (q1 * q3 + q0 * q2) * linearZ;
+		levelY = 2.0 * (q1 * q2 + q0 * q3) * linearX + (1.0 - 2.0 * (q1 * q1 + q3 * q3)) * linearY + 2.0 * (q2 * q3 - q0 * q1) * linearZ;
+		levelZ = 2.0 * (q1 * q3 - q0 * q2) * linearX + 2.0 * (q2 * q3 + q0 * q1) * linearY + (1.0 - 2.0 * (q1 * q1 + q2 * q2)) * linearZ;
+	}
+
+	private void normalize () {
+
+		double recipNorm = 1.0 / Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+
+		q0 *= recipNorm;
+		q1 *= recipNorm;
+		q2 *= recipNorm;
+		q3 *= recipNorm;
+	}
+
+	// Sets the attitude to the roll and pitch measured by the accelerometer, with a yaw of zero.
+	private void setTilt (double ax, double ay, double az) {
+
+		double roll  = Math.atan2(ay, az);
+		double pitch = Math.atan2(-ax, Math.sqrt(ay * ay + az * az));
+
+		double cr = Math.cos(0.5 * roll) , sr = Math.sin(0.5 * roll);
+		double cp = Math.cos(0.5 * pitch), sp = Math.sin(0.5 * pitch);
+
+		q0 = cr * cp;
+		q1 = sr * cp;
+		q2 = cr * sp;
+		q3 = -sr * sp;
+	}
+
+	//*************************************************************************************
+	// Sets the yaw to zero, keeping the roll and pitch (e.g. when the heading is reset).
+	//*************************************************************************************
+	public void resetYaw () {
+
+		// Rotate about the level frame's Z by -yaw: q = (cos(-yaw/2), 0, 0, sin(-yaw/2)) * q.
+		double halfYaw = -0.5 * Math.atan2(2.0 * (q1 * q2 + q0 * q3), 1.0 - 2.0 * (q2 * q2 + q3 * q3));
+		double c       = Math.cos(halfYaw);
+		double s       = Math.sin(halfYaw);
+		double a0 = q0, a1 = q1, a2 = q2, a3 = q3;
+
+		q0 = c * a0 - s * a3;
+		q1 = c * a1 - s * a2;
+		q2 = c * a2 + s * a1;
+		q3 = c * a3 + s * a0;
+
+		normalize();
+	}
+
+	//*************************************************************************************
+	// Starts over: level, with a yaw of zero, until the next update() sets the tilt.
+	//*************************************************************************************
+	public void reset () {
+		q0 = 1.0;
+		q1 = q2 = q3 = 0.0;
+		integralX = integralY = integralZ = 0.0;
+		initialized = false;
+	}
+
+	//*************************************************************************************
+	// Results.
+	//*************************************************************************************
+
+	// Angles (degrees).
+	public double roll  () { return RAD_TO_DEG * Math.atan2(q0 * q1 + q2 * q3, 0.5 - q1 * q1 - q2 * q2); }
+	public double pitch () { return RAD_TO_DEG * Math.asin(Math.max(-1.0, Math.min(1.0, -2.0 * (q1 * q3 - q0 * q2)))); }
+	public double yaw   () { return RAD_TO_DEG * Math.atan2(q1 * q2 + q0 * q3, 0.5 - q2 * q2 - q3 * q3); }
+
+	// Acceleration less gravity, in the sensor frame (g).
+	public double linearAccelX () { return linearX; }
+	public double linearAccelY () { return linearY; }
+	public double linearAccelZ () { return linearZ; }
+
+	// Acceleration less gravity, in the level frame: X and Y level, Z up, yaw as above (g).
+	public double levelAccelX () { return levelX; }
+	public double levelAccelY () { return levelY; }
+	public double levelAccelZ () { return levelZ; }
+
+	// The attitude quaternion (w, x, y, z).
+	public double q0 () { return q0; }
+	public double q1 () { return q1; }
+	public double q2 () { return q2; }
+	public double q3 () { return q3; }
+
+}
@@ -7,15 +7,29 @@ package org.usfirst.frc4579.filters;
  * is also available.  The class is instantiated with the max number of samples that
  * should be averaged.
  *
+ * The mean and the sum of squared differences from it are updated with each sample
+ * (Welford's method, extended to remove the sample leaving the window), so adding a
+ * sample and getting the average or standard deviation take the same time whatever the
+ * window size.  Once per window the sums are recomputed from the samples so that
+ * rounding errors can't build up.
+ *
+ * As with FirstOrderLPF, there are array versions for replaying logs: filter(in, out, n),
+ * filter(channels, in, out, n) for interleaved channels and filterAll(filters, in, out, n)
+ * for many filters over the same samples.  They give exactly the results of filter(double).
+ *
  *************************************************************************************/
 
 public class AverageFilter {
 	
-	private final int arraySize;      // Number of elements in averageArray.
-	private int       newest = -1;    // Array index of the newest entry in the array.
-	private int       numEntries = 0; // Number of entries used in the array.
-	private double    sum = 0.0;      // Current sum of array entries.
-	private double[]  averageArray;   // The array that contains the sample values.
+	private static final int BATCH_BLOCK = 2048; // Samples filtered by each filter in turn in filterAll().
+	
+	private final int arraySize;        // Number of elements in averageArray.
+	private int       newest = -1;      // Array index of the newest entry in the array.
+	private int       numEntries = 0;   // Number of entries used in the array.
+	private double    mean = 0.0;       // Mean of the array entries.
+	private double    sumSquares = 0.0; // Sum of the squared differences of the entries from the mean.
+	private int       numReplaced = 0;  // Entries replaced since the sums were last recomputed.
+	private double[]  averageArray;     // The array that contains the sample values.
 	
 	//*************************************************************************************
 	// Constructor.
@@ -30,9 +44,6 @@ public class AverageFilter {
 	//*************************************************************************************
 	public void accumulate (double input) {
 		
-		// Add the new value into the running sum.
-		sum += input;
-		
 		// Compute the array index of where to put the newest input.
 		newest = (newest+1) % arraySize;
 		
@@ -40,16 +51,49 @@ public class AverageFilter {
 		if (numEntries == arraySize) {
 			
 			// "newest" has wrapped around and now points to the oldest entry. 
-			// Remove the oldest entry from the sum.
-			sum -= averageArray[newest];
+			// Replace the oldest entry with the new one in the sums.
+			double oldest   = averageArray[newest];
+			double lastMean = mean;
+			
+			mean       += (input - oldest) / (double)numEntries;
+			sumSquares += (input - oldest) * ((input - mean) + (oldest - lastMean));
 			
+			averageArray[newest] = input;
+			
+			if (++numReplaced == arraySize) recompute();
 		}
-		else
+		else {
 			// Increment the number of samples in the array.
 			numEntries++;
 
-		// Save the newest value.
-		averageArray[newest] = input;
+			double delta = input - mean;
+			
+			mean       += delta / (double)numEntries;
+			sumSquares += delta * (input - mean);
+			
+			averageArray[newest] = input;
+		}
+		
+		// Rounding can leave a tiny negative sum when all the entries are equal.
+		if (sumSquares < 0.0) sumSquares = 0.0;
+	}
+	
+	// Recomputes the sums from the entries (the array is full).
+	private void recompute () {
+		
+		double sum = 0.0;
+		
+		for (int i = 0; i < numEntries; i++) sum += averageArray[i];
+		
+		mean       = sum / (double)numEntries;
+		sumSquares = 0.0;
+		
+		for (int i = 0; i < numEntries; i++) {
+			double delta = averageArray[i] - mean;
+			sumSquares += delta * delta;
+		}
+		
+		numReplaced = 0;
 	}
 	
 	//*************************************************************************************
@@ -63,23 +107,52 @@ public class AverageFilter {
 	}
 	
 	//*************************************************************************************
-	// Return the current running average.
+	// Filter n samples: out[i] = filter(in[i]).  "out" may be "in".
 	//*************************************************************************************
-	public double average () { return sum / (double)numEntries; }
+	public void filter (double[] in, double[] out, int n) {
+		filter(in, out, 0, 1, n);
+	}
+	
+	// Filter n samples, in[first], in[first + stride], ..., into the same elements of out.
+	private void filter (double[] in, double[] out, int first, int stride, int n) {
+		for (int i = first; i < first + n * stride; i += stride) {
+			accumulate(in[i]);
+			out[i] = mean;
+		}
+	}
 	
 	//*************************************************************************************
-	// Return the standard deviation of the current running average.
+	// Filter n frames of interleaved channels: in[frame * channels.length + c] is filtered
+	// by channels[c].  "out" may be "in".
 	//*************************************************************************************
-	public double stdDeviation () { 
-		
-		double avg    = average();
-		double stdDev = 0.0;
-		
-		for (int i=0; i < numEntries; i++) stdDev += Math.pow((averageArray[i] - avg), 2.0);
-		
-		stdDev = Math.sqrt(stdDev / (double)numEntries);
-		
-		return stdDev; 
+	public static void filter (AverageFilter[] channels, double[] in, double[] out, int numFrames) {
+		for (int c = 0; c < channels.length; c++)
+			channels[c].filter(in, out, c, channels.length, numFrames);
+	}
+	
+	//*************************************************************************************
+	// Run every filter over the same n samples in one pass: out[j][i] = filters[j].filter(in[i]).
+	//*************************************************************************************
+	public static void filterAll (AverageFilter[] filters, double[] in, double[][] out, int n) {
+		// A block of the input stays in the cache while each filter runs over it.
+		for (int start = 0; start < n; start += BATCH_BLOCK)
+			for (int j = 0; j < filters.length; j++)
+				filters[j].filter(in, out[j], start, 1, Math.min(BATCH_BLOCK, n - start));
 	}
+	
+	//*************************************************************************************
+	// Return the current running average (NaN if nothing has been added).
+	//*************************************************************************************
+	public double average () { return (numEntries == 0) ? Double.NaN : mean; }
+	
+	//*************************************************************************************
+	// Return the variance of the entries in the running average.
+	//*************************************************************************************
+	public double variance () { return sumSquares / (double)numEntries; }
+		
+	//*************************************************************************************
+	// Return the standard deviation of the entries in the running average.
+	//*************************************************************************************
+	public double stdDeviation () { return Math.sqrt(variance()); }
 
 }
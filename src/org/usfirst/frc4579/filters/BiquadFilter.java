@@ -0,0 +1,459 @@
+package org.usfirst.frc4579.filters;
+
+import java.util.Arrays;
+
+/*************************************************************************************
+ * BIQUAD FILTER
+ *
+ * A cascade of second order sections ("biquads") designed for a given sample rate:
+ * Butterworth or Bessel low pass and high pass filters of any order, and notches.
+ * Sections are added in order, e.g. for the gyro sampled at 1 kHz:
+ *
+ *     BiquadFilter gyroFilter = new BiquadFilter(1000.0);
+ *     gyroFilter.addLowPass(BiquadFilter.Response.BUTTERWORTH, 4, 40.0);  // 4th order, 40 Hz.
+ *     gyroFilter.addNotch(120.0, 5.0);                                    // 120 Hz, Q of 5.
+ *     ...
+ *     double rate = gyroFilter.filter(rawRate);
+ *
+ * Butterworth has the flattest pass band; Bessel has the least overshoot and an almost
+ * constant delay (it keeps the shape of a step), but rolls off more slowly.  Both are
+ * 3 dB down at the cutoff frequency.  An odd order adds a first order section.
+ *
+ * The analog prototype of each section is kept, so the filter can be redesigned for a
+ * new sample rate (setSampleRate()) at any time without allocating.  filter(input, dt)
+ * does that whenever the time since the last sample strays from the sample period by
+ * more than a tolerance, for samples that don't arrive at a fixed rate.  Frequencies
+ * at or above the Nyquist frequency (half the sample rate) are designed at just below
+ * it.
+ *
+ * The coefficients and state of all sections are kept in flat arrays, and each
+ * section is computed in transposed direct form II.  As with FirstOrderLPF, there is
+ * an array version, filter(in, out, n), for replaying logs.
+ *************************************************************************************/
+
+public class BiquadFilter {
+
+	public enum Response { BUTTERWORTH, BESSEL };
+
+	// Kinds of section.
+	private static final int LOW_PASS_1  = 0,  // First order low pass.
+							 LOW_PASS_2  = 1,
+							 HIGH_PASS_1 = 2,
+							 HIGH_PASS_2 = 3,
+							 NOTCH       = 4;
+
+	private static final int    MAX_BESSEL_ORDER = 16;   // Beyond this the polynomial's roots aren't reliable.
+	private static final double MAX_FRACTION     = 0.49; // Highest design frequency, as a fraction of the sample rate.
+
+	private double   sampleRate;                 // Hz.
+	private double   rateTolerance = 0.02;       // Fraction the sample rate may change before filter(input, dt) redesigns.
+	private int      numSections   = 0;
+
+	// Per section (the arrays grow as sections are added).
+	private int[]    kind          = new int[0];
+	private double[] frequency     = new double[0];  // Hz: the cutoff or notch frequency.
+	private double[] poleScale     = new double[0];  // Magnitude of the prototype's pole (1 for Butterworth and notches).
+	private double[] q             = new double[0];  // Quality factor (second order sections).
+	private double[] coefficients  = new double[0];  // b0, b1, b2, a1, a2 for each section (a0 = 1).
+	private double[] state         = new double[0];  // z1, z2 for each section.
+
+	//*************************************************************************************
+	// Constructor: an empty cascade (which passes the input) for the given sample rate.
+	//*************************************************************************************
+	public BiquadFilter (double sampleRateHz) {
+		if (!(sampleRateHz > 0.0)) throw new RuntimeException("BiquadFilter: sample rate " + sampleRateHz + " Hz is not positive.");
+		this.sampleRate = sampleRateHz;
+	}
+
+	//*************************************************************************************
+	// Adds a low pass filter of the given order (1 or more), 3 dB down at cutoffHz.
+	//*************************************************************************************
+	public BiquadFilter addLowPass (Response response, int order, double cutoffHz) {
+		addPrototype(response, order, cutoffHz, false);
+		return this;
+	}
+
+	//*************************************************************************************
+	// Adds a high pass filter of the given order (1 or more), 3 dB down at cutoffHz.
+	//*************************************************************************************
+	public BiquadFilter addHighPass (Response response, int order, double cutoffHz) {
+		addPrototype(response, order, cutoffHz, true);
+		return this;
+	}
+
+	//*************************************************************************************
+	// Adds a notch at centerHz.  The width of the notch (between the 3 dB points) is
+	// centerHz / q.
+	//*************************************************************************************
+	public BiquadFilter addNotch (double centerHz, double q) {
+		checkFrequency(centerHz);
+		if (!(q > 0.0)) throw new RuntimeException("BiquadFilter: notch Q " + q + " is not positive.");
+		addSection(NOTCH, centerHz, 1.0, q);
+		return this;
+	}
+
+	// Adds the sections of a low pass prototype, as low pass or high pass sections.
+	private void addPrototype (Response response, int order, double cutoffHz, boolean highPass) {
+
+		checkFrequency(cutoffHz);
+
+		if (order < 1) throw new RuntimeException("BiquadFilter: order " + order + " is less than 1.");
+
+		if (response == Response.BUTTERWORTH) {
+
+			// Poles on the unit circle: pairs at +/-(pi/2 - theta) from the imaginary axis, and -1 for odd orders.
+			for (int k = 1; k <= order / 2; k++) {
+				double theta = Math.PI * (2 * k - 1) / (2.0 * order);
+				addSection(highPass ? HIGH_PASS_2 : LOW_PASS_2, cutoffHz, 1.0, 1.0 / (2.0 * Math.sin(theta)));
+			}
+
+			if ((order % 2) != 0) addSection(highPass ? HIGH_PASS_1 : LOW_PASS_1, cutoffHz, 1.0, 0.0);
+		}
+		else {
+
+			double[] poles = besselPoles(order);   // re, im pairs, im >= 0, 3 dB down at 1.
+
+			for (int i = 0; i < poles.length; i += 2) {
+
+				double re = poles[i], im = poles[i + 1];
+
+				// A low pass pole of magnitude w0 is a high pass pole of magnitude 1/w0.
+				double w0 = Math.hypot(re, im);
+
+				if (im == 0.0)
+					addSection(highPass ? HIGH_PASS_1 : LOW_PASS_1, cutoffHz, highPass ? 1.0 / w0 : w0, 0.0);
+				else
+					addSection(highPass ? HIGH_PASS_2 : LOW_PASS_2, cutoffHz, highPass ? 1.0 / w0 : w0, w0 / (-2.0 * re));
+			}
+		}
+	}
+
+	private void addSection (int sectionKind, double frequencyHz, double scale, double sectionQ) {
+
+		int i = numSections++;
+
+		kind         = Arrays.copyOf(kind        , numSections);
+		frequency    = Arrays.copyOf(frequency   , numSections);
+		poleScale    = Arrays.copyOf(poleScale   , numSections);
+		q            = Arrays.copyOf(q           , numSections);
+		coefficients = Arrays.copyOf(coefficients, numSections * 5);
+		state        = Arrays.copyOf(state       , numSections * 2);
+
+		kind     [i] = sectionKind;
+		frequency[i] = frequencyHz;
+		poleScale[i] = scale;
+		q        [i] = sectionQ;
+
+		design(i);
+	}
+
+	private static void checkFrequency (double frequencyHz) {
+		if (!(frequencyHz > 0.0)) throw new RuntimeException("BiquadFilter: frequency " + frequencyHz + " Hz is not positive.");
+	}
+
+	//*************************************************************************************
+	// Redesigns every section for a new sample rate, keeping the state.
+	//*************************************************************************************
+	public void setSampleRate (double sampleRateHz) {
+
+		if (!(sampleRateHz > 0.0)) throw new RuntimeException("BiquadFilter: sample rate " + sampleRateHz + " Hz is not positive.");
+
+		sampleRate = sampleRateHz;
+
+		for (int i = 0; i < numSections; i++) design(i);
+	}
+
+	public double getSampleRate () {
+		return sampleRate;
+	}
+
+	// Sets the fraction the sample rate may change before filter(input, dt) redesigns the filter.
+	public void setRateTolerance (double fraction) {
+		rateTolerance = fraction;
+	}
+
+	public int numSections () {
+		return numSections;
+	}
+
+	// Computes the digital coefficients of section i with the bilinear transform, prewarped
+	// so that the cutoff (or notch) frequency is exact.
+	private void design (int i) {
+
+		double f = Math.min(frequency[i], MAX_FRACTION * sampleRate);
+		double K = Math.tan(Math.PI * f / sampleRate) * poleScale[i];
+		double b0, b1, b2, a1, a2;
+
+		switch (kind[i]) {
+
+		case LOW_PASS_1: {
+			double norm = 1.0 / (1.0 + K);
+			b0 = K * norm;
+			b1 = b0;
+			b2 = 0.0;
+			a1 = (K - 1.0) * norm;
+			a2 = 0.0;
+			break;
+		}
+		case HIGH_PASS_1: {
+			double norm = 1.0 / (1.0 + K);
+			b0 = norm;
+			b1 = -norm;
+			b2 = 0.0;
+			a1 = (K - 1.0) * norm;
+			a2 = 0.0;
+			break;
+		}
+		case LOW_PASS_2: {
+			double norm = 1.0 / (1.0 + K / q[i] + K * K);
+			b0 = K * K * norm;
+			b1 = 2.0 * b0;
+			b2 = b0;
+			a1 = 2.0 * (K * K - 1.0) * norm;
+			a2 = (1.0 - K / q[i] + K * K) * norm;
+			break;
+		}
+		case HIGH_PASS_2: {
+			double norm = 1.0 / (1.0 + K / q[i] + K * K);
+			b0 = norm;
+			b1 = -2.0 * norm;
+			b2 = norm;
+			a1 = 2.0 * (K * K - 1.0) * norm;
+			a2 = (1.0 - K / q[i] + K * K) * norm;
+			break;
+		}
+		default: { // NOTCH
+			double norm = 1.0 / (1.0 + K / q[i] + K * K);
+			b0 = (1.0 + K * K) * norm;
+			b1 = 2.0 * (K * K - 1.0) * norm;
+			b2 = b0;
+			a1 = b1;
+			a2 = (1.0 - K / q[i] + K * K) * norm;
+			break;
+		}
+		}
+
+		int c = 5 * i;
+
+		coefficients[c    ] = b0;
+		coefficients[c + 1] = b1;
+		coefficients[c + 2] = b2;
+		coefficients[c + 3] = a1;
+		coefficients[c + 4] = a2;
+	}
+
+	//*************************************************************************************
+	// Filters one sample taken at the sample rate.
+	//*************************************************************************************
+	public double filter (double input) {
+
+		double[] c = coefficients;
+		double[] z = state;
+		double   x = input;
+
+		for (int i = 0, ci = 0, zi = 0; i < numSections; i++, ci += 5, zi += 2) {
+			double y  = c[ci] * x + z[zi];
+			z[zi    ] = c[ci + 1] * x - c[ci + 3] * y + z[zi + 1];
+			z[zi + 1] = c[ci + 2] * x - c[ci + 4] * y;
+			x = y;
+		}
+
+		return x;
+	}
+
+	//*************************************************************************************
+	// Filters one sample taken dt seconds after the last one.  If 1/dt is further from the
+	// sample rate than the tolerance, the filter is first redesigned for a rate of 1/dt.
+	//*************************************************************************************
+	public double filter (double input, double dt) {
+
+		double rate = 1.0 / dt;
+
+		if ((rate > 0.0) && (Math.abs(rate - sampleRate) > rateTolerance * sampleRate)) setSampleRate(rate);
+
+		return filter(input);
+	}
+
+	//*************************************************************************************
+	// Filters n samples taken at the sample rate: out[i] = filter(in[i]).  "out" may be "in".
+	//*************************************************************************************
+	public void filter (double[] in, double[] out, int n) {
+
+		// Each section runs over the whole block in turn, with its state in local variables.
+		for (int i = 0; i < numSections; i++) {
+
+			int    c  = 5 * i;
+			double b0 = coefficients[c], b1 = coefficients[c + 1], b2 = coefficients[c + 2],
+				   a1 = coefficients[c + 3], a2 = coefficients[c + 4];
+			double z1 = state[2 * i], z2 = state[2 * i + 1];
+			double[] src = (i == 0) ? in : out;
+
+			for (int j = 0; j < n; j++) {
+				double x = src[j];
+				double y = b0 * x + z1;
+				z1 = b1 * x - a1 * y + z2;
+				z2 = b2 * x - a2 * y;
+				out[j] = y;
+			}
+
+			state[2 * i    ] = z1;
+			state[2 * i + 1] = z2;
+		}
+
+		if ((numSections == 0) && (in != out)) System.arraycopy(in, 0, out, 0, n);
+	}
+
+	//*************************************************************************************
+	// Clears the state of every section (as if every earlier input was zero).
+	//*************************************************************************************
+	public void reset () {
+		Arrays.fill(state, 0.0);
+	}
+
+	//*************************************************************************************
+	// Returns the gain of the whole cascade at frequencyHz (1 = passed unchanged).
+	//*************************************************************************************
+	public double gain (double frequencyHz) {
+
+		double w    = 2.0 * Math.PI * frequencyHz / sampleRate;
+		double cos1 = Math.cos(w), sin1 = Math.sin(w);
+		double cos2 = Math.cos(2.0 * w), sin2 = Math.sin(2.0 * w);
+		double gain = 1.0;
+
+		for (int i = 0; i < numSections; i++) {
+
+			int c = 5 * i;
+
+			// H(z) at z = e^jw: (b0 + b1 z^-1 + b2 z^-2) / (1 + a1 z^-1 + a2 z^-2).
+			double numRe = coefficients[c] + coefficients[c + 1] * cos1 + coefficients[c + 2] * cos2;
+			double numIm =                 - coefficients[c + 1] * sin1 - coefficients[c + 2] * sin2;
+			double denRe = 1.0             + coefficients[c + 3] * cos1 + coefficients[c + 4] * cos2;
+			double denIm =                 - coefficients[c + 3] * sin1 - coefficients[c + 4] * sin2;
+
+			gain *= Math.sqrt((numRe * numRe + numIm * numIm) / (denRe * denRe + denIm * denIm));
+		}
+
+		return gain;
+	}
+
+	//*************************************************************************************
+	// Bessel prototype.
+	//*************************************************************************************
+
+	// Returns the poles of the Bessel low pass filter of the given order, scaled so that it is
+	// 3 dB down at 1 radian/sec, as (re, im) pairs: one of each complex pair (im > 0) and the
+	// real pole of odd orders.
+	private static double[] besselPoles (int order) {
+
+		if (order > MAX_BESSEL_ORDER)
+			throw new RuntimeException("BiquadFilter: Bessel order " + order + " is more than " + MAX_BESSEL_ORDER + ".");
+
+		// Reverse Bessel polynomial: a[k] = (2n - k)! / (2^(n - k) k! (n - k)!), made monic.
+		double[] a = new double[order + 1];
+
+		for (int k = 0; k <= order; k++) a[k] = besselCoefficient(order, k) / besselCoefficient(order, order);
+
+		double[][] roots = polynomialRoots(a);
+
+		// The gain is a[0] / |prod(jw - p)|; find where it is 1/sqrt(2).
+		double low = 0.0, high = 1.0;
+
+		while (besselGain(roots, high) > Math.sqrt(0.5)) high *= 2.0;
+
+		for (int i = 0; i < 100; i++) {
+			double mid = 0.5 * (low + high);
+			if (besselGain(roots, mid) > Math.sqrt(0.5)) low = mid; else high = mid;
+		}
+
+		double   w3    = 0.5 * (low + high);
+		double[] poles = new double[2 * ((order + 1) / 2)];
+		int      p     = 0;
+
+		for (double[] root : roots) {
+			if (root[1] < -1.0e-9) continue;   // The other of a complex pair.
+			poles[p++] = root[0] / w3;
+			poles[p++] = (Math.abs(root[1]) <= 1.0e-9) ? 0.0 : root[1] / w3;
+		}
+
+		return poles;
+	}
+
+	private static double besselCoefficient (int n, int k) {
+
+		// (2n - k)! / (2^(n - k) k! (n - k)!), as a product to stay in range.
+		double value = 1.0;
+
+		for (int i = n - k + 1; i <= 2 * n - k; i++) value *= i;    // (2n - k)! / (n - k)!
+		for (int i = 2; i <= k; i++)                 value /= i;    // / k!
+
+		return value / Math.pow(2.0, n - k);
+	}
+
+	// Gain at w of the all pole filter with the given poles and unity gain at zero.
+	private static double besselGain (double[][] roots, double w) {
+
+		double gain = 1.0;
+
+		for (double[] root : roots) gain *= Math.hypot(root[0], root[1]) / Math.hypot(root[0], w - root[1]);
+
+		return gain;
+	}
+
+	// Roots of the monic polynomial a[0] + a[1] x + ... + x^n (Durand-Kerner), as (re, im) pairs.
+	private static double[][] polynomialRoots (double[] a) {
+
+		int        n     = a.length - 1;
+		double[][] roots = new double[n][2];
+
+		// Start on a circle of the roots' expected size, off the real axis.
+		double radius = Math.pow(Math.abs(a[0]), 1.0 / n);
+
+		for (int i = 0; i < n; i++) {
+			double angle = 2.0 * Math.PI * i / n + 0.4;
+			roots[i][0] = radius * Math.cos(angle);
+			roots[i][1] = radius * Math.sin(angle);
+		}
+
+		for (int iteration = 0; iteration < 1000; iteration++) {
+
+			double maxStep = 0.0;
+
+			for (int i = 0; i < n; i++) {
+
+				// Value of the polynomial at root i (Horner).
+				double re = 1.0, im = 0.0;
+
+				for (int k = n - 1; k >= 0; k--) {
+					double t = re * roots[i][0] - im * roots[i][1] + a[k];
+					im = re * roots[i][1] + im * roots[i][0];
+					re = t;
+				}
+
+				// Divided by the product of its distances from the other roots.
+				double dRe = 1.0, dIm = 0.0;
+
+				for (int j = 0; j < n; j++) {
+					if (j == i) continue;
+					double xRe = roots[i][0] - roots[j][0], xIm = roots[i][1] - roots[j][1];
+					double t   = dRe * xRe - dIm * xIm;
+					dIm = dRe * xIm + dIm * xRe;
+					dRe = t;
+				}
+
+				double d2     = dRe * dRe + dIm * dIm;
+				double stepRe = (re * dRe + im * dIm) / d2;
+				double stepIm = (im * dRe - re * dIm) / d2;
+
+				roots[i][0] -= stepRe;
+				roots[i][1] -= stepIm;
+
+				maxStep = Math.max(maxStep, Math.hypot(stepRe, stepIm));
+			}
+
+			if (maxStep < 1.0e-14 * radius) break;
+		}
+
+		return roots;
+	}
+
+}
@@ -0,0 +1,260 @@
+package org.usfirst.frc4579.filters;
+
+/*************************************************************************************
+ * EXTENDED KALMAN FILTER
+ *
+ * A Kalman filter for any number of states, which a model (e.g. PoseEstimator) drives
+ * by filling in its matrices.  All matrices are flat, row-major double arrays that are
+ * allocated by the constructor; every step works in place, so nothing is allocated
+ * after construction.
+ *
+ * Each step of a linear model:
+ *
+ *     fill F (state transition) and Q (process noise), then predict():
+ *         x = F x,  P = F P F' + Q
+ *     fill H (m rows) and R (m x m), then update(z, m):
+ *         y = z - H x,  then correct(m)
+ *
+ * For a nonlinear (extended) model the model computes the state and the measurement
+ * itself and fills in their Jacobians:
+ *
+ *     set x = f(x), fill F = df/dx and Q, then predictCovariance()
+ *     set y = z - h(x), fill H = dh/dx and R, then correct(m)
+ *
+ * correct(m) applies m measurements at once:
+ *
+ *     S = H P H' + R,  K = P H' S^-1,  x = x + K y,  P = P - K H P
+ *
+ * S is inverted by a Cholesky factorization, so R must be positive definite.  P is
+ * kept symmetric.
+ *
+ * Layout: F, Q and P are n x n (element [i][j] at i * n + j).  H has m rows of n
+ * (element [i][j] at i * n + j) and R is m x m (element [i][j] at i * m + j), for the
+ * number m of measurements in the update, up to the maximum given to the constructor.
+ *
+ *************************************************************************************/
+
+public class ExtendedKalmanFilter {
+
+	public final int      numStates;         // n.
+	public final int      maxMeasurements;   // Largest m.
+
+	public final double[] x;                 // State (n).
+	public final double[] P;                 // State covariance (n x n).
+	public final double[] F;                 // State transition, or its Jacobian (n x n).  Identity to start.
+	public final double[] Q;                 // Process noise covariance (n x n).
+	public final double[] H;                 // Measurement matrix, or its Jacobian (m x n).
+	public final double[] R;                 // Measurement noise covariance (m x m).
+	public final double[] y;                 // Innovation: measurement less predicted measurement (m).
+
+	// Work space.
+	private final double[] FP;               // F P (n x n).
+	private final double[] PHt;              // P H' (n x m).
+	private final double[] S;                // Innovation covariance, then its Cholesky factor (m x m).
+	private final double[] K;                // Gain (n x m).
+	private final double[] Ky;               // K y (n).
+
+	//*************************************************************************************
+	// Constructor.  P, Q, H and R start at zero and F at the identity.
+	//*************************************************************************************
+	public ExtendedKalmanFilter (int numStates, int maxMeasurements) {
+
+		if ((numStates < 1) || (maxMeasurements < 1))
+			throw new RuntimeException("ExtendedKalmanFilter: " + numStates + " states and " + maxMeasurements + " measurements is not a filter.");
+
+		this.numStates       = numStates;
+		this.maxMeasurements = maxMeasurements;
+
+		x   = new double[numStates];
+		P   = new double[numStates * numStates];
+		F   = new double[numStates * numStates];
+		Q   = new double[numStates * numStates];
+		H   = new double[maxMeasurements * numStates];
+		R   = new double[maxMeasurements * maxMeasurements];
+		y   = new double[maxMeasurements];
+		FP  = new double[numStates * numStates];
+		PHt = new double[numStates * maxMeasurements];
+		S   = new double[maxMeasurements * maxMeasurements];
+		K   = new double[numStates * maxMeasurements];
+		Ky  = new double[numStates];
+
+		for (int i = 0; i < numStates; i++) F[i * numStates + i] = 1.0;
+	}
+
+	//*************************************************************************************
+	// Linear prediction: x = F x, then predictCovariance().
+	//*************************************************************************************
+	public void predict () {
+
+		int n = numStates;
+
+		// x = F x, using Ky to hold the new state.
+		for (int i = 0; i < n; i++) {
+			double sum = 0.0;
+			for (int k = 0; k < n; k++) sum += F[i * n + k] * x[k];
+			Ky[i] = sum;
+		}
+
+		System.arraycopy(Ky, 0, x, 0, n);
+
+		predictCovariance();
+	}
+
+	//*************************************************************************************
+	// Covariance prediction: P = F P F' + Q.
+	//*************************************************************************************
+	public void predictCovariance () {
+
+		int n = numStates;
+
+		// FP = F P.
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				double sum = 0.0;
+				for (int k = 0; k < n; k++) sum += F[i * n + k] * P[k * n + j];
+				FP[i * n + j] = sum;
+			}
+		}
+
+		// P = FP F' + Q, computing the upper triangle and copying it to the lower.
+		for (int i = 0; i < n; i++) {
+			for (int j = i; j < n; j++) {
+				double sum = Q[i * n + j];
+				for (int k = 0; k < n; k++) sum += FP[i * n + k] * F[j * n + k];
+				P[i * n + j] = sum;
+				P[j * n + i] = sum;
+			}
+		}
+	}
+
+	//*************************************************************************************
+	// Linear update with m measurements z: y = z - H x, then correct(m).
+	//*************************************************************************************
+	public void update (double[] z, int m) {
+
+		int n = numStates;
+
+		for (int i = 0; i < m; i++) {
+			double sum = 0.0;
+			for (int k = 0; k < n; k++) sum += H[i * n + k] * x[k];
+			y[i] = z[i] - sum;
+		}
+
+		correct(m);
+	}
+
+	//*************************************************************************************
+	// Corrects the state with the innovation y of m measurements, with H and R.  Returns
+	// false (and leaves the state alone) if S isn't positive definite.
+	//*************************************************************************************
+	public boolean correct (int m) {
+
+		if ((m < 1) || (m > maxMeasurements))
+			throw new RuntimeException("ExtendedKalmanFilter: " + m + " measurements (1 to " + maxMeasurements + ").");
+
+		int n = numStates;
+
+		// PHt = P H' (n x m).
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < m; j++) {
+				double sum = 0.0;
+				for (int k = 0; k < n; k++) sum += P[i * n + k] * H[j * n + k];
+				PHt[i * m + j] = sum;
+			}
+		}
+
+		// S = H PHt + R (m x m, symmetric).
+		for (int i = 0; i < m; i++) {
+			for (int j = i; j < m; j++) {
+				double sum = R[i * m + j];
+				for (int k = 0; k < n; k++) sum += H[i * n + k] * PHt[k * m + j];
+				S[i * m + j] = sum;
+				S[j * m + i] = sum;
+			}
+		}
+
+		if (!cholesky(S, m)) return false;
+
+		// K = PHt S^-1: each row of K solves S k = (row of PHt), as S is symmetric.
+		for (int i = 0; i < n; i++) choleskySolve(S, m, PHt, K, i * m);
+
+		// x = x + K y.
+		for (int i = 0; i < n; i++) {
+			double sum = 0.0;
+			for (int j = 0; j < m; j++) sum += K[i * m + j] * y[j];
+			x[i] += sum;
+		}
+
+		// P = P - K (H P) = P - K PHt', computing the upper triangle and copying it to the lower.
+		for (int i = 0; i < n; i++) {
+			for (int j = i; j < n; j++) {
+				double sum = 0.0;
+				for (int k = 0; k < m; k++) sum += K[i * m + k] * PHt[j * m + k];
+				double value = P[i * n + j] - sum;
+				P[i * n + j] = value;
+				P[j * n + i] = value;
+			}
+		}
+
+		return true;
+	}
+
+	// Replaces the m x m symmetric matrix A with its Cholesky factor L (lower triangle, A = L L').
+	// Returns false if A isn't positive definite.
+	private static boolean cholesky (double[] A, int m) {
+
+		for (int j = 0; j < m; j++) {
+
+			double d = A[j * m + j];
+
+			for (int k = 0; k < j; k++) d -= A[j * m + k] * A[j * m + k];
+
+			if (!(d > 0.0)) return false;
+
+			d = Math.sqrt(d);
+			A[j * m + j] = d;
+
+			for (int i = j + 1; i < m; i++) {
+				double sum = A[i * m + j];
+				for (int k = 0; k < j; k++) sum -= A[i * m + k] * A[j * m + k];
+				A[i * m + j] = sum / d;
+			}
+		}
+
+		return true;
+	}
+
+	// Solves L L' v = b for the m elements starting at "offset" of b, writing v to the same elements of v.
+	private static void choleskySolve (double[] L, int m, double[] b, double[] v, int offset) {
+
+		// L w = b.
+		for (int i = 0; i < m; i++) {
+			double sum = b[offset + i];
+			for (int k = 0; k < i; k++) sum -= L[i * m + k] * v[offset + k];
+			v[offset + i] = sum / L[i * m + i];
+		}
+
+		// L' v = w.
+		for (int i = m - 1; i >= 0; i--) {
+			double sum = v[offset + i];
+			for (int k = i + 1; k < m; k++) sum -= L[k * m + i] * v[offset + k];
+			v[offset + i] = sum / L[i * m + i];
+		}
+	}
+
+	//*************************************************************************************
+	// Sets the state to zero and the covariance to diagonal "variances".
+	//*************************************************************************************
+	public void reset (double[] variances) {
+
+		int n = numStates;
+
+		for (int i = 0; i < n * n; i++) P[i] = 0.0;
+
+		for (int i = 0; i < n; i++) {
+			x[i] = 0.0;
+			P[i * n + i] = variances[i];
+		}
+	}
+
+}
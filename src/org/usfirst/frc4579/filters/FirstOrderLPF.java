@@ -9,6 +9,12 @@
  * The output of the filter() method is what needs to be fed into the other system
  * E.G. motor.filter(1);
  * 
+ * For replaying logs there are array versions: filter(in, out, n) filters a block of samples,
+ * filter(channels, in, out, n) filters interleaved channels (one filter per channel), and
+ * filterAll(filters, in, out, n) runs many filters (e.g. with different constants) over the same
+ * samples in one pass.  Each gives exactly the outputs, and leaves each filter in exactly the state,
+ * of calling filter(double) once per sample.
+ * 
  */
 package org.usfirst.frc4579.filters;
 
@@ -41,6 +47,74 @@ public class FirstOrderLPF {
 		return output;
 	}
 	
+	/* Filters n samples: out[i] = filter(in[i]).
+	 * @param double[] in The inputs to filter.
+	 * @param double[] out The filtered values (may be "in").
+	 * @param int n The number of samples.
+	 */
+	public void filter(double[] in, double[] out, int n) {
+		filter(in, out, 0, n);
+	}
+	
+	// Filters in[start] to in[start + n - 1] into the same elements of out.
+	private void filter(double[] in, double[] out, int start, int n) {
+		double k    = lpfk,
+			   last = lastValue;
+		for (int i = start; i < start + n; i++) {
+			last   = last + k * (in[i] - last);
+			out[i] = last;
+		}
+		lastValue = last;
+	}
+	
+	/* Filters n frames of interleaved channels: in[frame * channels.length + c] is filtered by channels[c].
+	 * @param FirstOrderLPF[] channels One filter per channel.
+	 * @param double[] in The inputs, interleaved.
+	 * @param double[] out The filtered values, interleaved (may be "in").
+	 * @param int numFrames The number of samples of each channel.
+	 */
+	public static void filter(FirstOrderLPF[] channels, double[] in, double[] out, int numFrames) {
+		int numChannels = channels.length;
+		for (int c = 0; c < numChannels; c++) {
+			FirstOrderLPF channel = channels[c];
+			double k    = channel.lpfk,
+				   last = channel.lastValue;
+			for (int i = c; i < numFrames * numChannels; i += numChannels) {
+				last   = last + k * (in[i] - last);
+				out[i] = last;
+			}
+			channel.lastValue = last;
+		}
+	}
+	
+	/* Runs every filter over the same n samples, in one pass: out[j][i] = filters[j].filter(in[i]).
+	 * @param FirstOrderLPF[] filters The filters (e.g. with different time constants).
+	 * @param double[] in The inputs to filter.
+	 * @param double[][] out The filtered values of each filter.
+	 * @param int n The number of samples.
+	 */
+	public static void filterAll(FirstOrderLPF[] filters, double[] in, double[][] out, int n) {
+		// Each output depends on the one before, so one filter at a time waits on each add.  Running
+		// four filters side by side lets the processor overlap them.
+		int j = 0;
+		for (; j + 4 <= filters.length; j += 4) {
+			FirstOrderLPF f0 = filters[j], f1 = filters[j + 1], f2 = filters[j + 2], f3 = filters[j + 3];
+			double[] out0 = out[j], out1 = out[j + 1], out2 = out[j + 2], out3 = out[j + 3];
+			double k0 = f0.lpfk, k1 = f1.lpfk, k2 = f2.lpfk, k3 = f3.lpfk;
+			double last0 = f0.lastValue, last1 = f1.lastValue, last2 = f2.lastValue, last3 = f3.lastValue;
+			for (int i = 0; i < n; i++) {
+				double input = in[i];
+				out0[i] = last0 = last0 + k0 * (input - last0);
+				out1[i] = last1 = last1 + k1 * (input - last1);
+				out2[i] = last2 = last2 + k2 * (input - last2);
+				out3[i] = last3 = last3 + k3 * (input - last3);
+			}
+			f0.lastValue = last0; f1.lastValue = last1; f2.lastValue = last2; f3.lastValue = last3;
+		}
+		for (; j < filters.length; j++)
+			filters[j].filter(in, out[j], 0, n);
+	}
+	
 	/*
 	 * This method hard sets the time constant for the low pass filter 
 	 * @param double kFilter Time constant for the low pass filter. Domain: [0,1] [Greater the number, higher rate of change (typically means higher sensitivity)]
@@ -0,0 +1,97 @@
+package org.usfirst.frc4579.filters;
+
+/*************************************************************************************
+ * HAMPEL FILTER
+ *
+ * Rejects outliers (spikes) in a stream of samples.  Each sample is compared with the
+ * median of the last "windowSize" samples.  If it is further from the median than
+ * "numSigmas" times the spread of the window, it is an outlier and the median is
+ * returned in its place; otherwise the sample is returned unchanged.
+ *
+ * The spread is the median absolute deviation (MAD) scaled by 1.4826, which is the
+ * standard deviation for normally distributed samples but isn't moved by the outliers
+ * themselves.  To stay O(log n) per sample, each sample's deviation is taken from the
+ * median at the time it arrived and kept in a second MedianFilter, rather than
+ * recomputing every deviation from the current median.
+ *
+ * Outliers are added to the window too, so a real step in the signal is accepted once
+ * it has lasted for about half the window.  "minThreshold" is the smallest distance
+ * from the median that can be an outlier, so that a quiet signal (e.g. integer counts
+ * that are mostly zero, with a MAD of zero) isn't gated at every change.  Samples pass
+ * unchanged until the window has "minSamples" samples.
+ *
+ * Nothing is allocated after construction.
+ *
+ *************************************************************************************/
+
+public class HampelFilter {
+
+	private static final double MAD_TO_SIGMA = 1.4826;  // Standard deviation / MAD for normal samples.
+
+	private final MedianFilter samples;          // The window of samples.
+	private final MedianFilter deviations;       // |sample - median| of the same samples.
+	private final double       numSigmas;        // Distance from the median of an outlier, in standard deviations.
+	private final double       minThreshold;     // Smallest distance from the median of an outlier.
+	private final int          minSamples;       // Samples needed before gating starts.
+	private boolean            lastWasOutlier = false;
+	private long               numOutliers    = 0;
+
+	//*************************************************************************************
+	// Constructor.  Typical values are a window of 7 to 15 samples and 3 sigmas.
+	//*************************************************************************************
+	public HampelFilter (int windowSize, double numSigmas, double minThreshold) {
+		this.samples      = new MedianFilter(windowSize);
+		this.deviations   = new MedianFilter(windowSize);
+		this.numSigmas    = numSigmas;
+		this.minThreshold = minThreshold;
+		this.minSamples   = Math.max(3, windowSize / 2);
+	}
+
+	//*************************************************************************************
+	// Returns "input", or the median of the window if "input" is an outlier.
+	//*************************************************************************************
+	public double filter (double input) {
+
+		double median = samples.median();
+
+		lastWasOutlier = false;
+
+		if (samples.size() >= minSamples) {
+
+			double threshold = Math.max(minThreshold, numSigmas * MAD_TO_SIGMA * deviations.median());
+
+			lastWasOutlier = Math.abs(input - median) > threshold;
+		}
+
+		if (samples.size() > 0) deviations.accumulate(Math.abs(input - median));
+
+		samples.accumulate(input);
+
+		if (lastWasOutlier) {
+			numOutliers++;
+			return median;
+		}
+
+		return input;
+	}
+
+	// True if the last sample was an outlier.
+	public boolean isOutlier () {
+		return lastWasOutlier;
+	}
+
+	// Number of outliers since construction.
+	public long numOutliers () {
+		return numOutliers;
+	}
+
+	//*************************************************************************************
+	// Empty the window.
+	//*************************************************************************************
+	public void reset () {
+		samples.reset();
+		deviations.reset();
+		lastWasOutlier = false;
+	}
+
+}
@@ -1,7 +1,13 @@
 package org.usfirst.frc4579.filters;
 
+// For replaying logs there are array versions of getAngle(): one filter over a block of samples,
+// one filter per channel over interleaved channels, and many filters (e.g. with different noise
+// variances) over the same samples in one pass (getAngleAll).  They give exactly the results of
+// calling getAngle() once per sample.
 public class KalmanFilter {
 
+	private static final int BATCH_BLOCK = 2048; // Samples filtered by each filter in turn in getAngleAll().
+
 	private double Q_angle;   // Process noise variance for the accelerometer.
 	private double Q_bias;    // Process noise variance for the gyro bias.
 	private double R_measure; // Measurement noise variance.
@@ -60,6 +66,65 @@ public class KalmanFilter {
 		return angle;
 	}
 	
+	// Filters n samples: out[i] = getAngle(newAngles[i], newRates[i], dts[i]).  "out" may be one of the inputs.
+	public void getAngle (double[] newAngles, double[] newRates, double[] dts, double[] out, int n) {
+		getAngle(newAngles, newRates, dts, out, 0, 1, 0, n);
+	}
+	
+	// Filters n frames of interleaved channels: newAngles[frame * channels.length + c] and the same element
+	// of newRates go through channels[c], with the time dts[frame].
+	public static void getAngle (KalmanFilter[] channels, double[] newAngles, double[] newRates, double[] dts, double[] out, int numFrames) {
+		for (int c = 0; c < channels.length; c++)
+			channels[c].getAngle(newAngles, newRates, dts, out, c, channels.length, 0, numFrames);
+	}
+	
+	// Runs every filter over the same n samples in one pass: out[j][i] = filters[j].getAngle(newAngles[i], newRates[i], dts[i]).
+	public static void getAngleAll (KalmanFilter[] filters, double[] newAngles, double[] newRates, double[] dts, double[][] out, int n) {
+		// A block of the input stays in the cache while each filter runs over it.
+		for (int start = 0; start < n; start += BATCH_BLOCK)
+			for (int j = 0; j < filters.length; j++)
+				filters[j].getAngle(newAngles, newRates, dts, out[j], start, 1, start, Math.min(BATCH_BLOCK, n - start));
+	}
+	
+	// Filters n samples at first, first + stride, ..., with the times dts[dtFirst], dts[dtFirst + 1], ....
+	// The same steps as getAngle(double, double, double), with the state in local variables.
+	private void getAngle (double[] newAngles, double[] newRates, double[] dts, double[] out, int first, int stride, int dtFirst, int n) {
+		
+		double p00 = P[0][0], p01 = P[0][1], p10 = P[1][0], p11 = P[1][1];
+		double k0  = K[0]   , k1  = K[1];
+		
+		for (int f = 0, i = first; f < n; f++, i += stride) {
+			
+			double dt = dts[dtFirst + f];
+			
+			rate   = newRates[i] - bias;
+			angle += dt * rate;
+			
+			p00 += dt * (dt * p11 - p01 - p10 + Q_angle);
+			p01 -= dt * p11;
+			p10 -= dt * p11;
+			p11 += dt * Q_bias;
+			
+			S  = p00 + R_measure;
+			k0 = p00 / S;
+			k1 = p10 / S;
+			
+			y = newAngles[i] - angle;
+			angle += k0 * y;
+			bias  += k1 * y;
+			
+			p00 -= k0 * p00;
+			p01 -= k0 * p01;
+			p10 -= k1 * p00;
+			p11 -= k1 * p01;
+			
+			out[i] = angle;
+		}
+		
+		P[0][0] = p00; P[0][1] = p01; P[1][0] = p10; P[1][1] = p11;
+		K[0]    = k0 ; K[1]    = k1;
+	}
+	
 	// Used to set the starting angle.
 	public void setAngle(double newAngle) { angle = newAngle; }
 	
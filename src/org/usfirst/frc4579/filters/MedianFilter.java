@@ -0,0 +1,213 @@
+package org.usfirst.frc4579.filters;
+
+/*************************************************************************************
+ * MEDIAN FILTER
+ *
+ * Maintains the median of the last "windowSize" samples.  Unlike an average, a few wild
+ * samples (e.g. a bad bus transfer) don't move the median.
+ *
+ * The samples are kept in two heaps: a max heap of the lower half and a min heap of the
+ * upper half, so the median is at the top of one or both.  Each sample's slot in the
+ * window records where it is in the heaps, so when the window is full the oldest
+ * sample is overwritten by the newest and moved to its place, in O(log n) time.
+ * Nothing is allocated after construction.
+ *
+ *************************************************************************************/
+
+public class MedianFilter {
+
+	private final int       windowSize;
+	private final double[]  values;          // Sample in each slot of the window.
+	private final int[]     low;             // Max heap of slots: the lower half of the samples.
+	private final int[]     high;            // Min heap of slots: the upper half.
+	private final boolean[] inLow;           // Heap of each slot.
+	private final int[]     position;        // Index of each slot in its heap.
+	private int             lowSize  = 0;    // Equal to highSize, or one more.
+	private int             highSize = 0;
+	private int             numEntries = 0;  // Number of samples in the window.
+	private int             oldest   = 0;    // Slot of the oldest sample (the next to be replaced when full).
+
+	//*************************************************************************************
+	// Constructor.
+	//*************************************************************************************
+	public MedianFilter (int windowSize) {
+
+		if (windowSize < 1) throw new RuntimeException("MedianFilter: window size " + windowSize + " is less than 1.");
+
+		this.windowSize = windowSize;
+		this.values     = new double [windowSize];
+		this.low        = new int    [windowSize];
+		this.high       = new int    [windowSize];
+		this.inLow      = new boolean[windowSize];
+		this.position   = new int    [windowSize];
+	}
+
+	//*************************************************************************************
+	// Add "input" to the window without returning the median.
+	//*************************************************************************************
+	public void accumulate (double input) {
+
+		if (numEntries < windowSize) {
+
+			int slot = numEntries++;
+
+			values[slot] = input;
+
+			// Add to the lower half, then move its largest to the upper half, then move the
+			// smallest back if the upper half is bigger.
+			inLow[slot] = true;
+			position[slot] = lowSize;
+			low[lowSize++] = slot;
+			siftUp(true, lowSize - 1);
+
+			moveTop(true);
+
+			if (highSize > lowSize) moveTop(false);
+		}
+		else {
+
+			int slot = oldest;
+
+			oldest = (oldest + 1) % windowSize;
+
+			// Replace the oldest sample in place, restore its heap, then swap the tops of the
+			// heaps if the new sample belongs in the other half.
+			values[slot] = input;
+
+			boolean isLow = inLow[slot];
+
+			siftDown(isLow, siftUp(isLow, position[slot]));
+
+			if ((highSize > 0) && (values[low[0]] > values[high[0]])) {
+
+				int lowTop  = low [0];
+				int highTop = high[0];
+
+				low [0] = highTop;
+				high[0] = lowTop;
+				inLow[highTop] = true;
+				inLow[lowTop]  = false;
+				position[highTop] = 0;
+				position[lowTop]  = 0;
+
+				siftDown(true , 0);
+				siftDown(false, 0);
+			}
+		}
+	}
+
+	//*************************************************************************************
+	// Add "input" to the window and return the median.
+	//*************************************************************************************
+	public double filter (double input) {
+
+		accumulate(input);
+
+		return median();
+	}
+
+	//*************************************************************************************
+	// Return the median of the window (the average of the middle two for an even number
+	// of samples, NaN if there are none).
+	//*************************************************************************************
+	public double median () {
+
+		if (numEntries == 0) return Double.NaN;
+
+		if (lowSize > highSize) return values[low[0]];
+
+		return 0.5 * (values[low[0]] + values[high[0]]);
+	}
+
+	// Number of samples in the window.
+	public int size () {
+		return numEntries;
+	}
+
+	//*************************************************************************************
+	// Empty the window.
+	//*************************************************************************************
+	public void reset () {
+		lowSize    = 0;
+		highSize   = 0;
+		numEntries = 0;
+		oldest     = 0;
+	}
+
+	// Moves the top of one heap to the other.
+	private void moveTop (boolean fromLow) {
+
+		int[] from     = fromLow ? low  : high;
+		int[] to       = fromLow ? high : low;
+		int   slot     = from[0];
+		int   fromLast = fromLow ? --lowSize : --highSize;
+
+		// Remove the top.
+		from[0] = from[fromLast];
+		position[from[0]] = 0;
+		if (fromLast > 0) siftDown(fromLow, 0);
+
+		// Add it to the other heap.
+		int toLast = fromLow ? highSize++ : lowSize++;
+
+		to[toLast]     = slot;
+		inLow[slot]    = !fromLow;
+		position[slot] = toLast;
+		siftUp(!fromLow, toLast);
+	}
+
+	// True if slot a belongs above slot b in the heap.
+	private boolean above (boolean isLow, int a, int b) {
+		return isLow ? (values[a] > values[b]) : (values[a] < values[b]);
+	}
+
+	// Moves the entry at index i of a heap up to its place.  Returns its new index.
+	private int siftUp (boolean isLow, int i) {
+
+		int[] heap = isLow ? low : high;
+		int   slot = heap[i];
+
+		while (i > 0) {
+
+			int parent = (i - 1) / 2;
+
+			if (!above(isLow, slot, heap[parent])) break;
+
+			heap[i] = heap[parent];
+			position[heap[i]] = i;
+			i = parent;
+		}
+
+		heap[i] = slot;
+		position[slot] = i;
+
+		return i;
+	}
+
+	// Moves the entry at index i of a heap down to its place.
+	private void siftDown (boolean isLow, int i) {
+
+		int[] heap = isLow ? low : high;
+		int   size = isLow ? lowSize : highSize;
+		int   slot = heap[i];
+
+		while (true) {
+
+			int child = 2 * i + 1;
+
+			if (child >= size) break;
+
+			if ((child + 1 < size) && above(isLow, heap[child + 1], heap[child])) child++;
+
+			if (!above(isLow, heap[child], slot)) break;
+
+			heap[i] = heap[child];
+			position[heap[i]] = i;
+			i = child;
+		}
+
+		heap[i] = slot;
+		position[slot] = i;
+	}
+
+}
@@ -0,0 +1,222 @@
+package org.usfirst.frc4579.filters;
+
+/*************************************************************************************
+ * POSE ESTIMATOR
+ *
+ * Estimates the robot's position, velocity and heading on the field by fusing the gyro
+ * heading with the optical flow sensor, using an ExtendedKalmanFilter.  The state is:
+ *
+ *     x, y     Position in the field frame (flow units, e.g. inches).  The field frame
+ *              is the robot's frame at the last reset: x forward, y left.
+ *     vx, vy   Velocity in the field frame (units/sec).
+ *     heading  Degrees, counterclockwise (the same sense as the gyro heading).
+ *     bias     Remaining gyro bias (degrees/sec), heading change that isn't turning.
+ *
+ * Each step calls predict() with the change in the gyro heading since the last step,
+ * then either updateFlow() with the robot frame velocity measured by the flow sensor,
+ * or, while the robot is known to be still, updateStationary(), which measures zero
+ * velocity and takes any heading change as gyro bias.  If the flow sensor can't see
+ * the surface, updateSpeed() with the speed the motors are commanded to is a much
+ * noisier substitute.
+ *
+ * The flow sensor measures velocity in the robot frame, which depends on the heading,
+ * so that update is linearized about the current estimate (the "extended" filter).
+ * The velocity is modeled as a random walk (constant but for unknown accelerations).
+ *
+ * A step is a few hundred multiplies and allocates nothing.
+ *
+ *************************************************************************************/
+
+public class PoseEstimator {
+
+	// State indices.
+	public static final int X = 0, Y = 1, VX = 2, VY = 3, HEADING = 4, BIAS = 5;
+
+	private static final int    NUM_STATES = 6;
+	private static final double DEG_TO_RAD = Math.PI / 180.0;
+
+	private final ExtendedKalmanFilter ekf = new ExtendedKalmanFilter(NUM_STATES, 3);
+
+	// Noise (standard deviations).  Process noise is per root second.
+	private double accelNoise     = 50.0;   // Unknown acceleration (units/sec^2).
+	private double headingNoise   = 0.1;    // Gyro heading random walk (degrees).
+	private double biasNoise      = 0.01;   // Change in the gyro bias (degrees/sec).
+	private double flowNoise      = 2.0;    // Flow velocity measurement (units/sec).
+	private double stillNoise     = 0.1;    // Velocity while the robot is still (units/sec).
+	private double stillRateNoise = 0.05;   // Heading rate while the robot is still (degrees/sec).
+	private double speedNoise     = 20.0;   // Forward speed from the motor commands (units/sec).
+
+	// Initial uncertainty (variances): position and heading are known at a reset, the bias isn't.
+	private final double[] initialVariances = {0.0, 0.0, 1.0, 1.0, 0.0, 0.25};
+
+	private final double[] z = new double[3];   // Measurements.
+
+	//*************************************************************************************
+	// Constructor.
+	//*************************************************************************************
+	public PoseEstimator () {
+		reset();
+	}
+
+	//*************************************************************************************
+	// Starts over at the origin, with zero velocity and heading.
+	//*************************************************************************************
+	public void reset () {
+		ekf.reset(initialVariances);
+	}
+
+	// Sets the process noise (see above).
+	public void setProcessNoise (double accel, double heading, double bias) {
+		accelNoise   = accel;
+		headingNoise = heading;
+		biasNoise    = bias;
+	}
+
+	// Sets the measurement noise (see above).
+	public void setMeasurementNoise (double flow, double stillVelocity, double stillRate) {
+		flowNoise      = flow;
+		stillNoise     = stillVelocity;
+		stillRateNoise = stillRate;
+	}
+
+	// Sets the noise of the forward speed from the motor commands (see updateSpeed()).
+	public void setSpeedNoise (double speed) {
+		speedNoise = speed;
+	}
+
+	//*************************************************************************************
+	// Advances the state dt seconds, in which the gyro heading changed by headingChange
+	// degrees.
+	//*************************************************************************************
+	public void predict (double headingChange, double dt) {
+
+		if (!(dt > 0.0)) return;
+
+		double[] x = ekf.x;
+		double[] F = ekf.F;
+		double[] Q = ekf.Q;
+		int      n = NUM_STATES;
+
+		x[X]       += x[VX] * dt;
+		x[Y]       += x[VY] * dt;
+		x[HEADING] += headingChange - x[BIAS] * dt;
+
+		// F is the identity (from the constructor) plus these terms.
+		F[X * n + VX]         = dt;
+		F[Y * n + VY]         = dt;
+		F[HEADING * n + BIAS] = -dt;
+
+		// Acceleration noise, integrated into velocity and position.
+		double qa = accelNoise * accelNoise;
+
+		Q[X  * n + X ] = Q[Y  * n + Y ] = qa * dt * dt * dt / 3.0;
+		Q[X  * n + VX] = Q[VX * n + X ] = qa * dt * dt / 2.0;
+		Q[Y  * n + VY] = Q[VY * n + Y ] = qa * dt * dt / 2.0;
+		Q[VX * n + VX] = Q[VY * n + VY] = qa * dt;
+		Q[HEADING * n + HEADING] = headingNoise * headingNoise * dt;
+		Q[BIAS * n + BIAS]       = biasNoise * biasNoise * dt;
+
+		ekf.predictCovariance();
+	}
+
+	//*************************************************************************************
+	// Corrects the state with the velocity measured by the flow sensor, in the robot frame
+	// (units/sec).
+	//*************************************************************************************
+	public void updateFlow (double robotVelocityX, double robotVelocityY) {
+		updateRobotVelocity(robotVelocityX, robotVelocityY, flowNoise);
+	}
+
+	//*************************************************************************************
+	// As updateFlow(), for a measurement of "quality" from 0 to 1 (see FlowMotion): its
+	// standard deviation is the flow noise divided by the quality.
+	//*************************************************************************************
+	public void updateFlow (double robotVelocityX, double robotVelocityY, double quality) {
+		if (quality > 0.0) updateRobotVelocity(robotVelocityX, robotVelocityY, flowNoise / Math.min(quality, 1.0));
+	}
+
+	//*************************************************************************************
+	// Corrects the state with the forward speed (units/sec) that the motors are commanded
+	// to, and no sideways speed, for when the flow sensor can't be used.
+	//*************************************************************************************
+	public void updateSpeed (double forwardSpeed) {
+		updateRobotVelocity(forwardSpeed, 0.0, speedNoise);
+	}
+
+	// Corrects the state with a velocity in the robot frame, of standard deviation "noise".
+	private void updateRobotVelocity (double robotVelocityX, double robotVelocityY, double noise) {
+
+		double[] x = ekf.x;
+		double[] H = ekf.H;
+		double[] R = ekf.R;
+		int      n = NUM_STATES;
+
+		double c  = Math.cos(x[HEADING] * DEG_TO_RAD);
+		double s  = Math.sin(x[HEADING] * DEG_TO_RAD);
+		double vx = x[VX];
+		double vy = x[VY];
+
+		// Field frame velocity rotated into the robot frame.
+		ekf.y[0] = robotVelocityX - ( c * vx + s * vy);
+		ekf.y[1] = robotVelocityY - (-s * vx + c * vy);
+
+		clear(H, 2 * n);
+		H[0 * n + VX]      =  c;
+		H[0 * n + VY]      =  s;
+		H[0 * n + HEADING] = (-s * vx + c * vy) * DEG_TO_RAD;
+		H[1 * n + VX]      = -s;
+		H[1 * n + VY]      =  c;
+		H[1 * n + HEADING] = (-c * vx - s * vy) * DEG_TO_RAD;
+
+		double r = noise * noise;
+
+		R[0] = r;   R[1] = 0.0;
+		R[2] = 0.0; R[3] = r;
+
+		ekf.correct(2);
+	}
+
+	//*************************************************************************************
+	// Corrects the state while the robot is known to be still: zero velocity, and a gyro
+	// heading rate (degrees/sec) that can only be bias.
+	//*************************************************************************************
+	public void updateStationary (double headingRate) {
+
+		double[] H = ekf.H;
+		double[] R = ekf.R;
+		int      n = NUM_STATES;
+
+		z[0] = 0.0;
+		z[1] = 0.0;
+		z[2] = headingRate;
+
+		clear(H, 3 * n);
+		H[0 * n + VX]   = 1.0;
+		H[1 * n + VY]   = 1.0;
+		H[2 * n + BIAS] = 1.0;
+
+		clear(R, 9);
+		R[0] = R[4] = stillNoise * stillNoise;
+		R[8]        = stillRateNoise * stillRateNoise;
+
+		ekf.update(z, 3);
+	}
+
+	private static void clear (double[] a, int length) {
+		for (int i = 0; i < length; i++) a[i] = 0.0;
+	}
+
+	//*************************************************************************************
+	// Results.
+	//*************************************************************************************
+	public double x         () { return ekf.x[X];       }
+	public double y         () { return ekf.x[Y];       }
+	public double velocityX () { return ekf.x[VX];      }
+	public double velocityY () { return ekf.x[VY];      }
+	public double heading   () { return ekf.x[HEADING]; }
+	public double gyroBias  () { return ekf.x[BIAS];    }
+
+	// Variance of state "index" (e.g. X).
+	public double variance (int index) { return ekf.P[index * NUM_STATES + index]; }
+
+}
@@ -13,12 +13,19 @@
  * The coefficients involved are calculated very precisey, and are very sensitive to changes
  * A change by one-hundredth of a decimal place can drastically affect the output of the filter
  * It is advised to let the class calculate its own coefficients given a cutoff frequency and a 
- * bandwidth for the input frequency
+ * bandwidth for the input frequency.  The coefficients are calculated for a sampling frequency of
+ * 50 Hz (the robot loop) unless one is given.  For other responses or higher orders see BiquadFilter.
+ *
+ * As with FirstOrderLPF, there are array versions for replaying logs: filter(in, out, n),
+ * filter(channels, in, out, n) for interleaved channels and filterAll(filters, in, out, n) for
+ * many filters over the same samples.  They give exactly the results of filter(double).
  */
 package org.usfirst.frc4579.filters;
 
 public class SecondOrderLPF {
 	
+	private static final double DEFAULT_FS = 50.0; // Sampling frequency used when none is given (Hz).
+	
 	private double[] lastOutputs = {0.,0.}, // Last stored filtered output
 					 lastInputs = {0.,0.}, // Last stored filter inputs
 					 coefficients = {0.,0.,0.,0.,0.}; // Coefficients for the low pass filter calculation (see filter() for use)
@@ -56,6 +63,17 @@ public class SecondOrderLPF {
 		setLPFCoefficients(fo, bw);
 	}
 	
+	/*
+	 * This constructor attempts to calculate the coefficients itself using Fo and Bw, for samples taken at Fs
+	 * 
+	 * @param double fo Cutoff Frequency for the filter
+	 * @param double bw Width of the filter passband, should be greater than fo for critical damping
+	 * @param double fs Sampling frequency of the inputs
+	 */
+	public SecondOrderLPF(double fo, double bw, double fs) {
+		setLPFCoefficients(fo, bw, fs);
+	}
+	
 	/*
 	 * This constructor attempts to calculate the coefficients itelf be using a default cutoff frequency and filter passband width
 	 */
@@ -84,6 +102,79 @@ public class SecondOrderLPF {
 		return output;
 	}
 	
+	/* Filters n samples: out[i] = filter(in[i]).
+	 * @param double[] in The inputs to filter.
+	 * @param double[] out The filtered values (may be "in").
+	 * @param int n The number of samples.
+	 */
+	public void filter(double[] in, double[] out, int n) {
+		filter(in, out, 0, 1, n);
+	}
+	
+	// Filters n samples, in[first], in[first + stride], ..., into the same elements of out.
+	private void filter(double[] in, double[] out, int first, int stride, int n) {
+		double c0 = coefficients[0], c1 = coefficients[1], c2 = coefficients[2], c3 = coefficients[3], c4 = coefficients[4];
+		double x0 = lastInputs [0], x1 = lastInputs [1],
+			   y0 = lastOutputs[0], y1 = lastOutputs[1];
+		for (int i = first; i < first + n * stride; i += stride) {
+			double input  = in[i];
+			double output = (input*c0) + (c1 * x1) + (c2 * x0) - (c3 * y1) - (c4 * y0);
+			y0 = y1;
+			y1 = output;
+			x0 = x1;
+			x1 = input;
+			out[i] = output;
+		}
+		lastInputs [0] = x0;
+		lastInputs [1] = x1;
+		lastOutputs[0] = y0;
+		lastOutputs[1] = y1;
+	}
+	
+	/* Filters n frames of interleaved channels: in[frame * channels.length + c] is filtered by channels[c].
+	 * @param SecondOrderLPF[] channels One filter per channel.
+	 * @param double[] in The inputs, interleaved.
+	 * @param double[] out The filtered values, interleaved (may be "in").
+	 * @param int numFrames The number of samples of each channel.
+	 */
+	public static void filter(SecondOrderLPF[] channels, double[] in, double[] out, int numFrames) {
+		for (int c = 0; c < channels.length; c++)
+			channels[c].filter(in, out, c, channels.length, numFrames);
+	}
+	
+	/* Runs every filter over the same n samples, in one pass: out[j][i] = filters[j].filter(in[i]).
+	 * @param SecondOrderLPF[] filters The filters (e.g. with different coefficients).
+	 * @param double[] in The inputs to filter.
+	 * @param double[][] out The filtered values of each filter.
+	 * @param int n The number of samples.
+	 */
+	public static void filterAll(SecondOrderLPF[] filters, double[] in, double[][] out, int n) {
+		// Each output depends on the ones before, so one filter at a time waits on each step.  Running
+		// two filters side by side lets the processor overlap them.
+		int j = 0;
+		for (; j + 2 <= filters.length; j += 2) {
+			SecondOrderLPF f = filters[j], g = filters[j + 1];
+			double[] outF = out[j], outG = out[j + 1];
+			double fc0 = f.coefficients[0], fc1 = f.coefficients[1], fc2 = f.coefficients[2], fc3 = f.coefficients[3], fc4 = f.coefficients[4];
+			double gc0 = g.coefficients[0], gc1 = g.coefficients[1], gc2 = g.coefficients[2], gc3 = g.coefficients[3], gc4 = g.coefficients[4];
+			double fx0 = f.lastInputs[0], fx1 = f.lastInputs[1], fy0 = f.lastOutputs[0], fy1 = f.lastOutputs[1];
+			double gx0 = g.lastInputs[0], gx1 = g.lastInputs[1], gy0 = g.lastOutputs[0], gy1 = g.lastOutputs[1];
+			for (int i = 0; i < n; i++) {
+				double input   = in[i];
+				double outputF = (input*fc0) + (fc1 * fx1) + (fc2 * fx0) - (fc3 * fy1) - (fc4 * fy0);
+				double outputG = (input*gc0) + (gc1 * gx1) + (gc2 * gx0) - (gc3 * gy1) - (gc4 * gy0);
+				fy0 = fy1; fy1 = outputF; fx0 = fx1; fx1 = input;
+				gy0 = gy1; gy1 = outputG; gx0 = gx1; gx1 = input;
+				outF[i] = outputF;
+				outG[i] = outputG;
+			}
+			f.lastInputs[0] = fx0; f.lastInputs[1] = fx1; f.lastOutputs[0] = fy0; f.lastOutputs[1] = fy1;
+			g.lastInputs[0] = gx0; g.lastInputs[1] = gx1; g.lastOutputs[0] = gy0; g.lastOutputs[1] = gy1;
+		}
+		for (; j < filters.length; j++)
+			filters[j].filter(in, out[j], 0, 1, n);
+	}
+	
 	/*
 	 * This method hard sets the low pass filter coefficients without reconstructing the filter
 	 * 
@@ -114,14 +205,25 @@ public class SecondOrderLPF {
 	 * @param double bw Width of the filter passband, should be greater than fo for critical damping
 	 */
 	public void setLPFCoefficients(double fo, double bw) {
-		setCoefficients(fo, bw);
+		setCoefficients(fo, bw, DEFAULT_FS);
+	}
+	
+	/*
+	 * This method attempts to calculate the coefficients itself using Fo and Bw, for samples taken at Fs
+	 * 
+	 * @param double fo Cutoff Frequency for the filter
+	 * @param double bw Width of the filter passband, should be greater than fo for critical damping
+	 * @param double fs Sampling frequency of the inputs
+	 */
+	public void setLPFCoefficients(double fo, double bw, double fs) {
+		setCoefficients(fo, bw, fs);
 	}
 	
 	/*
 	 * This method attempts to calculate the coefficients itself by using default cutoff frequency and filter passband width or reconstructing the filter
 	 */
 	public void setLPFCoefficients() {
-		setCoefficients(2, 2.2);
+		setCoefficients(2, 2.2, DEFAULT_FS);
 	}
 	
 	/*
@@ -143,11 +245,10 @@ public class SecondOrderLPF {
 	/*
 	 * This method is meant to isolate the setCoefficients calculation from the rest of the class
 	 */
-	private void setCoefficients(double fo, double bw)  {
+	private void setCoefficients(double fo, double bw, double fs)  {
 		//calculate all the coefficients from inputs
 		//declare all variables
-		double  fs, // digital sampling frequency which must be at least 2 time the Nyquist frequency
-				alpha, //relationship between corner frequency and bandwidth 
+		double  alpha, //relationship between corner frequency and bandwidth 
 				Wo, // fo (Digital Cutoff Frequency) in radians per second
 				bo,
 				b1,
@@ -161,9 +262,7 @@ public class SecondOrderLPF {
 				c3,
 				c4,
 				c5;
-		// Set fs 
-		fs = 50.0; // Default Fs = 50
-		// Find Wo
+		// Find Wo (fs, the digital sampling frequency, must be at least 2 times fo)
 		Wo = 2*Math.PI*(fo / fs);
 		// Set alpha
 		alpha = Math.sin(Wo)*Math.sinh(Math.log(2)/2*bw*Wo/Math.sin(Wo));
@@ -0,0 +1,151 @@
+package org.usfirst.frc4579.filters;
+
+/*************************************************************************************
+ * STATIONARY DETECTOR
+ *
+ * Decides, sample by sample, whether the robot is standing still, from the IMU itself
+ * rather than only from the motor commands.  Motors commanded to zero don't mean the
+ * robot is still: it may be coasting, turning or being pushed, and a gyro bias learned
+ * then corrupts the heading.
+ *
+ * A sample is quiet when all of these hold:
+ *
+ *     - the caller's "at rest" hint is true (e.g. the motors are commanded to zero and
+ *       the flow sensor sees no motion),
+ *     - each bias-corrected gyro rate is below maxRate,
+ *     - the acceleration magnitude is within maxAccelError of 1 g,
+ *     - the standard deviations of the gyro and accelerometer axes over the last
+ *       "windowSize" samples are below maxRateStdDev and maxAccelStdDev (vibration).
+ *
+ * With hysteresis: the robot becomes stationary after enterSamples quiet samples in a
+ * row, and stays stationary until the hint goes false or a sample exceeds exitFactor
+ * times one of the limits.  So a robot settling after a stop is not taken as still too
+ * soon, and noise near a limit doesn't toggle the result.
+ *
+ * The rates are degrees/sec and the accelerations g, as from MPU6050_I2C.  Nothing is
+ * allocated after construction.
+ *
+ *************************************************************************************/
+
+public class StationaryDetector {
+
+	private static final int NUM_AXES = 6;          // X, Y, Z rate, then X, Y, Z acceleration.
+
+	private final AverageFilter[] windows = new AverageFilter[NUM_AXES];  // Recent samples of each axis.
+	private final int windowSize;
+
+	// Limits for a quiet sample (see above).
+	private double maxRate        = 1.0;     // Degrees/sec.
+	private double maxAccelError  = 0.05;    // g.
+	private double maxRateStdDev  = 0.25;    // Degrees/sec.
+	private double maxAccelStdDev = 0.01;    // g.
+	private double exitFactor     = 2.0;     // Leave stationary beyond this times a limit.
+	private int    enterSamples;             // Quiet samples in a row to become stationary.
+
+	private int     numSamples  = 0;         // Samples in the windows, up to windowSize.
+	private int     quietCount  = 0;         // Quiet samples in a row.
+	private boolean stationary  = false;
+	private long    numEntries  = 0;         // Times stationary was entered.
+
+	//*************************************************************************************
+	// Constructor for the MPU's 125 Hz: a 1/8 second window and 1/4 second to enter.
+	//*************************************************************************************
+	public StationaryDetector () {
+		this(16, 32);
+	}
+	
+	//*************************************************************************************
+	// Constructor.  The robot is stationary after "enterSamples" quiet samples, and the
+	// vibration is measured over the last "windowSize" samples.
+	//*************************************************************************************
+	public StationaryDetector (int windowSize, int enterSamples) {
+
+		if (windowSize < 2) throw new RuntimeException("StationaryDetector: window size " + windowSize + " is less than 2.");
+
+		this.windowSize   = windowSize;
+		this.enterSamples = Math.max(enterSamples, 1);
+
+		for (int axis = 0; axis < NUM_AXES; axis++) windows[axis] = new AverageFilter(windowSize);
+	}
+
+	// Sets the limits for a quiet sample: rates in degrees/sec and accelerations in g (see above).
+	public void setLimits (double maxRate, double maxRateStdDev, double maxAccelError, double maxAccelStdDev) {
+		this.maxRate        = maxRate;
+		this.maxRateStdDev  = maxRateStdDev;
+		this.maxAccelError  = maxAccelError;
+		this.maxAccelStdDev = maxAccelStdDev;
+	}
+
+	// Sets the factor on the limits beyond which a stationary robot is moving (at least 1).
+	public void setExitFactor (double exitFactor) {
+		this.exitFactor = Math.max(exitFactor, 1.0);
+	}
+
+	//*************************************************************************************
+	// Adds a sample: bias-corrected rates (degrees/sec) and accelerations (g), and the
+	// caller's "at rest" hint.  Returns true if the robot is stationary.
+	//*************************************************************************************
+	public boolean update (double gx, double gy, double gz, double ax, double ay, double az, boolean atRest) {
+
+		windows[0].accumulate(gx);
+		windows[1].accumulate(gy);
+		windows[2].accumulate(gz);
+		windows[3].accumulate(ax);
+		windows[4].accumulate(ay);
+		windows[5].accumulate(az);
+
+		if (numSamples < windowSize) numSamples++;
+
+		// The largest of each measure, for comparing with the limits.
+		double rate        = Math.max(Math.abs(gx), Math.max(Math.abs(gy), Math.abs(gz)));
+		double accelError  = Math.abs(Math.sqrt(ax * ax + ay * ay + az * az) - 1.0);
+		double rateStdDev  = Math.sqrt(Math.max(windows[0].variance(), Math.max(windows[1].variance(), windows[2].variance())));
+		double accelStdDev = Math.sqrt(Math.max(windows[3].variance(), Math.max(windows[4].variance(), windows[5].variance())));
+
+		if (stationary) {
+
+			double k = exitFactor;
+
+			if (!atRest || (rate > k * maxRate) || (accelError > k * maxAccelError) ||
+				(rateStdDev > k * maxRateStdDev) || (accelStdDev > k * maxAccelStdDev)) {
+
+				stationary = false;
+				quietCount = 0;
+			}
+		}
+		else {
+
+			boolean quiet = atRest && (numSamples == windowSize) &&
+							(rate <= maxRate) && (accelError <= maxAccelError) &&
+							(rateStdDev <= maxRateStdDev) && (accelStdDev <= maxAccelStdDev);
+
+			quietCount = quiet ? quietCount + 1 : 0;
+
+			if (quietCount >= enterSamples) {
+				stationary = true;
+				numEntries++;
+			}
+		}
+
+		return stationary;
+	}
+
+	// True if the robot was stationary at the last sample.
+	public boolean isStationary () {
+		return stationary;
+	}
+
+	// Number of times the robot became stationary since construction.
+	public long numEntries () {
+		return numEntries;
+	}
+
+	//*************************************************************************************
+	// Starts over as moving.  The robot must be quiet for enterSamples samples again.
+	//*************************************************************************************
+	public void reset () {
+		stationary = false;
+		quietCount = 0;
+	}
+
+}
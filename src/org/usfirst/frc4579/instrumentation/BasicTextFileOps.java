@@ -88,6 +88,13 @@ public class BasicTextFileOps {
 		return this.isOpenForRead;
 	}
 	
+	/******************************************************************************
+	* Returns "true" if the file exists.
+	******************************************************************************/
+	public boolean exists() {
+		return file.exists();
+	}
+	
 	/******************************************************************************
 	* Opens a file for writing.  If it already exists, it is deleted and re-
 	* created.
@@ -161,6 +168,37 @@ public class BasicTextFileOps {
 		}
 	}
 	
+	/******************************************************************************
+	* Writes a line of text to the file without first converting it to a String.
+	******************************************************************************/
+	public void writeLine(CharSequence chars) {
+		
+		// Enforce that file must be open for write.
+		if (!isOpenForWrite) throw new RuntimeException("ERROR: " + this.fileName + " is not open for write.");
+		
+		try {
+			bw.append(chars);
+			bw.write("\r\n");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/******************************************************************************
+	* Pushes any buffered text out to the file.
+	******************************************************************************/
+	public void flush() {
+		
+		// Enforce that file must be open for write.
+		if (!isOpenForWrite) throw new RuntimeException("ERROR: " + this.fileName + " is not open for write.");
+		
+		try {
+			bw.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	/******************************************************************************
 	* Closes an open file.
 	******************************************************************************/
@@ -23,6 +23,7 @@
 
 package org.usfirst.frc4579.instrumentation;
 
+import java.io.File;
 import java.util.ArrayList;
 import org.usfirst.frc4579.instrumentation.*;
 
@@ -41,7 +42,7 @@ public abstract class ConfigFile {
 		
 		// String shortClassName = className.substring(className.indexOf('.')+1).trim();
 		
-		cfgFile = new BasicTextFileOps(System.getProperty("user.home") + "\\" + fileName + ".txt");
+		cfgFile = new BasicTextFileOps(System.getProperty("user.home") + File.separator + fileName + ".txt");
 		
 		// System.out.println("Class Name =" + fileName);
 		
@@ -61,7 +62,10 @@ public abstract class ConfigFile {
 		String str = "/";
 		
 		// Skip over any comment lines.
-		while (str.startsWith("/")) str = cfgFile.readLine();
+		while (str.startsWith("/")) {
+			str = cfgFile.readLine();
+			if (str == null) throw new RuntimeException("End of file when expecting " + key.toUpperCase() + ".");
+		}
 
 		// If the key doesn't match the what was read, throw an exception.
 		if (!str.toUpperCase().startsWith(key.toUpperCase())) 
@@ -89,6 +93,21 @@ public abstract class ConfigFile {
         return Boolean.parseBoolean(findValue(key));
 	}
 	
+	/******************************************************************************
+	 * Returns true if the configuration file exists.
+	 ******************************************************************************/
+	public boolean exists () {
+		return cfgFile.exists();
+	}
+	
+	/******************************************************************************
+	 * Closes the file after the parameters have been read, so that it can be read
+	 * again or written.
+	 ******************************************************************************/
+	protected void closeFile () {
+		if (cfgFile.isOpenForRead()) cfgFile.close();
+	}
+	
 	/******************************************************************************
 	 * The following method writes an arrayList of configuration file parameters to 
 	 * the a configuration file. 
@@ -20,16 +20,48 @@
  * 
  * 		anticipatedMaxLinesInFile:
  * 
- * 					  For speed reasons this class uses an ArrayList to hold the file data until it is
- * 					  written to a file via a call to saveDataFiles().  An ArrayList that exceeds its
- * 					  initial size allocation can grow automatically, but is inefficient.  Try to set
- * 					  this parameter to the max number of lines that you anticipate will be written to 
- * 					  the file.  When the data is written, and data was larger than the initial allocation,
- * 					  a warning is sent to the console noting the number of lines written to the file.
- * 					  This can be used to update the anticipatedMaxLinesInFile parameter.
+ * 					  For speed reasons this class holds the file data in memory until it is written to the
+ * 					  file.  This parameter sets the number of lines that can be held in memory at once (the
+ * 					  memory is allocated up front and never grows).  If the buffer fills before the data is
+ * 					  written, new lines are dropped rather than making the caller wait, and a warning is sent
+ * 					  to the console noting how many lines were dropped.  This can be used to update the
+ * 					  anticipatedMaxLinesInFile parameter.
  * 
+ * Column mode:
+ * 
+ * 		A second constructor takes an array of column names instead of a header string.  The file then holds
+ * 		numeric data only, declared once as a set of columns, and each line is added with one of the record()
+ * 		methods.  The data is kept in preallocated primitive arrays (no String is created per line) and is only
+ * 		converted to text when the file is written.  This is the preferred mode for data logged every loop.
+ * 
+ * 			DebugTextFile myData = new DebugTextFile("myData", true, new String[] {"Rate", "Angle"}, 20000);
+ * 			...
+ * 			myData.record(rate, angle);
+ * 
+ * 		For more than two columns, fill a preallocated double[] and pass it to record(double...) so that no
+ * 		varargs array is allocated on each call.
+ * 
+ * 		Column values are written with full precision (Double.toString), which allows the data to be read back
+ * 		exactly (see SensorReplay).  setDecimals() writes them with a fixed number of decimal places instead,
+ * 		which is faster and gives smaller files.  Time tags are written in seconds with 9 decimal places.
+ * 
+ * Background writer:
+ *
+ * 		If startBackgroundWriter() is called (from Robot.robotInit()), a low priority thread periodically
+ * 		drains the data of every file to disk while the robot is running, so the buffers only need to hold a
+ * 		few seconds of data and the data is on disk if the program dies mid-match.  The thread recording the
+ * 		data never waits on the writer or on file I/O.  Each file must be recorded from a single thread.
+ *
+ * File size limit:
+ *
+ * 		Data recorded every sample adds up over a long run, and the roboRIO has little flash.  Once a file
+ * 		holds DEFAULT_MAX_FILE_BYTES (or the limit set with setMaxFileBytes()), the lines that follow are
+ * 		dropped instead of written, and a warning is sent to the console noting how many were dropped.
+ * 		The limit applies to each file of a run, so the next enable starts again from an empty file.
+ *
  * The saveDebugFiles method should be called from Robot.disabledInit().  Robot.disabledInit is called when
- * the driver station Disable button is pressed.
+ * the driver station Disable button is pressed.  It writes any remaining data and closes the files, so the
+ * next enable starts a new set of files.
  * 
  * Debug files can be transferred to the Driver Station with a program like FileZilla.  Be sure to clean
  * out old debug files by deleting them individually or deleting the lvuser\runs directory (using FileZilla).
@@ -39,27 +71,53 @@
 package org.usfirst.frc4579.instrumentation;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 public class DebugTextFile extends Instrumentation {
 
-	private static final int 	   ALLOC_INCREMENT = 10000;
-	private              int       initialAlloc    = ALLOC_INCREMENT;
-	private				 int	   currentAlloc    = initialAlloc;
+	private static final long      WRITE_PERIOD_NS = 250000000L; // Time between background writer passes.
+	private static final int       CHUNK_LINES     = 1000;       // Lines written between releases of ring space.
+	public  static final long      DEFAULT_MAX_FILE_BYTES = 50000000L;  // Size limit of each file (see setMaxFileBytes()).
 	private static       boolean   isFirstSave     = true;    // First call to saveDebugData?
 	private static       boolean   instrAvailable; // True => "runs" directory exists.
 	private				 String    fileName;	   // Base file name for this file.
 	private 			 String    header;		   // Header to be written to this file.
 	private 			 boolean   addTimeStamp;   // True => time tag each line that is written to the file.
+	private              int       capacity;       // Max number of lines held in memory.
+
+	// File data is stored locally to save throughput, in a ring of "capacity" lines.  The lines are
+	// converted to text and written to the file by the background writer and by saveDataFiles().
+	private              String[]  lineData;               // Text mode lines (null in column mode).
+	private              int       numColumns      = 0;	   // Zero => text mode (write(String) is used).
+	private              long[]    timeData;               // Time tag of each line (nanoseconds, FPGA time base).
+	private              double[]  columnData;             // Column mode values, row-major.
+	private              int       columnDecimals  = -1;   // Decimal places written for column values (-1 => full precision).
 
-	// File data is stored locally to save throughput.  The saveFileData method is invoked to
-	// dump the data to a file.
-	private ArrayList<String> fileData;
+	// Ring counters.  Only the thread recording the data changes writeCount and droppedLines, and only
+	// the thread holding saveLock changes readCount.
+	private volatile     long      writeCount      = 0;    // Number of lines recorded.
+	private volatile     long      readCount       = 0;    // Number of lines written to the file.
+	private volatile     long      droppedLines    = 0;    // Number of lines dropped because the ring was full.
+	private              long      reportedDrops   = 0;    // droppedLines at the time of the last warning.
+	
+	// File size limit.  Only the thread holding saveLock uses these.
+	private              long      maxFileBytes    = DEFAULT_MAX_FILE_BYTES;
+	private              long      fileBytes       = 0;    // Bytes written to outFile.
+	private              long      linesOverLimit  = 0;    // Lines dropped because outFile reached maxFileBytes.
+
+	// The file currently being written, null until there is data to write.
+	private              BasicTextFileOps outFile;
 	
 	// List of all DebugTextFile objects that have been created.
-	private static ArrayList<DebugTextFile> fileList = new ArrayList<DebugTextFile>(20);
+	private static List<DebugTextFile> fileList = new CopyOnWriteArrayList<DebugTextFile>();
+
+	// Serializes the background writer and saveDataFiles().
+	private static final Object        saveLock    = new Object();
+	private static final StringBuilder lineBuilder = new StringBuilder(256);
+	private static volatile Thread     writerThread;
 	
 	// Constructor
 	public DebugTextFile (String baseFileName, boolean addTimeStamp, String header, int anticipatedMaxLinesInFile) {
@@ -88,10 +146,11 @@ public class DebugTextFile extends Instrumentation {
 				this.fileName     = baseFileName;
 				this.header       = header;
 				this.addTimeStamp = addTimeStamp;
-				this.initialAlloc = anticipatedMaxLinesInFile;
+				this.capacity     = anticipatedMaxLinesInFile;
 
 				// Allocate the file data (number of lines in file) based on initial worst-case estimate.
-				this.fileData     = new ArrayList<String>(this.initialAlloc);
+				this.lineData     = new String[this.capacity];
+				this.timeData     = new long  [this.capacity];
 
 				// Add this object to the list of file objects.
 				fileList.add(this);
@@ -101,79 +160,357 @@ public class DebugTextFile extends Instrumentation {
 		}
 
 	}
-	
+
+	// Constructor for a column mode file.  The column names are written as the file header.
+	public DebugTextFile (String baseFileName, boolean addTimeStamp, String[] columnNames, int anticipatedMaxLinesInFile) {
+
+		this(baseFileName, addTimeStamp, String.join("\t", columnNames), anticipatedMaxLinesInFile);
+
+		if (instrAvailable) {
+
+			this.numColumns = columnNames.length;
+
+			// The text data is not used in column mode.
+			this.lineData   = null;
+
+			this.columnData = new double[this.capacity * this.numColumns];
+		}
+	}
+
+	// Writes the column values with "decimals" decimal places (see FixedFormat) instead of full precision.
+	public void setDecimals (int decimals) {
+		
+		if ((decimals < 0) || (decimals > FixedFormat.MAX_DECIMALS)) 
+			throw new RuntimeException(fileName + ": " + decimals + " decimals is not supported.");
+		
+		columnDecimals = decimals;
+	}
+
+	// Sets the size (in bytes) past which lines are dropped instead of written to the file of a run.
+	public void setMaxFileBytes (long maxBytes) {
+		
+		synchronized (saveLock) {
+			maxFileBytes = maxBytes;
+		}
+	}
+
 	// Writes a line to the debug file.
 	public void write (String line) {
 		
 		if (!instrAvailable) return;
 		
-		if (addTimeStamp)
-			fileData.add(timeNow() + "\t" + line);
-		else
- 		    fileData.add(line);
+		if (numColumns != 0) throw new RuntimeException(fileName + " is a column file.  Use record() instead of write().");
+		
+		int row = nextRow(addTimeStamp ? timeNowNanos() : 0L);
+		
+		if (row < 0) return;
+
+		lineData[row] = line;
+
+		commitRow();
+	}
+	
+	// Records one row of a column file.  The number of values must match the number of columns.
+	public void record (double... values) {
+		
+		if (!instrAvailable) return;
+
+		record(addTimeStamp ? timeNowNanos() : 0L, values);
+	}
+	
+	// Records one row of a column file with a caller-supplied time tag (nanoseconds, see timeNowNanos()).
+	public void record (long timeNanos, double[] values) {
+		
+		if (!instrAvailable) return;
+		
+		if (values.length != numColumns) 
+			throw new RuntimeException(fileName + " has " + numColumns + " columns but " + values.length + " values were recorded.");
+		
+		int row = nextColumnRow(timeNanos);
+
+		if (row < 0) return;
+
+		System.arraycopy(values, 0, columnData, row * numColumns, numColumns);
+
+		commitRow();
+	}
+	
+	// Records one row of a one column file.
+	public void record (double a) {
+		
+		if (!instrAvailable) return;
+		
+		if (numColumns != 1) throw new RuntimeException(fileName + " does not have 1 column.");
+		
+		int row = nextColumnRow(addTimeStamp ? timeNowNanos() : 0L);
+
+		if (row < 0) return;
+
+		columnData[row] = a;
+
+		commitRow();
+	}
+	
+	// Records one row of a two column file.
+	public void record (double a, double b) {
+		
+		if (!instrAvailable) return;
+
+		record(addTimeStamp ? timeNowNanos() : 0L, a, b);
+	}
+	
+	// Records one row of a two column file with a caller-supplied time tag (nanoseconds).
+	public void record (long timeNanos, double a, double b) {
+		
+		if (!instrAvailable) return;
 		
-		// if the number of lines in the file has reached our allocation, increase the allocation.
-		if (fileData.size() == currentAlloc)
-		{
-			currentAlloc += ALLOC_INCREMENT;
-			fileData.ensureCapacity(currentAlloc);
+		if (numColumns != 2) throw new RuntimeException(fileName + " does not have 2 columns.");
+		
+		int row = nextColumnRow(timeNanos);
+
+		if (row < 0) return;
+
+		columnData[row * 2]     = a;
+		columnData[row * 2 + 1] = b;
+
+		commitRow();
+	}
+	
+	// Same as nextRow(), for column files only.
+	private int nextColumnRow (long timeNanos) {
+		
+		if (numColumns == 0) throw new RuntimeException(fileName + " is a text file.  Use write() instead of record().");
+		
+		return nextRow(timeNanos);
+	}
+
+	// Reserves the next line of the ring, saves its time tag and returns its index.  Returns -1 (and
+	// counts the line as dropped) if the ring is full.  The line isn't visible to the writer until
+	// commitRow() is called.
+	private int nextRow (long timeNanos) {
+
+		long count   = writeCount;
+		long pending = count - readCount;
+
+		// if the writer hasn't kept up, drop the line rather than wait for it.
+		if (pending >= capacity) {
+			droppedLines++;
+			return -1;
 		}
+		
+		// Wake the background writer early when the ring is half full.
+		if (pending == capacity / 2) wakeBackgroundWriter();
+
+		int row = (int)(count % capacity);
+
+		timeData[row] = timeNanos;
+
+		return row;
 	}
 	
-	// Saves debug data to a file for each DebugTextFile object.
-	public static void saveDataFiles() {
+	// Makes the line reserved by nextRow() visible to the writer.
+	private void commitRow () {
+		writeCount = writeCount + 1;
+	}
+	
+	// Converts line "row" of the ring to text in "sb".
+	private StringBuilder formatRow (StringBuilder sb, int row) {
 		
-		// Robot.disabledInit() is called at startup (when no data has been written).
-		// So don't try to dump data on the first call.
-		if (isFirstSave) {
-			isFirstSave = false;
+		sb.setLength(0);
+		
+		// The time in nanoseconds is written as exact seconds.
+		if (addTimeStamp) FixedFormat.appendFixedPoint(sb, timeData[row], 0, 9).append('\t');
+		
+		if (numColumns == 0) {
+			sb.append(lineData[row]);
+		
+			// Release the string.
+			lineData[row] = null;
+		}
+		else {
+			int index = row * numColumns;
+
+			for (int i = 0; i < numColumns; i++) {
+				if (i != 0) sb.append('\t');
+				
+				if (columnDecimals < 0)
+					sb.append(columnData[index + i]);
+				else
+					FixedFormat.append(sb, columnData[index + i], 0, columnDecimals);
+			}
+		}
+		
+		return sb;
+	}
+	
+	// Returns true if there are lines waiting to be written to the file.  Subclasses that keep their 
+	// own data (see EventLogging) override this method, writePendingLines() and linesDropped().
+	protected boolean hasPendingLines () {
+		return readCount != writeCount;
+	}
+	
+	// Writes the lines recorded since the last call to "file", using "sb" to build each line.  Called 
+	// from the writer, never from the thread recording the data.
+	protected void writePendingLines (BasicTextFileOps file, StringBuilder sb) {
+		
+		long count = writeCount;
+		long read  = readCount;
+		
+		while (read < count) {
+			
+			writeLine(file, formatRow(sb, (int)(read % capacity)));
+			
+			read++;
+			
+			// Give the space back to the recording thread a chunk at a time.
+			if ((read % CHUNK_LINES) == 0) readCount = read;
+		}
+		
+		readCount = read;
+	}
+	
+	// Writes one line to "file", unless the file has reached its size limit, in which case the line is
+	// dropped and counted.  writePendingLines() writes every line through this method.
+	protected final void writeLine (BasicTextFileOps file, CharSequence line) {
+		
+		if (fileBytes >= maxFileBytes) {
+			
+			if (linesOverLimit++ == 0)
+				System.out.println("WARNING: File " + fileName + " reached its size limit of " + maxFileBytes + 
+						" bytes.  Lines are dropped until the next run.");
 			return;
 		}
+		
+		file.writeLine(line);
+		
+		fileBytes += line.length() + 2;  // Plus the line end.
+	}
+	
+	// Returns the number of lines dropped because the buffer was full.
+	protected long linesDropped () {
+		return droppedLines;
+	}
 
-		System.out.println("Writing " + fileList.size() + " files...");	
+	// Creates the file for this run and writes the header.
+	private void openFile () {
+
+		SimpleDateFormat hrMinFormat = new SimpleDateFormat ("_hh.mm.ss");
+
+		// Create a File object with the debug file name.
+		Date date = new Date();
+		outFile   = new BasicTextFileOps
+				(dataDirectoryName() + "/" + fileName + hrMinFormat.format(date) + ".txt");
+
+		System.out.println("Saving debug file " + outFile.fileName);
+
+		outFile.openForWrite();
+
+		fileBytes = 0;
+
+		// If a header was supplied, write it to the file.
+		if (header.length() != 0) {
+			if (addTimeStamp)
+				writeLine(outFile, "Time\t" + header);
+			else
+				writeLine(outFile, header);
+		}
+	}
+
+	// Writes all lines recorded so far to the file.  Must be called holding saveLock.
+	private void drain () {
+
+		if (!hasPendingLines()) return;
+
+		if (outFile == null) openFile();
+
+		writePendingLines(outFile, lineBuilder);
+
+		outFile.flush();
+	}
+
+	// Closes the file for this run.  Must be called holding saveLock.
+	private void closeFile () {
+
+		// If lines were dropped, print a warning.
+		long dropped = linesDropped();
+
+		if (dropped != reportedDrops) {
+			System.out.println("WARNING: File " + fileName + " dropped " + (dropped - reportedDrops) +
+					" lines because its buffer was full.  Please update initial allocation in the DebugTextFile instantiation for this file.");
+			reportedDrops = dropped;
+		}
 		
-		// for each debug file
-		for (DebugTextFile aDebugFile : fileList) {
+		if (linesOverLimit != 0) {
+			System.out.println("WARNING: File " + fileName + " dropped " + linesOverLimit + 
+					" lines past its size limit of " + maxFileBytes + " bytes.");
+			linesOverLimit = 0;
+		}
 
-			SimpleDateFormat hrMinFormat = new SimpleDateFormat ("_hh.mm.ss");
+		if (outFile != null) {
+			outFile.close();
+			outFile = null;
+		}
+	}
 
-			if (instrAvailable) {
+	// Writes the pending data of every file, optionally closing the files.
+	private static void writeFiles (boolean closeFiles) {
 
-				// Create a File object with the event log file name.
-				Date date = new Date();
-				BasicTextFileOps fileWriter = new BasicTextFileOps
-						(dataDirectoryName() + "/" + aDebugFile.fileName + hrMinFormat.format(date) + ".txt");
+		synchronized (saveLock) {
 
-				System.out.println("Saving debug file " + fileWriter.fileName);
-				
-				fileWriter.openForWrite();
-
-				// If a header was supplied, write it to the file.
-				if (aDebugFile.header.length() != 0) {
-					if (aDebugFile.addTimeStamp)
-						fileWriter.writeLine("Time\t" + aDebugFile.header);
-					else
-						fileWriter.writeLine(aDebugFile.header);
-				}
-
-				// If final size is larger than initial allocation, print a warning.
-				if (aDebugFile.fileData.size() > aDebugFile.initialAlloc)
-					System.out.println("WARNING: File " + aDebugFile.fileName + " is " + aDebugFile.fileData.size() +
-							" lines long.  Initial allocation was " + aDebugFile.initialAlloc + 
-							".  Please update initial allocation in the DebugTextFile instantiation for this file.");
-
-				// Write out each line of the file.
-				for (String line : aDebugFile.fileData) {
-					fileWriter.writeLine(line);
-				}
-
-				fileWriter.close();
+			for (DebugTextFile aDebugFile : fileList) {
+
+				aDebugFile.drain();
+
+				if (closeFiles) aDebugFile.closeFile();
+			}
+		}
+	}
+
+	// Makes the background writer (if running) start its next pass now.
+	protected static void wakeBackgroundWriter () {
+		
+		Thread writer = writerThread;
+		
+		if (writer != null) LockSupport.unpark(writer);
+	}
+	
+	// Starts a low priority thread that writes the data of every file to disk while the robot runs.
+	public static synchronized void startBackgroundWriter () {
+
+		if (writerThread != null) return;
+
+		writerThread = new Thread(() -> {
+
+			while (true) {
+
+				writeFiles(false);
+
+				LockSupport.parkNanos(WRITE_PERIOD_NS);
 			}
 
-			// Free up memory.
-			aDebugFile.fileData.clear();
+		}, "DebugTextFile writer");
+
+		writerThread.setPriority(Thread.MIN_PRIORITY);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	
+	// Saves debug data to a file for each DebugTextFile object.
+	public static void saveDataFiles() {
+		
+		// Robot.disabledInit() is called at startup (when no data has been written).
+		// So don't try to dump data on the first call.
+		if (isFirstSave) {
+			isFirstSave = false;
+			return;
 		}
 
+		if (!instrAvailable) return;
+
+		System.out.println("Writing " + fileList.size() + " files...");	
+		
+		writeFiles(true);
+
 	}
 
-}
\ No newline at end of file
+}
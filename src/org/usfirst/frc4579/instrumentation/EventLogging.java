@@ -3,10 +3,31 @@
  * This class allows the coder to leave a trail of time-tagged
  * "bread crumbs" (events) for debug purposes.  These are written
  * to a file on the roboRIO (see DebugTextFile class).
+ * 
+ * Logging an event only copies its time, category, enum and optional
+ * data into a preallocated ring of records.  Any thread can log events
+ * without locking, and the text of the events file is only created when
+ * DebugTextFile writes the file.
+ * 
+ * NORMAL events named START_xxx/END_xxx (or xxx_START_yyy/xxx_END_yyy)
+ * are matched as spans.  The time between each START and the END that
+ * follows it is added to a latency histogram for the span.  Span
+ * statistics are shown on the SmartDashboard (publishSpanStats) and
+ * written to a summary file at disable (saveSpanSummary).  The thread
+ * logging an END is the only one that writes to the span's histogram;
+ * saveSpanSummary clears the statistics by swapping in a new histogram.
  **********************************************************************/
 
 package org.usfirst.frc4579.instrumentation;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
 public class EventLogging extends Instrumentation {
 	
 	/*********************************************************************************
@@ -52,21 +73,86 @@ public class EventLogging extends Instrumentation {
 	 *********************************************************************************/
 	public enum INTERESTINGEVENTS {
 						
-						MEASUREMENT_DATA
+						MEASUREMENT_DATA,
+						MPU_CALIBRATION_LOADED,      // Stored gyro calibration (see MPU6050_I2C)
+						MPU_CALIBRATION_CONFIRMED,
+						MPU_CALIBRATION_REPLACED
 	};
 
 	/*********************************************************************************
  	 * BAD EVENTS should not happen and should be debugged.
  	 *********************************************************************************/
 	public enum BADEVENTS {
-						TARGET_TRACKER_UNHANDLED_EXCEPTION
+						TARGET_TRACKER_UNHANDLED_EXCEPTION,
+						MPU_INIT_FAILED,
+						MPU_FIFO_OVERFLOW
 	};
 
 	private static boolean        logAvailable = false;
-	private static DebugTextFile  eventLogFile = new DebugTextFile("Events", false, "", 30000);
+	private static EventRing      eventLogFile = new EventRing("Events", 32768);
 
 	private static EventLogging   eventsObj;
 	
+	// Event categories, as recorded in the ring and written to the file.
+	private static final byte     NORMAL      = 0,
+								  INTERESTING = 1,
+								  BAD         = 2;
+	
+	private static final String[] categoryNames = {"NORMAL      ", "INTERESTING", "BAD         "};
+	
+	// Enum values indexed by ordinal, used to turn a record back into an event name.
+	private static final NORMALEVENTS[]      normalEvents      = NORMALEVENTS.values();
+	private static final INTERESTINGEVENTS[] interestingEvents = INTERESTINGEVENTS.values();
+	private static final BADEVENTS[]         badEvents         = BADEVENTS.values();
+	
+	// Spans.  spanOfEvent and isSpanStart are indexed by NORMALEVENTS ordinal; spanOfEvent is -1
+	// for events that aren't part of a START/END pair.
+	private static final int[]              spanOfEvent   = new int    [normalEvents.length];
+	private static final boolean[]          isSpanStart   = new boolean[normalEvents.length];
+	private static final String[]           spanNames;
+	private static final AtomicReferenceArray<LatencyHistogram> spanHistograms;  // Replaced, not reset, by saveSpanSummary.
+	private static final AtomicLongArray    spanStartTime;   // Time of the open START of each span, 0 if none.
+	
+	private static final long               PUBLISH_PERIOD_NS = 1000000000L;
+	private static       long               lastPublishTime   = 0;
+	
+	// Pair up the START_ and END_ events.
+	static {
+		
+		int numSpans = 0;
+		
+		for (int i = 0; i < normalEvents.length; i++) spanOfEvent[i] = -1;
+		
+		String[] names = new String[normalEvents.length];
+		
+		for (NORMALEVENTS start : normalEvents) {
+			
+			String startName = start.name();
+			
+			if (!startName.contains("START_")) continue;
+			
+			for (NORMALEVENTS end : normalEvents) {
+				
+				if (end.name().equals(startName.replaceFirst("START_", "END_"))) {
+					
+					spanOfEvent[start.ordinal()] = numSpans;
+					spanOfEvent[end  .ordinal()] = numSpans;
+					isSpanStart[start.ordinal()] = true;
+					names[numSpans++]            = startName.replaceFirst("START_", "");
+				}
+			}
+		}
+		
+		spanNames      = new String[numSpans];
+		spanHistograms = new AtomicReferenceArray<LatencyHistogram>(numSpans);
+		spanStartTime  = new AtomicLongArray(numSpans);
+		
+		for (int i = 0; i < numSpans; i++) {
+			spanNames[i]      = names[i];
+			spanHistograms.set(i, new LatencyHistogram());
+		}
+	}
+	
 	// Constructor
 	public EventLogging () {
 
@@ -90,43 +176,268 @@ public class EventLogging extends Instrumentation {
 	}
 
 	/***************************************************************************
-	 * This method logs the specified event onto the eventLog.
+	 * This method logs a NORMAL event.
 	 ***************************************************************************/
-	private static synchronized void logEvent (String event) {
+	public static void logNormalEvent (NORMALEVENTS event, String auxData) {
 
-		String eventStr = String.format("%10.6f", timeNow()) + '\t' + event + '\t';
-		
-		eventLogFile.write(eventStr);
+		logNormal(event, auxData, Double.NaN);
 
 	}
 
-	/***************************************************************************
-	 * This method logs a NORMAL event.
-	 ***************************************************************************/
-	public static synchronized void logNormalEvent (NORMALEVENTS event, String auxData) {
+	public static void logNormalEvent (NORMALEVENTS event) {
+
+		logNormal(event, null, Double.NaN);
+
+	}
+
+	public static void logNormalEvent (NORMALEVENTS event, double value) {
+
+		logNormal(event, null, value);
+
+	}
+	
+	private static void logNormal (NORMALEVENTS event, String auxData, double value) {
+		
+		long time = timeNowNanos();
 
 		if (logAvailable) 
-			logEvent ("NORMAL      \t" + event.name() + "\t" + auxData);
+			eventLogFile.log(NORMAL, event.ordinal(), auxData, value, time);
 
+		int span = spanOfEvent[event.ordinal()];
+		
+		if (span < 0) return;
+		
+		if (isSpanStart[event.ordinal()])
+			spanStartTime.set(span, time);
+		else {
+			
+			// Only an END that follows a START counts.
+			long startTime = spanStartTime.getAndSet(span, 0);
+			
+			if (startTime != 0) spanHistograms.get(span).record(time - startTime);
+		}
 	}
 
 	/***************************************************************************
 	 * This method logs an INTERESTING event.
 	 ***************************************************************************/
-	public static synchronized void logInterestingEvent (INTERESTINGEVENTS event, String auxData) {
+	public static void logInterestingEvent (INTERESTINGEVENTS event, String auxData) {
 
 		if (logAvailable) 
-			logEvent ("INTERESTING\t" + event.name() + "\t" + auxData);
+			eventLogFile.log(INTERESTING, event.ordinal(), auxData, Double.NaN, timeNowNanos());
+
+	}
+
+	public static void logInterestingEvent (INTERESTINGEVENTS event, double value) {
+
+		if (logAvailable) 
+			eventLogFile.log(INTERESTING, event.ordinal(), null, value, timeNowNanos());
 
 	}
 
 	/***************************************************************************
 	 * This method logs a BAD event.
 	 ***************************************************************************/
-	public static synchronized void logBadEvent (BADEVENTS event, String auxData) {
+	public static void logBadEvent (BADEVENTS event, String auxData) {
 
 		if (logAvailable) 
-			logEvent ("BAD         \t" + event.name() + "\t" + auxData);
+			eventLogFile.log(BAD, event.ordinal(), auxData, Double.NaN, timeNowNanos());
 	}
-}
 
+	public static void logBadEvent (BADEVENTS event, double value) {
+
+		if (logAvailable) 
+			eventLogFile.log(BAD, event.ordinal(), null, value, timeNowNanos());
+	}
+	
+	/***************************************************************************
+	 * This method shows the latency statistics of each span that has been
+	 * timed on the SmartDashboard (in milliseconds).  It can be called every
+	 * loop; the dashboard is only updated once per second.
+	 ***************************************************************************/
+	public static void publishSpanStats () {
+		
+		long now = timeNowNanos();
+		
+		if (now - lastPublishTime < PUBLISH_PERIOD_NS) return;
+		
+		lastPublishTime = now;
+		
+		for (int i = 0; i < spanNames.length; i++) {
+			
+			LatencyHistogram h = spanHistograms.get(i);
+			
+			if (h.count() != 0)
+				SmartDashboard.putString("Span " + spanNames[i] + " (ms):", h.summary());
+		}
+	}
+	
+	/***************************************************************************
+	 * This method writes the latency statistics of each span to a summary
+	 * file in the run directory and then clears the statistics.  It should be
+	 * called from Robot.disabledInit().
+	 * 
+	 * Other threads (e.g. the MPU sampling Notifier) keep recording spans
+	 * while this runs, so a histogram is never reset here.  Each one is
+	 * replaced by a new histogram, which the recording thread uses from its
+	 * next END on, and the old one is written out.
+	 ***************************************************************************/
+	public static void saveSpanSummary () {
+		
+		LatencyHistogram[] saved = new LatencyHistogram[spanNames.length];
+		
+		boolean anyTimed = false;
+		
+		for (int i = 0; i < spanNames.length; i++) {
+			
+			if (spanHistograms.get(i).count() == 0) continue;
+			
+			saved[i] = spanHistograms.getAndSet(i, new LatencyHistogram());
+			anyTimed = true;
+		}
+		
+		if (!logAvailable || !anyTimed) return;
+		
+		SimpleDateFormat hrMinFormat = new SimpleDateFormat ("_hh.mm.ss");
+		
+		BasicTextFileOps summaryFile = new BasicTextFileOps
+				(dataDirectoryName() + "/spanSummary" + hrMinFormat.format(new Date()) + ".txt");
+		
+		summaryFile.openForWrite();
+		
+		summaryFile.writeLine("Span\tCount\tMinMs\tMeanMs\tP50Ms\tP99Ms\tP99.9Ms\tMaxMs");
+		
+		for (int i = 0; i < spanNames.length; i++) {
+			
+			LatencyHistogram h = saved[i];
+			
+			if (h != null)
+				summaryFile.writeLine(String.format("%s\t%d\t%.4f\t%.4f\t%.4f\t%.4f\t%.4f\t%.4f", 
+						spanNames[i], h.count(), h.minMs(), h.meanMs(), 
+						h.percentileMs(50.0), h.percentileMs(99.0), h.percentileMs(99.9), h.maxMs()));
+		}
+		
+		summaryFile.close();
+	}
+	
+	/***************************************************************************
+	 * The events file.  Events are held in a ring of fixed-size records.  A
+	 * thread logging an event claims the next record with a compare-and-set
+	 * on claimCount, fills it in and then publishes it by storing its
+	 * sequence number in "published".  The writer formats published records 
+	 * in order.  If the ring is full the event is dropped (and counted) 
+	 * instead of waiting for the writer.
+	 ***************************************************************************/
+	private static class EventRing extends DebugTextFile {
+		
+		private final int             size;          // Number of records (a power of 2).
+		private final int             mask;          // size - 1.
+		
+		private final long[]          eventTime;     // Time of the event (nanoseconds, see timeNowNanos()).
+		private final byte[]          category;      // NORMAL, INTERESTING or BAD.
+		private final short[]         ordinal;       // Ordinal of the event enum.
+		private final String[]        auxData;       // Optional text, null if none.
+		private final double[]        value;         // Optional value, NaN if none.
+		private final AtomicLongArray published;     // Sequence number + 1 of the record in each slot.
+		
+		private final AtomicLong      claimCount   = new AtomicLong();  // Number of records claimed.
+		private final AtomicLong      droppedCount = new AtomicLong();  // Number of events dropped.
+		private volatile long         readCount    = 0;                 // Number of records written.
+		
+		private EventRing (String fileName, int size) {
+			
+			// The file data is kept here, not in the DebugTextFile buffer.
+			super(fileName, false, "", 0);
+			
+			if (Integer.bitCount(size) != 1) throw new RuntimeException("EventRing size must be a power of 2.");
+			
+			this.size      = size;
+			this.mask      = size - 1;
+			this.eventTime = new long    [size];
+			this.category  = new byte    [size];
+			this.ordinal   = new short   [size];
+			this.auxData   = new String  [size];
+			this.value     = new double  [size];
+			this.published = new AtomicLongArray(size);
+		}
+		
+		// Adds an event to the ring.  Safe to call from any thread.
+		private void log (byte eventCategory, int eventOrdinal, String eventAuxData, double eventValue, long time) {
+			
+			long seq;
+			
+			// Claim the next record unless the ring is full.
+			do {
+				seq = claimCount.get();
+				
+				if (seq - readCount >= size) {
+					droppedCount.incrementAndGet();
+					return;
+				}
+				
+			} while (!claimCount.compareAndSet(seq, seq + 1));
+			
+			// Wake the writer early when the ring is half full.
+			if (seq - readCount == size / 2) wakeBackgroundWriter();
+			
+			int slot = (int)(seq & mask);
+			
+			eventTime[slot] = time;
+			category [slot] = eventCategory;
+			ordinal  [slot] = (short)eventOrdinal;
+			auxData  [slot] = eventAuxData;
+			value    [slot] = eventValue;
+			
+			// Publish the record to the writer.
+			published.lazySet(slot, seq + 1);
+		}
+		
+		@Override
+		protected boolean hasPendingLines () {
+			return published.get((int)(readCount & mask)) == readCount + 1;
+		}
+		
+		@Override
+		protected void writePendingLines (BasicTextFileOps file, StringBuilder sb) {
+			
+			long read = readCount;
+			
+			// Write records in order until one that hasn't been published is found.
+			while (published.get((int)(read & mask)) == read + 1) {
+				
+				int slot = (int)(read & mask);
+				
+				sb.setLength(0);
+				FixedFormat.appendFixedPoint(sb, (eventTime[slot] + 500) / 1000, 10, 6).append('\t');  // Microseconds, as "%10.6f" seconds.
+				sb.append(categoryNames[category[slot]]).append('\t');
+				sb.append(eventName(category[slot], ordinal[slot])).append('\t');
+				
+				if (auxData[slot] != null)         sb.append(auxData[slot]);
+				if (!Double.isNaN(value[slot]))    sb.append(value[slot]);
+				
+				sb.append('\t');
+				
+				writeLine(file, sb);
+				
+				// Release the record.
+				auxData[slot] = null;
+				read++;
+				readCount = read;
+			}
+		}
+		
+		@Override
+		protected long linesDropped () {
+			return droppedCount.get();
+		}
+		
+		private static String eventName (byte eventCategory, int eventOrdinal) {
+			
+			switch (eventCategory) {
+				case NORMAL:      return normalEvents     [eventOrdinal].name();
+				case INTERESTING: return interestingEvents[eventOrdinal].name();
+				default:          return badEvents        [eventOrdinal].name();
+			}
+		}
+	}
+}
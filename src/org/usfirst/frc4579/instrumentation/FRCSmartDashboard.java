@@ -5,6 +5,11 @@
 
 package org.usfirst.frc4579.instrumentation;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wpi.first.networktables.NetworkTableEntry;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 public class FRCSmartDashboard {
@@ -53,4 +58,198 @@ public class FRCSmartDashboard {
 		SmartDashboard.putNumber ("Right Ultra Voltage:", value);
 	}
 	
+	/******************************************************************************
+	 * TELEMETRY PUBLISHER
+	 * 
+	 * Values updated every loop are held in telemetry slots instead of being
+	 * put on the SmartDashboard directly:
+	 * 
+	 *     private static final FRCSmartDashboard.NumberValue angleDisplay = 
+	 *             new FRCSmartDashboard.NumberValue("Robot Angle:", 0.01);
+	 *     ...
+	 *     angleDisplay.put(angle);
+	 * 
+	 * put() only stores the value and marks the slot dirty when the value
+	 * changes.  A publisher thread (see startPublisher(), called from
+	 * Robot.robotInit()) puts the dirty slots on the SmartDashboard at its own
+	 * rate, using a NetworkTables entry looked up once per slot, and skips
+	 * values within the slot's epsilon of the last value sent.  Values put
+	 * before the publisher is started are sent when it starts, and are never
+	 * sent if it isn't (e.g. off-robot, where there are no NetworkTables).
+	 * 
+	 * Each slot should be put from one thread, and be created once (e.g. as a
+	 * static field).
+	 ******************************************************************************/
+	
+	private static final List<TelemetrySlot> slots           = new CopyOnWriteArrayList<TelemetrySlot>();
+	private static volatile Thread           publisherThread;
+	
+	// Starts a low priority thread that publishes the telemetry slots every periodSeconds.
+	public static synchronized void startPublisher (double periodSeconds) {
+		
+		if (publisherThread != null) return;
+		
+		final long periodNanos = (long)(periodSeconds * 1.0e9);
+		
+		publisherThread = new Thread(() -> {
+			
+			while (true) {
+				
+				for (TelemetrySlot slot : slots) slot.flush();
+				
+				LockSupport.parkNanos(periodNanos);
+			}
+			
+		}, "SmartDashboard publisher");
+		
+		publisherThread.setPriority(Thread.MIN_PRIORITY);
+		publisherThread.setDaemon(true);
+		publisherThread.start();
+	}
+	
+	// A value published by the publisher thread.
+	private static abstract class TelemetrySlot {
+		
+		protected final String     key;
+		private NetworkTableEntry  entry;                  // Looked up at the first publish.
+		private volatile boolean   dirty = false;          // True => the value changed since it was last published.
+		
+		private TelemetrySlot (String key) {
+			this.key = key;
+			slots.add(this);
+		}
+		
+		// Called by put() when the value changes.
+		protected final void changed () {
+			dirty = true;
+		}
+		
+		// Publishes the value if it changed.  Called by the publisher thread.
+		private void flush () {
+			
+			if (!dirty) return;
+			
+			dirty = false;
+			
+			publish();
+		}
+		
+		protected final NetworkTableEntry entry () {
+			
+			if (entry == null) entry = SmartDashboard.getEntry(key);
+			
+			return entry;
+		}
+		
+		// Puts the value on the SmartDashboard, unless it is close enough to the last one published.
+		protected abstract void publish ();
+	}
+	
+	/******************************************************************************
+	 * A number shown on the SmartDashboard, like SmartDashboard.putNumber().
+	 * Changes of "epsilon" or less from the value shown aren't sent.
+	 ******************************************************************************/
+	public static class NumberValue extends TelemetrySlot {
+		
+		private final double    epsilon;
+		private volatile double value;
+		private double          lastPut       = Double.NaN; // Last value put (putting thread only).
+		private double          published     = 0.0;        // Last value published (publishing thread only).
+		private boolean         isPublished   = false;
+		
+		public NumberValue (String key, double epsilon) {
+			super(key);
+			this.epsilon = epsilon;
+		}
+		
+		public void put (double value) {
+			
+			if (value == lastPut) return;
+			
+			lastPut    = value;
+			this.value = value;
+			
+			changed();
+		}
+		
+		@Override
+		protected void publish () {
+			
+			double latest = value;
+			
+			if (isPublished && (Math.abs(latest - published) <= epsilon)) return;
+			
+			entry().setDouble(latest);
+			
+			published   = latest;
+			isPublished = true;
+		}
+	}
+	
+	/******************************************************************************
+	 * A number shown on the SmartDashboard as a fixed format string, e.g.
+	 * 
+	 *     private final FormattedNumber angleDisplay = new FormattedNumber("Angle Z:", 7, 1);
+	 *     ...
+	 *     angleDisplay.put(angle);  // Same as putString("Angle Z:", String.format("%7.1f", angle))
+	 * 
+	 * The number is formatted (see FixedFormat) by the publisher into a reused
+	 * buffer.  A String is only created, and sent, when the text changes.
+	 ******************************************************************************/
+	public static class FormattedNumber extends TelemetrySlot {
+		
+		private final int       width;
+		private final int       decimals;
+		private volatile double value;
+		private double          lastPut  = Double.NaN;    // Last value put (putting thread only).
+		private final char[]    text     = new char[32];  // Text of the latest value.
+		private int             length   = -1;            // Length of the text last published (-1 => none).
+		private final char[]    lastText = new char[32];  // Text last published.
+		
+		public FormattedNumber (String key, int width, int decimals) {
+			super(key);
+			this.width    = width;
+			this.decimals = decimals;
+		}
+		
+		public void put (double value) {
+			
+			if (value == lastPut) return;
+			
+			lastPut    = value;
+			this.value = value;
+			
+			changed();
+		}
+		
+		@Override
+		protected void publish () {
+			
+			double latest = value;
+			
+			// Values that don't fit the buffer are rare (see FixedFormat) and are put as is.
+			if ((width > text.length) || !(Math.abs(latest) < 1.0e15)) {
+				length = -1;
+				entry().setString(String.format("%" + width + "." + decimals + "f", latest));
+				return;
+			}
+			
+			int newLength = FixedFormat.format(text, 0, latest, width, decimals);
+			
+			if (newLength == length) {
+				
+				boolean same = true;
+				
+				for (int i = 0; same && (i < newLength); i++) same = text[i] == lastText[i];
+				
+				if (same) return;
+			}
+			
+			System.arraycopy(text, 0, lastText, 0, newLength);
+			length = newLength;
+			
+			entry().setString(new String(text, 0, newLength));
+		}
+	}
+	
 }
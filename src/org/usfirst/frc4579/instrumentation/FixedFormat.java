@@ -0,0 +1,225 @@
+/******************************************************************************
+ * FIXED FORMAT
+ *
+ * Formats numbers with a fixed number of decimal places, like
+ * String.format("%7.2f", value), into a caller-supplied char[], byte[] or
+ * StringBuilder.  Nothing is allocated, so it can be used every loop.
+ *
+ *     char[] buf = new char[16];
+ *     int    end = FixedFormat.format(buf, 0, angle, 7, 1);   // "  123.4"
+ *
+ *     FixedFormat.append(sb, angle, 7, 1);
+ *
+ * Doubles are rounded to the nearest value with "decimals" decimal places
+ * (0 to 9).  Where the double is almost exactly half way between two such
+ * values the last digit may differ from String.format.  NaN, infinities and
+ * values too big to scale into a long are written with Double.toString
+ * (which allocates).
+ *
+ * A long holding a fixed point value (e.g. nanoseconds = seconds with 9
+ * decimals) can be written exactly with appendFixedPoint().
+ *
+ * FixedFormatBenchmark (in org.usfirst.frc4579.simulation) compares the speed
+ * with String.format and Double.toString.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.instrumentation;
+
+public class FixedFormat {
+
+	// Largest supported number of decimals.
+	public static final int MAX_DECIMALS = 9;
+
+	private static final long[] POWERS_OF_10 = {
+			1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L };
+
+	// Scaled values must stay well inside a long.
+	private static final double MAX_SCALED = 1.0e18;
+
+	/******************************************************************************
+	 * Writes "value" with "decimals" decimal places into buf, starting at
+	 * "offset", right-justified in at least "width" characters.  Returns the
+	 * offset just past the last character written.
+	 ******************************************************************************/
+	public static int format (char[] buf, int offset, double value, int width, int decimals) {
+
+		if (!isScalable(value, decimals)) return copy(buf, offset, Double.toString(value), width);
+
+		long    scaled   = scale(value, decimals);
+		boolean negative = isNegative(value);
+		int     end      = offset + Math.max(width, length(scaled, negative, decimals));
+		int     pos      = end;
+
+		// Write the digits from the right.
+		for (int i = 0; i < decimals; i++) {
+			buf[--pos] = (char)('0' + (int)(scaled % 10));
+			scaled /= 10;
+		}
+
+		if (decimals > 0) buf[--pos] = '.';
+
+		do {
+			buf[--pos] = (char)('0' + (int)(scaled % 10));
+			scaled /= 10;
+		} while (scaled != 0);
+
+		if (negative) buf[--pos] = '-';
+
+		while (pos > offset) buf[--pos] = ' ';
+
+		return end;
+	}
+
+	/******************************************************************************
+	 * Same as format(char[], ...), writing ASCII bytes (e.g. for a file or
+	 * network buffer).
+	 ******************************************************************************/
+	public static int format (byte[] buf, int offset, double value, int width, int decimals) {
+
+		if (!isScalable(value, decimals)) return copy(buf, offset, Double.toString(value), width);
+
+		long    scaled   = scale(value, decimals);
+		boolean negative = isNegative(value);
+		int     end      = offset + Math.max(width, length(scaled, negative, decimals));
+		int     pos      = end;
+
+		for (int i = 0; i < decimals; i++) {
+			buf[--pos] = (byte)('0' + (int)(scaled % 10));
+			scaled /= 10;
+		}
+
+		if (decimals > 0) buf[--pos] = '.';
+
+		do {
+			buf[--pos] = (byte)('0' + (int)(scaled % 10));
+			scaled /= 10;
+		} while (scaled != 0);
+
+		if (negative) buf[--pos] = '-';
+
+		while (pos > offset) buf[--pos] = ' ';
+
+		return end;
+	}
+
+	/******************************************************************************
+	 * Appends "value" with "decimals" decimal places to sb, right-justified in
+	 * at least "width" characters.
+	 ******************************************************************************/
+	public static StringBuilder append (StringBuilder sb, double value, int width, int decimals) {
+
+		if (!isScalable(value, decimals)) return pad(sb, Double.toString(value), width);
+
+		return appendScaled(sb, scale(value, decimals), isNegative(value), width, decimals);
+	}
+
+	/******************************************************************************
+	 * Appends a fixed point value: "fixedPoint" / 10^decimals.  For example,
+	 * appendFixedPoint(sb, nanos, 0, 9) writes a time in nanoseconds as seconds,
+	 * exactly.
+	 ******************************************************************************/
+	public static StringBuilder appendFixedPoint (StringBuilder sb, long fixedPoint, int width, int decimals) {
+
+		checkDecimals(decimals);
+
+		// Long.MIN_VALUE can't be negated.
+		if (fixedPoint == Long.MIN_VALUE) return pad(sb, Long.toString(fixedPoint), width);
+
+		return appendScaled(sb, Math.abs(fixedPoint), fixedPoint < 0, width, decimals);
+	}
+
+	// Appends the non-negative "scaled" as a number with "decimals" decimals.
+	private static StringBuilder appendScaled (StringBuilder sb, long scaled, boolean negative, int width, int decimals) {
+
+		int start = sb.length();
+		int end   = start + Math.max(width, length(scaled, negative, decimals));
+		int pos   = end;
+
+		sb.setLength(end);
+
+		for (int i = 0; i < decimals; i++) {
+			sb.setCharAt(--pos, (char)('0' + (int)(scaled % 10)));
+			scaled /= 10;
+		}
+
+		if (decimals > 0) sb.setCharAt(--pos, '.');
+
+		do {
+			sb.setCharAt(--pos, (char)('0' + (int)(scaled % 10)));
+			scaled /= 10;
+		} while (scaled != 0);
+
+		if (negative) sb.setCharAt(--pos, '-');
+
+		while (pos > start) sb.setCharAt(--pos, ' ');
+
+		return sb;
+	}
+
+	// Returns true if |value| * 10^decimals can be rounded to a long.
+	private static boolean isScalable (double value, int decimals) {
+
+		checkDecimals(decimals);
+
+		// False for NaN and the infinities too.
+		return Math.abs(value) * POWERS_OF_10[decimals] < MAX_SCALED;
+	}
+
+	// True if the sign bit is set (so -0.0 is written as "-0.0", like String.format).
+	private static boolean isNegative (double value) {
+		return Double.doubleToRawLongBits(value) < 0;
+	}
+
+	// Returns |value| * 10^decimals, rounded.
+	private static long scale (double value, int decimals) {
+		return Math.round(Math.abs(value) * POWERS_OF_10[decimals]);
+	}
+
+	// Number of characters needed for "scaled" (unpadded).
+	private static int length (long scaled, boolean negative, int decimals) {
+
+		long whole  = scaled / POWERS_OF_10[decimals];
+		int  digits = 1;
+
+		while (whole >= 10) {
+			whole /= 10;
+			digits++;
+		}
+
+		return (negative ? 1 : 0) + digits + ((decimals > 0) ? decimals + 1 : 0);
+	}
+
+	private static void checkDecimals (int decimals) {
+		if ((decimals < 0) || (decimals > MAX_DECIMALS))
+			throw new RuntimeException("FixedFormat: " + decimals + " decimals is not supported (0 to " + MAX_DECIMALS + ").");
+	}
+
+	// Writers for values that can't be scaled.
+	private static int copy (char[] buf, int offset, String s, int width) {
+
+		int pos = offset;
+
+		for (int i = s.length(); i < width; i++) buf[pos++] = ' ';
+		for (int i = 0; i < s.length(); i++)     buf[pos++] = s.charAt(i);
+
+		return pos;
+	}
+
+	private static int copy (byte[] buf, int offset, String s, int width) {
+
+		int pos = offset;
+
+		for (int i = s.length(); i < width; i++) buf[pos++] = (byte)' ';
+		for (int i = 0; i < s.length(); i++)     buf[pos++] = (byte)s.charAt(i);
+
+		return pos;
+	}
+
+	private static StringBuilder pad (StringBuilder sb, String s, int width) {
+
+		for (int i = s.length(); i < width; i++) sb.append(' ');
+
+		return sb.append(s);
+	}
+
+}
@@ -31,11 +31,18 @@ public abstract class Instrumentation {
 	private static String  runDataDir = new String();
 	private static boolean instrAvailable;
 	private static String  runsPath;
+	private static boolean filesDisabled = false;
 	
 	// Constructor
 	Instrumentation () {
 
 		synchronized(this) {
+			
+			// No data files are wanted (see disableDataFiles).
+			if (filesDisabled) {
+				instrAvailable = false;
+				return;
+			}
 
 			// Has this run's instrumentation directory already been created?
 			instrAvailable = !runDataDir.isEmpty();
@@ -141,6 +148,11 @@ public abstract class Instrumentation {
 
 	}
 
+	// Stops the run directory and debug data files from being created.  Must be called before any
+	// instrumentation object is created.  Used off-robot (see SensorReplay), where the robot classes
+	// are run without saving their data.
+	public static void disableDataFiles () {filesDisabled = true;}
+
 	// Returns true if runDataDir was successfully created.
 	public static boolean instrumentationAvailable () {return instrAvailable;}
 	
@@ -152,5 +164,20 @@ public abstract class Instrumentation {
 	public static double timeNow () {
 		return Timer.getFPGATimestamp();
 	}
+	
+	// Offset that maps System.nanoTime() onto the FPGA time base.  Computed once so that 
+	// time-tagging data in the control loop doesn't need a call into the FPGA.
+	private static final long fpgaNanoOffset = (long)(Timer.getFPGATimestamp() * 1.0e9) - System.nanoTime();
+	
+	// Same time source as timeNow(), returned as a long in nanoseconds.  Cheaper than timeNow()
+	// and used where data is time-tagged every loop.
+	public static long timeNowNanos () {
+		return System.nanoTime() + fpgaNanoOffset;
+	}
+	
+	// Converts a time returned by timeNowNanos() to seconds (the units of timeNow()).
+	public static double nanosToSeconds (long nanos) {
+		return (double)nanos * 1.0e-9;
+	}
 
 }
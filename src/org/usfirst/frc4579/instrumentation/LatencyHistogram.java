@@ -0,0 +1,144 @@
+/******************************************************************************
+ * LATENCY HISTOGRAM
+ *
+ * This class keeps the distribution of a set of time intervals (latencies) in a
+ * fixed amount of memory, so that min/max/mean and percentiles can be reported
+ * without saving every sample.
+ *
+ * Intervals are counted in log-linear buckets: each power of two is split into
+ * 32 buckets, so a reported percentile is within about 3% of the true value.
+ * Intervals from 0 to about 19 hours are covered; longer intervals are
+ * counted in the last bucket.
+ *
+ * record() does no allocation and must be called from one thread at a time.
+ * The statistics methods may be called from another thread, in which case
+ * they can be off by the samples recorded while they run.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.instrumentation;
+
+public class LatencyHistogram {
+
+	private static final int SUB_BITS    = 5;                  // log2 of the buckets per power of two.
+	private static final int SUB_COUNT   = 1 << SUB_BITS;      // Buckets per power of two.
+	private static final int NUM_BUCKETS = 2 * SUB_COUNT + 40 * SUB_COUNT;
+
+	private final long[] counts = new long[NUM_BUCKETS];
+	private long         count  = 0;               // Number of intervals recorded.
+	private long         sum    = 0;               // Sum of the intervals (nanoseconds).
+	private long         min    = Long.MAX_VALUE;  // Smallest interval (nanoseconds).
+	private long         max    = 0;               // Largest interval (nanoseconds).
+
+	/******************************************************************************
+	 * Adds an interval (in nanoseconds) to the histogram.
+	 ******************************************************************************/
+	public void record (long nanos) {
+
+		if (nanos < 0) nanos = 0;
+
+		counts[bucketIndex(nanos)]++;
+
+		count++;
+		sum += nanos;
+
+		if (nanos < min) min = nanos;
+		if (nanos > max) max = nanos;
+	}
+
+	/******************************************************************************
+	 * Clears the histogram.
+	 ******************************************************************************/
+	public void reset () {
+
+		for (int i = 0; i < NUM_BUCKETS; i++) counts[i] = 0;
+
+		count = 0;
+		sum   = 0;
+		min   = Long.MAX_VALUE;
+		max   = 0;
+	}
+
+	/******************************************************************************
+	 * Statistics.  All times are returned in milliseconds.
+	 ******************************************************************************/
+	public long   count   () { return count; }
+	public double minMs   () { return (count == 0) ? 0.0 : toMs(min); }
+	public double maxMs   () { return toMs(max); }
+	public double meanMs  () { return (count == 0) ? 0.0 : toMs(sum) / (double)count; }
+
+	// Returns the interval that "percent" percent of the intervals are less than or equal to.
+	public double percentileMs (double percent) {
+
+		if (count == 0) return 0.0;
+
+		// The rank (1..count) of the interval being looked for.
+		long rank = (long)Math.ceil(percent / 100.0 * (double)count);
+
+		if (rank < 1) rank = 1;
+
+		long seen = 0;
+
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+
+			seen += counts[i];
+
+			if (seen >= rank) {
+
+				// Report the middle of the bucket, but never outside of the observed range.
+				long value = (bucketLow(i) + bucketHigh(i)) / 2;
+
+				return toMs(Math.max(min, Math.min(max, value)));
+			}
+		}
+
+		return toMs(max);
+	}
+
+	/******************************************************************************
+	 * Returns a one line summary of the statistics.
+	 ******************************************************************************/
+	public String summary () {
+		return String.format("n=%d min=%.3f mean=%.3f p50=%.3f p99=%.3f p99.9=%.3f max=%.3f",
+				count(), minMs(), meanMs(), percentileMs(50.0), percentileMs(99.0), percentileMs(99.9), maxMs());
+	}
+
+	private static double toMs (long nanos) {
+		return (double)nanos * 1.0e-6;
+	}
+
+	// Values below 2 * SUB_COUNT have a bucket each.  Above that, a value with its highest bit
+	// at position "exp" goes into bucket group (exp - SUB_BITS), chosen by its next SUB_BITS bits.
+	private static int bucketIndex (long nanos) {
+
+		if (nanos < 2 * SUB_COUNT) return (int)nanos;
+
+		int exp   = 63 - Long.numberOfLeadingZeros(nanos);
+		int shift = exp - SUB_BITS;
+		int index = 2 * SUB_COUNT + (shift - 1) * SUB_COUNT + (int)((nanos >> shift) - SUB_COUNT);
+
+		return Math.min(index, NUM_BUCKETS - 1);
+	}
+
+	// Smallest value counted in bucket "index".
+	private static long bucketLow (int index) {
+
+		if (index < 2 * SUB_COUNT) return index;
+
+		int shift = (index - 2 * SUB_COUNT) / SUB_COUNT + 1;
+		int sub   = (index - 2 * SUB_COUNT) % SUB_COUNT + SUB_COUNT;
+
+		return (long)sub << shift;
+	}
+
+	// Largest value counted in bucket "index".
+	private static long bucketHigh (int index) {
+
+		if (index < 2 * SUB_COUNT) return index;
+
+		int shift = (index - 2 * SUB_COUNT) / SUB_COUNT + 1;
+		int sub   = (index - 2 * SUB_COUNT) % SUB_COUNT + SUB_COUNT;
+
+		return (((long)sub + 1) << shift) - 1;
+	}
+
+}
@@ -0,0 +1,232 @@
+/******************************************************************************
+ * LOOP PROFILER
+ *
+ * This class times the phases of a periodic loop (e.g. TimedRobot's 20 ms
+ * loop).  It counts loops whose work took longer than the loop period
+ * (deadline misses) and measures the jitter of the loop start times.
+ *
+ * Usage:
+ *
+ *     // During initialization:
+ *     LoopProfiler profiler = new LoopProfiler("Robot", 0.02);
+ *     LoopProfiler.Phase measurePhase = profiler.addPhase("measure");
+ *
+ *     // Each loop:
+ *     profiler.startLoop();
+ *     measurePhase.start();
+ *     ...
+ *     measurePhase.end();
+ *     profiler.endLoop();
+ *
+ * A phase may run more than once per loop; its times are added together.
+ * Phases may also be added once the loops have started (e.g. from the static
+ * initializer of a command class that is first loaded during a loop).
+ *
+ * Jitter is only measured between loops that follow each other.  Call
+ * reset() when the loops stop (e.g. from Robot.disabledInit()); an endLoop()
+ * with no startLoop() (e.g. from robotPeriodic() while disabled) does the
+ * same.  So a gap between loops isn't counted as jitter.
+ *
+ * Once per second the profiler puts a summary of the last second on the
+ * SmartDashboard.  The time of each loop and each phase is also written to
+ * a per-loop trace file (<name>LoopTrace) in the run directory.  A phase
+ * added after the first loop starts a new trace file (<name>LoopTrace2 and
+ * so on) at the next loop, with a column for it.
+ *
+ * Timing a phase costs two System.nanoTime() calls and no allocation.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+public class LoopProfiler {
+
+	private static final long   PUBLISH_PERIOD_NS = 1000000000L;
+
+	private final String        name;            // Prefix of the dashboard keys and trace file name.
+	private final long          periodNanos;     // Loop period.
+
+	// Phase data, indexed by phase.
+	private final ArrayList<Phase> phases          = new ArrayList<Phase>();
+	private long[]                 phaseNanos      = new long[0];               // Time spent in each phase this loop.
+	private LatencyHistogram[]     phaseHistograms = new LatencyHistogram[0];
+
+	// Loop data.
+	private final LatencyHistogram loopHistogram   = new LatencyHistogram();    // Time from startLoop to endLoop.
+	private final LatencyHistogram jitterHistogram = new LatencyHistogram();    // |start to start time - period|.
+	private boolean                inLoop          = false;
+	private long                   loopStart       = 0;
+	private long                   lastLoopStart   = 0;
+	private long                   deadlineMisses  = 0;
+	private long                   lastPublishTime = 0;
+
+	// Per-loop trace file, created at the first loop and again when phases are added.
+	private DebugTextFile          traceFile;
+	private double[]               traceRow;
+	private int                    tracedPhases    = 0;     // Phases with a column in traceFile.
+	private int                    traceFileCount  = 0;
+
+	/******************************************************************************
+	 * A timed phase of the loop.
+	 ******************************************************************************/
+	public class Phase {
+
+		private final String name;
+		private final int    index;
+		private long         startTime;
+
+		private Phase (String name, int index) {
+			this.name  = name;
+			this.index = index;
+		}
+
+		// Call at the start of the phase.
+		public void start () {
+			startTime = System.nanoTime();
+		}
+
+		// Call at the end of the phase.
+		public void end () {
+			phaseNanos[index] += System.nanoTime() - startTime;
+		}
+	}
+
+	/******************************************************************************
+	 * Constructor
+	 ******************************************************************************/
+	public LoopProfiler (String name, double periodSeconds) {
+		this.name        = name;
+		this.periodNanos = (long)(periodSeconds * 1.0e9);
+	}
+
+	/******************************************************************************
+	 * Adds a phase to the loop.  Must be called from the thread running the loop.
+	 ******************************************************************************/
+	public Phase addPhase (String phaseName) {
+
+		Phase phase = new Phase(phaseName, phases.size());
+
+		phases.add(phase);
+
+		phaseNanos      = Arrays.copyOf(phaseNanos     , phases.size());
+		phaseHistograms = Arrays.copyOf(phaseHistograms, phases.size());
+
+		phaseHistograms[phase.index] = new LatencyHistogram();
+
+		return phase;
+	}
+
+	/******************************************************************************
+	 * Call at the start of each loop.
+	 ******************************************************************************/
+	public void startLoop () {
+
+		if ((traceFile == null) || (tracedPhases != phases.size())) createTraceFile();
+
+		loopStart = Instrumentation.timeNowNanos();
+
+		// Jitter is how far this loop started from one period after the last one.
+		if (lastLoopStart != 0)
+			jitterHistogram.record(Math.abs((loopStart - lastLoopStart) - periodNanos));
+
+		for (int i = 0; i < phaseNanos.length; i++) phaseNanos[i] = 0;
+
+		inLoop = true;
+	}
+
+	/******************************************************************************
+	 * Call at the end of each loop.
+	 ******************************************************************************/
+	public void endLoop () {
+
+		// Not looping, so the next loop doesn't follow the last one.
+		if (!inLoop) {
+			lastLoopStart = 0;
+			return;
+		}
+
+		inLoop = false;
+
+		long loopEnd   = Instrumentation.timeNowNanos();
+		long loopNanos = loopEnd - loopStart;
+
+		loopHistogram.record(loopNanos);
+
+		if (loopNanos > periodNanos) deadlineMisses++;
+
+		// Trace this loop.
+		traceRow[0] = (double)loopNanos * 1.0e-6;
+		traceRow[1] = (lastLoopStart == 0) ? 0.0 : (double)(loopStart - lastLoopStart) * 1.0e-6;
+
+		// A phase added during this loop has no column until the next one.
+		for (int i = 0; i < phaseNanos.length; i++) {
+			phaseHistograms[i].record(phaseNanos[i]);
+			if (i < tracedPhases) traceRow[i + 2] = (double)phaseNanos[i] * 1.0e-6;
+		}
+
+		traceFile.record(loopStart, traceRow);
+
+		lastLoopStart = loopStart;
+
+		if (loopEnd - lastPublishTime >= PUBLISH_PERIOD_NS) {
+			lastPublishTime = loopEnd;
+			publish();
+		}
+	}
+
+	/******************************************************************************
+	 * Call when the loops stop, so that the next loop doesn't measure the time
+	 * since the last one as jitter.
+	 ******************************************************************************/
+	public void reset () {
+		inLoop        = false;
+		lastLoopStart = 0;
+	}
+
+	/******************************************************************************
+	 * Returns the number of loops whose work took longer than the loop period.
+	 ******************************************************************************/
+	public long deadlineMisses () {
+		return deadlineMisses;
+	}
+
+	// Puts the statistics of the loops since the last call on the SmartDashboard, then clears them.
+	private void publish () {
+
+		SmartDashboard.putString (name + " Loop (ms):"         , loopHistogram.summary());
+		SmartDashboard.putString (name + " Loop Jitter (ms):"  , jitterHistogram.summary());
+		SmartDashboard.putNumber (name + " Deadline Misses:"   , deadlineMisses);
+
+		for (Phase phase : phases)
+			SmartDashboard.putString (name + " " + phase.name + " (ms):", phaseHistograms[phase.index].summary());
+
+		loopHistogram.reset();
+		jitterHistogram.reset();
+
+		for (LatencyHistogram histogram : phaseHistograms) histogram.reset();
+	}
+
+	// Creates the trace file with a column for each phase.
+	private void createTraceFile () {
+
+		String[] columns = new String[phases.size() + 2];
+
+		columns[0] = "LoopMs";
+		columns[1] = "IntervalMs";
+
+		for (Phase phase : phases) columns[phase.index + 2] = phase.name + "Ms";
+
+		// Each file needs its own name (see DebugTextFile).
+		String fileName = name + "LoopTrace" + ((++traceFileCount == 1) ? "" : Integer.toString(traceFileCount));
+
+		traceRow     = new double[columns.length];
+		traceFile    = new DebugTextFile(fileName, true, columns, 30000);
+		tracedPhases = phases.size();
+		traceFile.setDecimals(4);
+	}
+
+}
@@ -0,0 +1,511 @@
+/******************************************************************************
+ * SENSOR REPLAY
+ *
+ * Replays the sensor data recorded in a run directory through the robot's
+ * measurement code off-robot (e.g. on a Linux laptop), so that filter
+ * constants can be tuned without the robot.
+ *
+ * The robot records every MPU6050 sample (allAxisScaledMPUData files) and
+ * every optical flow reading (flowData files) with its time and with whatever
+ * else the processing depends on (the "not moving" indicator, calibration
+ * samples and resets).  A replay feeds them in time order, with their original
+ * times, through MPU6050_I2C.replaySample() and FlowMotion.processCounts(),
+ * which run the same code as the robot.  The replayed heading is compared with
+ * the heading the robot computed (measData files); with unchanged code and
+ * constants the two are identical.
+ *
+ * The robot only logs while it is enabled (see MPU6050_I2C.setLogging()), so
+ * each run directory starts from the calibration and temperature model the
+ * MPU had when it was enabled.  The bias it learned from the still samples
+ * since then (e.g. while disabled before a match) isn't in the log, nor is
+ * the sample before the first one logged, so the replayed heading may differ
+ * a little from the robot's.
+ *
+ * The log files are read once, when the SensorReplay is created.  Each replay
+ * then runs from memory with no waiting, so a match replays in milliseconds
+ * and many constants can be tried in one run.
+ *
+ * Usage (with the WPILib jars on the class path):
+ *
+ *     java org.usfirst.frc4579.replay.SensorReplay <run directory>... [-zGyroLpfK k1,k2,...]
+ *                                                   [-noStationaryDetection] [-noTemperatureCompensation]
+ *                                                   [-noQualityGating]
+ *
+ * For each run directory and each Z gyro filter constant, the final heading
+ * and flow position, the largest difference from the robot's heading and the
+ * replay speed are printed.  The replay with the first constant is saved to
+ * the run directory as replayData.txt, in the format of measData with the flow
+ * position added.
+ *
+ * The MPU decides whether the robot is still with a StationaryDetector, as on
+ * the robot.  -noStationaryDetection takes the logged "not moving" indicator
+ * as it is instead, as the robot did before, for older logs.  Likewise the gyro
+ * biases are corrected for temperature, as on the robot, unless
+ * -noTemperatureCompensation.  The replay starts from the temperature model
+ * the robot loaded (mpuTemperatureModel files), at the time it was loaded,
+ * and goes on fitting it from the samples, as the robot did.  Flow readings of poor quality (see
+ * FlowMotion.setQualityGating()) are rejected, as on the robot, unless
+ * -noQualityGating, and the number of them is printed.
+ *
+ * No debug data files are created while replaying (see
+ * Instrumentation.disableDataFiles), and the WPILib Timer runs on the time of
+ * the sample being replayed.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.replay;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.usfirst.frc4579.instrumentation.BasicTextFileOps;
+import org.usfirst.frc4579.instrumentation.Instrumentation;
+
+import org.usfirst.frc4579.filters.StationaryDetector;
+
+import com.eagles.sensors.GyroTemperatureModel;
+import com.eagles.sensors.MPU6050_I2C;
+
+import edu.wpi.first.wpilibj.Timer;
+import flowSensor.FlowMotion;
+
+public class SensorReplay {
+
+	// Columns of the log files (after the time).
+	private static final int MPU_SCALED      = 0,  // Six scaled axis values, x accel through z gyro.
+							 MPU_TEMP        = 6,
+							 MPU_NOT_MOVING  = 7,
+							 MPU_CALIBRATION = 8,
+							 MPU_RESET       = 9,
+							 MPU_COLUMNS     = 10;
+	private static final int FLOW_MOTION     = 0,
+							 FLOW_DELTA_X    = 1,
+							 FLOW_DELTA_Y    = 2,
+							 FLOW_SQUAL      = 3,
+							 FLOW_RAW_SUM    = 4,
+							 FLOW_SHUTTER    = 5,
+							 FLOW_RESET      = 6,
+							 FLOW_COLUMNS    = 7;
+	private static final int MEAS_ANGLE      = 1,
+							 MEAS_COLUMNS    = 2;
+	private static final int MODEL_AXIS      = 0,  // Then GyroTemperatureModel.NUM_SUMS sums.
+							 MODEL_SUMS      = 1,
+							 MODEL_COLUMNS   = 1 + GyroTemperatureModel.NUM_SUMS;
+
+	// The time of the sample being replayed, used as the FPGA time.
+	private static final ReplayClock clock = new ReplayClock();
+
+	static {
+		Timer.SetImplementation(clock);
+		Instrumentation.disableDataFiles();
+	}
+
+	private final String  runDirectory;
+	private final LogData mpuLog;
+	private final LogData flowLog;
+	private final LogData measLog;
+	private final LogData modelLog;
+	private boolean       stationaryDetection = true;  // See setStationaryDetection().
+	private boolean       temperatureCompensation = true;  // See setTemperatureCompensation().
+	private boolean       qualityGating = true;  // See setQualityGating().
+
+	/******************************************************************************
+	 * Changes made to a new set of sensors before they are replayed (e.g. a
+	 * filter constant).
+	 ******************************************************************************/
+	public interface Tuning {
+		void apply (MPU6050_I2C mpu, FlowMotion flow);
+	}
+
+	/******************************************************************************
+	 * The outputs of one replay.
+	 ******************************************************************************/
+	public static class Result {
+		public double angleZ          = 0.0;        // Heading at the end of the run (degrees).
+		public int    flowX           = 0;          // Flow position at the end of the run (counts).
+		public int    flowY           = 0;
+		public long   flowBadReadings = 0;          // Flow readings of poor quality (rejected if gating is on).
+		public double maxAngleError   = Double.NaN; // Largest difference from the robot's heading (NaN => no measData).
+		public int    samples         = 0;          // Number of MPU samples processed (not counting calibration).
+		public double replaySeconds   = 0.0;        // Time taken by the replay.
+	}
+
+	/******************************************************************************
+	 * Constructor.  Reads the logs of the run in "runDirectory".
+	 ******************************************************************************/
+	public SensorReplay (String runDirectory) {
+
+		this.runDirectory = runDirectory;
+
+		mpuLog   = new LogData(runDirectory, "allAxisScaledMPUData", MPU_COLUMNS);
+		flowLog  = new LogData(runDirectory, "flowData"            , FLOW_COLUMNS);
+		measLog  = new LogData(runDirectory, "measData"            , MEAS_COLUMNS);
+		modelLog = new LogData(runDirectory, "mpuTemperatureModel" , MODEL_COLUMNS);
+	}
+
+	// Selects whether the MPU confirms the logged "not moving" indicator with a StationaryDetector, as the
+	// robot does (the default), or takes it as it is, as older robot code did.
+	public void setStationaryDetection (boolean detect) {
+		stationaryDetection = detect;
+	}
+
+	// Selects whether the MPU corrects the gyro biases for temperature, as the robot does (the default).
+	public void setTemperatureCompensation (boolean compensate) {
+		temperatureCompensation = compensate;
+	}
+
+	// Selects whether poor flow readings are rejected, as the robot does (the default).
+	public void setQualityGating (boolean reject) {
+		qualityGating = reject;
+	}
+
+	// Seconds of data in the MPU log.
+	public double logSeconds () {
+		return (mpuLog.size == 0) ? 0.0 : Instrumentation.nanosToSeconds(mpuLog.time[mpuLog.size - 1] - mpuLog.time[0]);
+	}
+
+	/******************************************************************************
+	 * Replays the run through a new set of sensors.  "tuning" (may be null) is
+	 * applied to the sensors first.  If "outputFileName" isn't null, the heading
+	 * and flow position after each MPU sample are written to that file.
+	 ******************************************************************************/
+	public Result replay (Tuning tuning, String outputFileName) {
+
+		MPU6050_I2C mpu  = new MPU6050_I2C(MPU6050_I2C.ACCELFULLSCALE.ACCEL2G, MPU6050_I2C.GYROFULLSCALE.DEGSEC250);
+		FlowMotion  flow = new FlowMotion();
+
+		if (stationaryDetection) mpu.setStationaryDetection(new StationaryDetector());
+
+		mpu.setTemperatureCompensation(temperatureCompensation);
+		flow.setQualityGating(qualityGating);
+
+		if (tuning != null) tuning.apply(mpu, flow);
+
+		BasicTextFileOps outFile = null;
+		StringBuilder    line    = new StringBuilder(128);
+
+		if (outputFileName != null) {
+			outFile = new BasicTextFileOps(outputFileName);
+			outFile.openForWrite();
+			outFile.writeLine("Time\tzAngleRate\tzAngle\tFlowX\tFlowY");
+		}
+
+		Result   result = new Result();
+		double[] scaled = new double[6];
+		double[] sums   = new double[GyroTemperatureModel.NUM_SUMS];
+		int      m      = 0;  // Next row of each log.
+		int      f      = 0;
+		int      r      = 0;
+		int      t      = 0;
+
+		if (measLog.size != 0) result.maxAngleError = 0.0;
+
+		long startTime = System.nanoTime();
+
+		while ((m < mpuLog.size) || (f < flowLog.size)) {
+
+			// Take the earlier of the next MPU and flow rows.  The MPU is read first in each robot loop.
+			if ((f >= flowLog.size) || ((m < mpuLog.size) && (mpuLog.time[m] <= flowLog.time[f]))) {
+
+				long time = mpuLog.time[m];
+
+				clock.time = time;
+
+				// Load the temperature model the robot loaded, when it loaded it.
+				while ((t < modelLog.size) && (modelLog.time[t] <= time)) {
+
+					if (temperatureCompensation) {
+
+						for (int i = 0; i < sums.length; i++) sums[i] = modelLog.value(t, MODEL_SUMS + i);
+
+						mpu.getTemperatureModel().setSums((int)modelLog.value(t, MODEL_AXIS), sums);
+					}
+
+					t++;
+				}
+
+				if (mpuLog.value(m, MPU_RESET) != 0.0)
+					mpu.resetAngleZ();
+				else {
+
+					boolean isCalibration = mpuLog.value(m, MPU_CALIBRATION) != 0.0;
+
+					for (int i = 0; i < scaled.length; i++) scaled[i] = mpuLog.value(m, MPU_SCALED + i);
+
+					mpu.replaySample(time, scaled, mpuLog.value(m, MPU_TEMP), mpuLog.value(m, MPU_NOT_MOVING) != 0.0, isCalibration);
+
+					if (!isCalibration) {
+
+						result.samples++;
+
+						// Compare with the heading the robot computed from this sample.
+						while ((r < measLog.size) && (measLog.time[r] < time)) r++;
+
+						if ((r < measLog.size) && (measLog.time[r] == time))
+							result.maxAngleError = Math.max(result.maxAngleError, Math.abs(mpu.getAngleZ() - measLog.value(r, MEAS_ANGLE)));
+
+						if (outFile != null) {
+							line.setLength(0);
+							line.append(Instrumentation.nanosToSeconds(time)).append('\t')
+								.append(mpu.getGyroRateZ()).append('\t')
+								.append(mpu.getAngleZ()).append('\t')
+								.append(flow.accumDeltaX).append('\t')
+								.append(flow.accumDeltaY);
+							outFile.writeLine(line);
+						}
+					}
+				}
+
+				m++;
+			}
+			else {
+
+				clock.time = flowLog.time[f];
+
+				if (flowLog.value(f, FLOW_RESET) != 0.0)
+					flow.reset();
+				else
+					flow.processCounts(flowLog.time[f], (byte)flowLog.value(f, FLOW_MOTION),
+							(int)flowLog.value(f, FLOW_DELTA_X), (int)flowLog.value(f, FLOW_DELTA_Y), (int)flowLog.value(f, FLOW_SQUAL),
+							(int)flowLog.value(f, FLOW_RAW_SUM), (int)flowLog.value(f, FLOW_SHUTTER));
+
+				f++;
+			}
+		}
+
+		result.replaySeconds = Instrumentation.nanosToSeconds(System.nanoTime() - startTime);
+		result.angleZ        = mpu.getAngleZ();
+		result.flowX         = flow.accumDeltaX;
+		result.flowY         = flow.accumDeltaY;
+
+		FlowMotion.Snapshot snapshot = new FlowMotion.Snapshot();
+
+		flow.getSnapshot(snapshot);
+
+		result.flowBadReadings = snapshot.badReadings;
+
+		if (outFile != null) outFile.close();
+
+		return result;
+	}
+
+	/******************************************************************************
+	 * Replays each run directory on the command line, once per Z gyro filter
+	 * constant (-zGyroLpfK k1,k2,...) or once with the robot's constants.
+	 ******************************************************************************/
+	public static void main (String[] args) {
+
+		ArrayList<String> runDirectories = new ArrayList<String>();
+		double[]          lpfKs          = null;
+		boolean           detect         = true;
+		boolean           compensate     = true;
+		boolean           gate           = true;
+
+		for (int i = 0; i < args.length; i++) {
+
+			if (args[i].equals("-zGyroLpfK") && (i + 1 < args.length)) {
+
+				String[] values = args[++i].split(",");
+
+				lpfKs = new double[values.length];
+
+				for (int k = 0; k < values.length; k++) lpfKs[k] = Double.parseDouble(values[k]);
+			}
+			else if (args[i].equals("-noStationaryDetection"))
+				detect = false;
+			else if (args[i].equals("-noTemperatureCompensation"))
+				compensate = false;
+			else if (args[i].equals("-noQualityGating"))
+				gate = false;
+			else
+				runDirectories.add(args[i]);
+		}
+
+		if (runDirectories.isEmpty()) {
+			System.out.println("Usage: SensorReplay <run directory>... [-zGyroLpfK k1,k2,...] [-noStationaryDetection] [-noTemperatureCompensation] [-noQualityGating]");
+			return;
+		}
+
+		for (String runDirectory : runDirectories) {
+
+			SensorReplay sensorReplay = new SensorReplay(runDirectory);
+
+			sensorReplay.setStationaryDetection(detect);
+			sensorReplay.setTemperatureCompensation(compensate);
+			sensorReplay.setQualityGating(gate);
+
+			System.out.println(String.format("%s: %d MPU rows, %d flow rows, %.1f s of data", runDirectory,
+					sensorReplay.mpuLog.size, sensorReplay.flowLog.size, sensorReplay.logSeconds()));
+
+			int numReplays = (lpfKs == null) ? 1 : lpfKs.length;
+
+			for (int k = 0; k < numReplays; k++) {
+
+				final double lpfK = (lpfKs == null) ? Double.NaN : lpfKs[k];
+
+				Result result = sensorReplay.replay((lpfKs == null) ? null : (mpu, flow) -> mpu.setGyroFilterConstantZ(lpfK),
+						(k == 0) ? runDirectory + "/replayData.txt" : null);
+
+				System.out.println(String.format("  zGyroLpfK %-8s heading %9.3f  flow (%d, %d, %d bad)  max heading diff from robot %.3g  (%d samples in %.3f s, %.0fx real time)",
+						(lpfKs == null) ? "robot" : Double.toString(lpfK), result.angleZ, result.flowX, result.flowY, result.flowBadReadings,
+						result.maxAngleError, result.samples, result.replaySeconds, sensorReplay.logSeconds() / result.replaySeconds));
+			}
+		}
+	}
+
+	/******************************************************************************
+	 * The rows of all the files of one kind (e.g. allAxisScaledMPUData) in a run
+	 * directory, in time order.  The robot starts a new file each time it is
+	 * enabled.
+	 ******************************************************************************/
+	private static class LogData {
+
+		private final int numColumns;
+		private long[]    time   = new long[1024];               // Time of each row (nanoseconds).
+		private double[]  values;                                // Column values, row-major.
+		private int       size   = 0;                            // Number of rows.
+
+		private LogData (String runDirectory, String baseFileName, int numColumns) {
+
+			this.numColumns = numColumns;
+			this.values     = new double[time.length * numColumns];
+
+			File[] files = new File(runDirectory).listFiles((dir, name) -> name.startsWith(baseFileName + "_") && name.endsWith(".txt"));
+
+			if (files == null) throw new RuntimeException(runDirectory + " is not a directory.");
+
+			// The file names only have a 12 hour time, so order the files by the time of their first row.
+			ArrayList<LogData> fileData = new ArrayList<LogData>();
+
+			for (File file : files) fileData.add(new LogData(file.getPath(), numColumns));
+
+			fileData.sort(Comparator.comparingLong(data -> (data.size == 0) ? Long.MAX_VALUE : data.time[0]));
+
+			for (LogData data : fileData)
+				for (int row = 0; row < data.size; row++)
+					add(data.time[row], data.values, row * numColumns);
+		}
+
+		// Reads one file.
+		private LogData (String fileName, int numColumns) {
+
+			this.numColumns = numColumns;
+			this.values     = new double[time.length * numColumns];
+
+			BasicTextFileOps file = new BasicTextFileOps(fileName);
+
+			file.openForRead();
+
+			double[] row = new double[numColumns];
+			String   line;
+
+			while ((line = file.readLine()) != null) {
+
+				// Skip the header.
+				if (line.startsWith("Time")) continue;
+
+				String[] fields = line.split("\t");
+
+				if (fields.length != numColumns + 1) {
+					file.close();
+					throw new RuntimeException(fileName + " has " + (fields.length - 1) + " columns instead of " + numColumns +
+							".  Was it recorded by an older version of the robot code?");
+				}
+
+				for (int i = 0; i < numColumns; i++) row[i] = Double.parseDouble(fields[i + 1]);
+
+				// The times were written in seconds from nanoseconds.  Rounding recovers the nanoseconds exactly.
+				add(Math.round(Double.parseDouble(fields[0]) * 1.0e9), row, 0);
+			}
+
+			file.close();
+		}
+
+		private void add (long rowTime, double[] rowValues, int offset) {
+
+			if (size == time.length) {
+				time   = Arrays.copyOf(time  , size * 2);
+				values = Arrays.copyOf(values, size * 2 * numColumns);
+			}
+
+			time[size] = rowTime;
+
+			System.arraycopy(rowValues, offset, values, size * numColumns, numColumns);
+
+			size++;
+		}
+
+		private double value (int row, int column) {
+			return values[row * numColumns + column];
+		}
+	}
+
+	/******************************************************************************
+	 * WPILib Timer implementation that runs on the time of the replayed data.
+	 ******************************************************************************/
+	private static class ReplayClock implements Timer.StaticInterface {
+
+		private long time = 0;  // Nanoseconds.
+
+		@Override
+		public double getFPGATimestamp () {
+			return Instrumentation.nanosToSeconds(time);
+		}
+
+		@Override
+		public double getMatchTime () {
+			return -1.0;
+		}
+
+		// The replay never waits.
+		@Override
+		public void delay (double seconds) {
+		}
+
+		@Override
+		public Timer.Interface newTimer () {
+
+			return new Timer.Interface() {
+
+				private double  startTime   = 0.0;
+				private double  accumulated = 0.0;
+				private boolean running     = false;
+
+				@Override
+				public double get () {
+					return running ? accumulated + getFPGATimestamp() - startTime : accumulated;
+				}
+
+				@Override
+				public void reset () {
+					accumulated = 0.0;
+					startTime   = getFPGATimestamp();
+				}
+
+				@Override
+				public void start () {
+					startTime = getFPGATimestamp();
+					running   = true;
+				}
+
+				@Override
+				public void stop () {
+					accumulated = get();
+					running     = false;
+				}
+
+				@Override
+				public boolean hasPeriodPassed (double period) {
+
+					if (get() < period) return false;
+
+					startTime += period;
+
+					return true;
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+/******************************************************************************
+ * ATTITUDE ESTIMATOR BENCHMARK
+ *
+ * Times AttitudeEstimator.update() with each algorithm, and checks that it
+ * finds a known attitude: the sensor tilted 20 degrees in roll and 10 in
+ * pitch, turning at 45 degrees/sec, with 1 kHz samples of a noisy gyro and
+ * accelerometer.  Run it off-robot or on the roboRIO:
+ *
+ *     java -cp <robot jar> org.usfirst.frc4579.simulation.AttitudeEstimatorBenchmark
+ *
+ * The first passes warm up the JIT and only the last pass is reported.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.simulation;
+
+import java.util.Random;
+
+import org.usfirst.frc4579.filters.AttitudeEstimator;
+
+public class AttitudeEstimatorBenchmark {
+
+	private static final int    NUM_SAMPLES = 20000;     // 20 seconds at 1 kHz.
+	private static final int    NUM_PASSES  = 5;
+	private static final double DT          = 0.001;
+	private static final double ROLL        = 20.0;      // True attitude (degrees).
+	private static final double PITCH       = 10.0;
+	private static final double YAW_RATE    = 45.0;      // Degrees/sec about the level Z axis.
+
+	// Samples: gyro (degrees/sec) and accelerometer (g).
+	private static final double[] gx = new double[NUM_SAMPLES], gy = new double[NUM_SAMPLES], gz = new double[NUM_SAMPLES];
+	private static final double[] ax = new double[NUM_SAMPLES], ay = new double[NUM_SAMPLES], az = new double[NUM_SAMPLES];
+	private static       double   sink = 0.0;  // Keeps the JIT from removing the work.
+
+	public static void main (String[] args) {
+
+		makeSamples();
+
+		for (AttitudeEstimator.Algorithm algorithm : AttitudeEstimator.Algorithm.values()) {
+
+			AttitudeEstimator estimator = null;
+			long              nanos     = 0;
+
+			for (int pass = 0; pass < NUM_PASSES; pass++) {
+
+				estimator = new AttitudeEstimator(algorithm);
+
+				long start = System.nanoTime();
+
+				for (int i = 0; i < NUM_SAMPLES; i++) estimator.update(gx[i], gy[i], gz[i], ax[i], ay[i], az[i], DT);
+
+				nanos = System.nanoTime() - start;
+				sink += estimator.q0();
+			}
+
+			double trueYaw = Math.IEEEremainder(YAW_RATE * NUM_SAMPLES * DT, 360.0);
+
+			System.out.println(String.format("%-9s %6.1f ns/sample   roll %6.2f (%5.1f)  pitch %6.2f (%5.1f)  yaw %7.2f (%7.2f)  linear accel %6.3f %6.3f %6.3f g",
+					algorithm, (double)nanos / NUM_SAMPLES,
+					estimator.roll(), ROLL, estimator.pitch(), PITCH, estimator.yaw(), trueYaw,
+					estimator.levelAccelX(), estimator.levelAccelY(), estimator.levelAccelZ()));
+		}
+
+		if (sink == 0.0) System.out.println();
+	}
+
+	// The sensor turns about the level Z axis with a fixed roll and pitch.  In the sensor frame
+	// gravity is fixed and the turn rate is the level Z axis rotated into the sensor frame.
+	private static void makeSamples () {
+
+		Random random = new Random(4579);
+		double roll   = Math.toRadians(ROLL);
+		double pitch  = Math.toRadians(PITCH);
+
+		// Level Z (up) in the sensor frame.
+		double upX = -Math.sin(pitch);
+		double upY =  Math.sin(roll) * Math.cos(pitch);
+		double upZ =  Math.cos(roll) * Math.cos(pitch);
+
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			gx[i] = YAW_RATE * upX + 0.05 * random.nextGaussian();
+			gy[i] = YAW_RATE * upY + 0.05 * random.nextGaussian();
+			gz[i] = YAW_RATE * upZ + 0.05 * random.nextGaussian();
+			ax[i] = upX + 0.01 * random.nextGaussian();
+			ay[i] = upY + 0.01 * random.nextGaussian();
+			az[i] = upZ + 0.01 * random.nextGaussian();
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+/******************************************************************************
+ * AVERAGE FILTER BENCHMARK
+ *
+ * Times adding a sample to an AverageFilter and getting its average and
+ * standard deviation (as MPU6050_I2C does for each axis of every sample), at
+ * window sizes of 5, 100 and 10000.  For comparison it times recomputing the
+ * standard deviation over the whole window, the way AverageFilter used to,
+ * and checks that the two agree.  Run it off-robot or on the roboRIO:
+ *
+ *     java -cp <robot jar> org.usfirst.frc4579.simulation.AverageFilterBenchmark
+ *
+ * The first passes warm up the JIT and only the last pass is reported.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.simulation;
+
+import java.util.Random;
+
+import org.usfirst.frc4579.filters.AverageFilter;
+
+public class AverageFilterBenchmark {
+
+	private static final int[]  WINDOW_SIZES = {5, 100, 10000};
+	private static final int    NUM_SAMPLES  = 200000;
+	private static final int    NUM_PASSES   = 5;
+
+	private static final double[] samples = new double[NUM_SAMPLES];
+	private static       double   sink    = 0.0;  // Keeps the JIT from removing the work.
+
+	public static void main (String[] args) {
+
+		// Gyro-like samples: a bias of a degree/sec with noise.
+		Random random = new Random(4579);
+
+		for (int i = 0; i < NUM_SAMPLES; i++) samples[i] = 1.0 + 0.1 * random.nextGaussian();
+
+		for (int windowSize : WINDOW_SIZES) {
+
+			double incremental = 0.0, recomputed = 0.0;
+
+			for (int pass = 0; pass < NUM_PASSES; pass++) {
+				incremental = timeIncremental(windowSize);
+				recomputed  = timeRecomputed (windowSize);
+			}
+
+			System.out.println(String.format("window %5d:  incremental %8.1f ns/sample   recomputed %10.1f ns/sample   (%.0fx)   max std dev difference %.2e",
+					windowSize, incremental, recomputed, recomputed / incremental, maxDifference(windowSize)));
+		}
+
+		if (sink == 0.0) System.out.println();
+	}
+
+	// Time per sample of AverageFilter.
+	private static double timeIncremental (int windowSize) {
+
+		AverageFilter filter = new AverageFilter(windowSize);
+		long          start  = System.nanoTime();
+
+		for (double sample : samples) {
+			filter.accumulate(sample);
+			sink += filter.average() + filter.stdDeviation();
+		}
+
+		return (double)(System.nanoTime() - start) / NUM_SAMPLES;
+	}
+
+	// Time per sample of a ring buffer whose standard deviation is recomputed over the window.
+	private static double timeRecomputed (int windowSize) {
+
+		double[] window     = new double[windowSize];
+		int      numEntries = 0;
+		int      newest     = -1;
+		long     start      = System.nanoTime();
+
+		for (double sample : samples) {
+
+			newest = (newest + 1) % windowSize;
+			window[newest] = sample;
+
+			if (numEntries < windowSize) numEntries++;
+
+			sink += recomputedStdDeviation(window, numEntries);
+		}
+
+		return (double)(System.nanoTime() - start) / NUM_SAMPLES;
+	}
+
+	private static double recomputedStdDeviation (double[] window, int numEntries) {
+
+		double sum = 0.0;
+
+		for (int i = 0; i < numEntries; i++) sum += window[i];
+
+		double avg        = sum / numEntries;
+		double sumSquares = 0.0;
+
+		for (int i = 0; i < numEntries; i++) sumSquares += (window[i] - avg) * (window[i] - avg);
+
+		return Math.sqrt(sumSquares / numEntries);
+	}
+
+	// Largest difference between AverageFilter's standard deviation and the recomputed one.
+	private static double maxDifference (int windowSize) {
+
+		AverageFilter filter     = new AverageFilter(windowSize);
+		double[]      window     = new double[windowSize];
+		int           numEntries = 0;
+		int           newest     = -1;
+		double        maxDiff    = 0.0;
+
+		for (int i = 0; i < NUM_SAMPLES; i += (windowSize < 1000) ? 1 : 97) {
+
+			// Check every sample for the small windows, and every 97th (with the samples in between added) for the large.
+			for (int j = (windowSize < 1000) ? i : Math.max(0, i - 96); j <= i; j++) {
+				filter.accumulate(samples[j]);
+				newest = (newest + 1) % windowSize;
+				window[newest] = samples[j];
+				if (numEntries < windowSize) numEntries++;
+			}
+
+			maxDiff = Math.max(maxDiff, Math.abs(filter.stdDeviation() - recomputedStdDeviation(window, numEntries)));
+		}
+
+		return maxDiff;
+	}
+
+}
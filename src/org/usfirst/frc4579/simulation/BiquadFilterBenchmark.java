@@ -0,0 +1,97 @@
+/******************************************************************************
+ * BIQUAD FILTER BENCHMARK
+ *
+ * Prints the gain of some BiquadFilter designs for the gyro sampled at 1 kHz
+ * (they should be 0.707, 3 dB down, at the cutoff), the overshoot of their
+ * step response, and the time to filter a sample one at a time and with the
+ * array version.  Run it off-robot or on the roboRIO:
+ *
+ *     java -cp <robot jar> org.usfirst.frc4579.simulation.BiquadFilterBenchmark
+ *
+ * The first passes warm up the JIT and only the last pass is reported.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.simulation;
+
+import java.util.Random;
+
+import org.usfirst.frc4579.filters.BiquadFilter;
+
+public class BiquadFilterBenchmark {
+
+	private static final double SAMPLE_RATE = 1000.0;
+	private static final double CUTOFF      = 40.0;
+	private static final double[] FREQUENCIES = {0.0, 10.0, 20.0, 40.0, 80.0, 120.0, 200.0, 400.0};
+	private static final int    NUM_SAMPLES = 1000000;
+	private static final int    NUM_PASSES  = 5;
+
+	private static final double[] samples = new double[NUM_SAMPLES];
+	private static final double[] out     = new double[NUM_SAMPLES];
+	private static       double   sink    = 0.0;  // Keeps the JIT from removing the work.
+
+	private interface Design {
+		BiquadFilter create ();
+	}
+
+	public static void main (String[] args) {
+
+		Random random = new Random(4579);
+
+		for (int i = 0; i < NUM_SAMPLES; i++) samples[i] = random.nextGaussian();
+
+		System.out.print(String.format("%-34s %8s", "Design (1 kHz, 40 Hz cutoff)", "overshoot"));
+		for (double f : FREQUENCIES) System.out.print(String.format(" %7.0fHz", f));
+		System.out.println(String.format(" %10s %10s", "ns/sample", "array"));
+
+		report("Butterworth low pass, order 2" , () -> new BiquadFilter(SAMPLE_RATE).addLowPass(BiquadFilter.Response.BUTTERWORTH, 2, CUTOFF));
+		report("Butterworth low pass, order 4" , () -> new BiquadFilter(SAMPLE_RATE).addLowPass(BiquadFilter.Response.BUTTERWORTH, 4, CUTOFF));
+		report("Bessel low pass, order 4"      , () -> new BiquadFilter(SAMPLE_RATE).addLowPass(BiquadFilter.Response.BESSEL     , 4, CUTOFF));
+		report("Bessel low pass 5 + notch 120" , () -> new BiquadFilter(SAMPLE_RATE).addLowPass(BiquadFilter.Response.BESSEL     , 5, CUTOFF).addNotch(120.0, 5.0));
+		report("Butterworth high pass, order 3", () -> new BiquadFilter(SAMPLE_RATE).addHighPass(BiquadFilter.Response.BUTTERWORTH, 3, CUTOFF));
+
+		if (sink == 0.0) System.out.println();
+	}
+
+	private static void report (String name, Design design) {
+
+		BiquadFilter filter = design.create();
+
+		// Overshoot of the step response.
+		double max = 0.0;
+
+		for (int i = 0; i < 1000; i++) max = Math.max(max, filter.filter(1.0));
+
+		// (Not meaningful for a high pass filter, whose step response decays to zero.)
+		if (filter.gain(0.0) > 0.5)
+			System.out.print(String.format("%-34s %8.1f%%", name, 100.0 * (max - 1.0)));
+		else
+			System.out.print(String.format("%-34s %9s", name, "-"));
+
+		for (double f : FREQUENCIES) System.out.print(String.format(" %9.4f", filter.gain(f)));
+
+		double oneAtATime = 0.0, array = 0.0;
+
+		for (int pass = 0; pass < NUM_PASSES; pass++) {
+
+			filter.reset();
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i < NUM_SAMPLES; i++) out[i] = filter.filter(samples[i]);
+
+			oneAtATime = (double)(System.nanoTime() - start) / NUM_SAMPLES;
+			sink      += out[NUM_SAMPLES - 1];
+
+			filter.reset();
+			start = System.nanoTime();
+
+			filter.filter(samples, out, NUM_SAMPLES);
+
+			array = (double)(System.nanoTime() - start) / NUM_SAMPLES;
+			sink += out[NUM_SAMPLES - 1];
+		}
+
+		System.out.println(String.format(" %10.1f %10.1f", oneAtATime, array));
+	}
+
+}
@@ -0,0 +1,167 @@
+/******************************************************************************
+ * FILTER BATCH BENCHMARK
+ *
+ * Checks that the array versions of the filters (block, interleaved channels
+ * and many filters in one pass) give exactly the results of filtering one
+ * sample at a time, then times a sweep of filter constants over a long signal
+ * both ways.  Run it off-robot:
+ *
+ *     java -cp <robot jar> org.usfirst.frc4579.simulation.FilterBatchBenchmark
+ *
+ * The first passes warm up the JIT and only the last pass is reported.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.simulation;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.usfirst.frc4579.filters.AverageFilter;
+import org.usfirst.frc4579.filters.FirstOrderLPF;
+import org.usfirst.frc4579.filters.KalmanFilter;
+import org.usfirst.frc4579.filters.SecondOrderLPF;
+
+public class FilterBatchBenchmark {
+
+	private static final int NUM_SAMPLES  = 1000000;  // About 17 minutes of 1 kHz samples.
+	private static final int NUM_FILTERS  = 32;       // Constants in the sweep.
+	private static final int NUM_CHANNELS = 6;
+	private static final int NUM_PASSES   = 5;
+
+	private static final double[] samples = new double[NUM_SAMPLES];
+	private static final double[] rates   = new double[NUM_SAMPLES];
+	private static final double[] dts     = new double[NUM_SAMPLES];
+	private static       double   sink    = 0.0;  // Keeps the JIT from removing the work.
+
+	public static void main (String[] args) {
+
+		Random random = new Random(4579);
+
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			samples[i] = Math.sin(i * 0.001) * 10.0 + random.nextGaussian();
+			rates  [i] = Math.cos(i * 0.001) * 10.0 + random.nextGaussian();
+			dts    [i] = 0.001 + 0.0001 * random.nextDouble();
+		}
+
+		checkExact();
+
+		double[][] out = new double[NUM_FILTERS][NUM_SAMPLES];
+		double     oneAtATime = 0.0, batch = 0.0;
+
+		for (int pass = 0; pass < NUM_PASSES; pass++) {
+
+			FirstOrderLPF[] filters = lpfSweep();
+			long            start   = System.nanoTime();
+
+			for (int i = 0; i < NUM_SAMPLES; i++)
+				for (int j = 0; j < NUM_FILTERS; j++) out[j][i] = filters[j].filter(samples[i]);
+
+			oneAtATime = (double)(System.nanoTime() - start) / NUM_SAMPLES / NUM_FILTERS;
+			sink      += out[NUM_FILTERS - 1][NUM_SAMPLES - 1];
+
+			filters = lpfSweep();
+			start   = System.nanoTime();
+
+			FirstOrderLPF.filterAll(filters, samples, out, NUM_SAMPLES);
+
+			batch = (double)(System.nanoTime() - start) / NUM_SAMPLES / NUM_FILTERS;
+			sink += out[NUM_FILTERS - 1][NUM_SAMPLES - 1];
+		}
+
+		System.out.println(String.format("FirstOrderLPF sweep of %d constants over %d samples:  one at a time %.2f ns/sample   filterAll %.2f ns/sample   (%.1fx)",
+				NUM_FILTERS, NUM_SAMPLES, oneAtATime, batch, oneAtATime / batch));
+
+		if (sink == 0.0) System.out.println();
+	}
+
+	private static FirstOrderLPF[] lpfSweep () {
+
+		FirstOrderLPF[] filters = new FirstOrderLPF[NUM_FILTERS];
+
+		for (int j = 0; j < NUM_FILTERS; j++) filters[j] = new FirstOrderLPF((j + 1.0) / (NUM_FILTERS + 1.0));
+
+		return filters;
+	}
+
+	// Compares each array version with filtering one sample at a time.
+	private static void checkExact () {
+
+		int      n        = 10000;
+		double[] expected = new double[n];
+		double[] actual   = new double[n];
+
+		// Block, split in two to check that the state carries over.
+		FirstOrderLPF lpf1 = new FirstOrderLPF(0.3), lpf1Batch = new FirstOrderLPF(0.3);
+		for (int i = 0; i < n; i++) expected[i] = lpf1.filter(samples[i]);
+		double[] secondHalf = Arrays.copyOfRange(samples, n / 2, n);
+		lpf1Batch.filter(samples, actual, n / 2);
+		lpf1Batch.filter(secondHalf, secondHalf, secondHalf.length);
+		System.arraycopy(secondHalf, 0, actual, n / 2, secondHalf.length);
+		report("FirstOrderLPF.filter(in, out, n)", expected, actual);
+
+		SecondOrderLPF lpf2 = new SecondOrderLPF(), lpf2Batch = new SecondOrderLPF();
+		for (int i = 0; i < n; i++) expected[i] = lpf2.filter(samples[i]);
+		lpf2Batch.filter(samples, actual, n);
+		report("SecondOrderLPF.filter(in, out, n)", expected, actual);
+
+		AverageFilter average = new AverageFilter(100), averageBatch = new AverageFilter(100);
+		for (int i = 0; i < n; i++) expected[i] = average.filter(samples[i]);
+		averageBatch.filter(samples, actual, n);
+		report("AverageFilter.filter(in, out, n)", expected, actual);
+
+		KalmanFilter kalman = new KalmanFilter(), kalmanBatch = new KalmanFilter();
+		for (int i = 0; i < n; i++) expected[i] = kalman.getAngle(samples[i], rates[i], dts[i]);
+		kalmanBatch.getAngle(samples, rates, dts, actual, n);
+		report("KalmanFilter.getAngle(angles, rates, dts, out, n)", expected, actual);
+
+		// Interleaved channels, each with its own constant.
+		double[]        interleaved = Arrays.copyOf(samples, n * NUM_CHANNELS);
+		double[]        expectedAll = new double[n * NUM_CHANNELS];
+		FirstOrderLPF[] channels    = new FirstOrderLPF[NUM_CHANNELS];
+		for (int c = 0; c < NUM_CHANNELS; c++) {
+			FirstOrderLPF channel = new FirstOrderLPF(0.1 * (c + 1));
+			for (int i = c; i < n * NUM_CHANNELS; i += NUM_CHANNELS) expectedAll[i] = channel.filter(interleaved[i]);
+			channels[c] = new FirstOrderLPF(0.1 * (c + 1));
+		}
+		FirstOrderLPF.filter(channels, interleaved, interleaved, n);
+		report("FirstOrderLPF.filter(channels, in, out, n)", expectedAll, interleaved);
+
+		// Many filters in one pass (5 and 3, so that the filters left over after the groups are checked too).
+		FirstOrderLPF[] lpf1Sweep = new FirstOrderLPF[5];
+		double[][]      lpf1Out   = new double[lpf1Sweep.length][n];
+		for (int j = 0; j < lpf1Sweep.length; j++) lpf1Sweep[j] = new FirstOrderLPF(0.1 * (j + 1));
+		FirstOrderLPF.filterAll(lpf1Sweep, samples, lpf1Out, n);
+		FirstOrderLPF lpf1Last = new FirstOrderLPF(0.1 * lpf1Sweep.length), lpf1First = new FirstOrderLPF(0.1);
+		for (int i = 0; i < n; i++) expected[i] = lpf1Last.filter(samples[i]);
+		for (int i = 0; i < n; i++) actual  [i] = lpf1First.filter(samples[i]);
+		report("FirstOrderLPF.filterAll", expected, lpf1Out[lpf1Sweep.length - 1]);
+		report("FirstOrderLPF.filterAll (first)", actual, lpf1Out[0]);
+		
+		SecondOrderLPF[] lpf2Sweep = new SecondOrderLPF[3];
+		double[][]       lpf2Out   = new double[lpf2Sweep.length][n];
+		for (int j = 0; j < lpf2Sweep.length; j++) lpf2Sweep[j] = new SecondOrderLPF(1.0 + j, 2.2);
+		SecondOrderLPF.filterAll(lpf2Sweep, samples, lpf2Out, n);
+		for (int j = 0; j < lpf2Sweep.length; j++) {
+			SecondOrderLPF single = new SecondOrderLPF(1.0 + j, 2.2);
+			for (int i = 0; i < n; i++) expected[i] = single.filter(samples[i]);
+			report("SecondOrderLPF.filterAll (" + j + ")", expected, lpf2Out[j]);
+		}
+
+		KalmanFilter[] sweep    = new KalmanFilter[4];
+		double[][]     sweepOut = new double[sweep.length][n];
+		for (int j = 0; j < sweep.length; j++) {
+			sweep[j] = new KalmanFilter();
+			sweep[j].setRmeasure(0.01 * (j + 1));
+		}
+		KalmanFilter.getAngleAll(sweep, samples, rates, dts, sweepOut, n);
+		KalmanFilter last = new KalmanFilter();
+		last.setRmeasure(0.01 * sweep.length);
+		for (int i = 0; i < n; i++) expected[i] = last.getAngle(samples[i], rates[i], dts[i]);
+		report("KalmanFilter.getAngleAll", expected, sweepOut[sweep.length - 1]);
+	}
+
+	private static void report (String name, double[] expected, double[] actual) {
+		System.out.println(String.format("%-52s %s", name, Arrays.equals(expected, actual) ? "exact" : "DIFFERENT"));
+	}
+
+}
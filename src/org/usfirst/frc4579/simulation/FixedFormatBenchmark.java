@@ -0,0 +1,124 @@
+/******************************************************************************
+ * FIXED FORMAT BENCHMARK
+ *
+ * Compares the speed of FixedFormat with String.format and Double.toString,
+ * and checks that FixedFormat writes the same text as String.format.  Run it
+ * off-robot or on the roboRIO:
+ *
+ *     java -cp <robot jar> org.usfirst.frc4579.simulation.FixedFormatBenchmark
+ *
+ * Each method formats the same set of values several times; the first passes
+ * warm up the JIT and only the last pass is reported.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.simulation;
+
+import java.util.Random;
+
+import org.usfirst.frc4579.instrumentation.FixedFormat;
+
+public class FixedFormatBenchmark {
+
+	private static final int NUM_VALUES = 100000;
+	private static final int NUM_PASSES = 5;
+
+	private static final double[]      values = new double[NUM_VALUES];
+	private static final StringBuilder sb     = new StringBuilder(64);
+	private static final char[]        buf    = new char[64];
+	private static       long          sink   = 0;  // Keeps the JIT from removing the work.
+
+	private interface Method {
+		void run ();
+	}
+
+	public static void main (String[] args) {
+
+		// Values like the dashboard and debug data: angles, rates and times.
+		Random random = new Random(4579);
+
+		for (int i = 0; i < NUM_VALUES; i++) values[i] = (random.nextDouble() - 0.5) * Math.pow(10.0, random.nextInt(6) - 1);
+
+		checkAgainstStringFormat();
+
+		time("String.format(\"%7.1f\")", () -> {
+			for (double value : values) sink += String.format("%7.1f", value).length();
+		});
+
+		time("Double.toString", () -> {
+			for (double value : values) sink += Double.toString(value).length();
+		});
+
+		time("StringBuilder.append(double)", () -> {
+			for (double value : values) {
+				sb.setLength(0);
+				sink += sb.append(value).length();
+			}
+		});
+
+		time("FixedFormat.append(7, 1)", () -> {
+			for (double value : values) {
+				sb.setLength(0);
+				sink += FixedFormat.append(sb, value, 7, 1).length();
+			}
+		});
+
+		time("FixedFormat.format(char[], 7, 1)", () -> {
+			for (double value : values) sink += FixedFormat.format(buf, 0, value, 7, 1);
+		});
+
+		time("FixedFormat.append(0, 6)", () -> {
+			for (double value : values) {
+				sb.setLength(0);
+				sink += FixedFormat.append(sb, value, 0, 6).length();
+			}
+		});
+
+		System.out.println("(" + sink + ")");
+	}
+
+	// Prints the time per value of the last pass of "method".
+	private static void time (String name, Method method) {
+
+		long nanos = 0;
+
+		for (int pass = 0; pass < NUM_PASSES; pass++) {
+
+			long start = System.nanoTime();
+
+			method.run();
+
+			nanos = System.nanoTime() - start;
+		}
+
+		System.out.println(String.format("%-34s %8.1f ns/value", name, (double)nanos / NUM_VALUES));
+	}
+
+	// Counts the values for which FixedFormat and String.format differ.
+	private static void checkAgainstStringFormat () {
+
+		int[] decimals    = {0, 1, 4, 6};
+		int   differences = 0;
+
+		for (int d : decimals) {
+
+			String pattern = "%7." + d + "f";
+
+			for (double value : values) {
+
+				sb.setLength(0);
+
+				String expected = String.format(pattern, value);
+
+				if (!expected.contentEquals(FixedFormat.append(sb, value, 7, d))) {
+
+					if (differences < 10) System.out.println("Differs: " + pattern + " \"" + expected + "\" \"" + sb + "\"");
+
+					differences++;
+				}
+			}
+		}
+
+		System.out.println(differences + " of " + (decimals.length * NUM_VALUES) + " values differ from String.format.");
+	}
+
+}
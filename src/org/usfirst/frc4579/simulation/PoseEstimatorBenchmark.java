@@ -0,0 +1,147 @@
+/******************************************************************************
+ * POSE ESTIMATOR BENCHMARK
+ *
+ * Drives a simulated robot (still for 5 seconds, then around a circle) with a
+ * biased, noisy gyro heading and a noisy flow sensor sampled at 50 Hz, and
+ * compares the PoseEstimator's position and heading with the truth and with
+ * dead reckoning (rotating the flow by the gyro heading).  Then times a
+ * PoseEstimator step and the ExtendedKalmanFilter predict and update for 5
+ * and 6 state models.  Run it off-robot or on the roboRIO:
+ *
+ *     java -cp <robot jar> org.usfirst.frc4579.simulation.PoseEstimatorBenchmark
+ *
+ * The first passes warm up the JIT and only the last pass is reported.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.simulation;
+
+import java.util.Random;
+
+import org.usfirst.frc4579.filters.ExtendedKalmanFilter;
+import org.usfirst.frc4579.filters.PoseEstimator;
+
+public class PoseEstimatorBenchmark {
+
+	private static final double DT          = 0.02;
+	private static final double STILL_TIME  = 5.0;
+	private static final double DRIVE_TIME  = 30.0;
+	private static final double SPEED       = 60.0;    // Units (inches)/sec.
+	private static final double TURN_RATE   = 20.0;    // Degrees/sec.
+	private static final double GYRO_BIAS   = 0.3;     // Degrees/sec.
+	private static final int    NUM_STEPS   = 1000000;
+	private static final int    NUM_PASSES  = 5;
+
+	private static double sink = 0.0;  // Keeps the JIT from removing the work.
+
+	public static void main (String[] args) {
+
+		simulate();
+
+		double stepNanos = 0.0;
+
+		for (int pass = 0; pass < NUM_PASSES; pass++) {
+
+			PoseEstimator pose  = new PoseEstimator();
+			long          start = System.nanoTime();
+
+			for (int i = 0; i < NUM_STEPS; i++) {
+				pose.predict(0.4, DT);
+				pose.updateFlow(SPEED, 0.0);
+			}
+
+			stepNanos = (double)(System.nanoTime() - start) / NUM_STEPS;
+			sink     += pose.x();
+		}
+
+		System.out.println(String.format("PoseEstimator predict + updateFlow: %.0f ns", stepNanos));
+
+		timeFilter(5, 1);
+		timeFilter(6, 2);
+		timeFilter(6, 3);
+
+		if (sink == 0.0) System.out.println();
+	}
+
+	private static void simulate () {
+
+		Random        random  = new Random(4579);
+		PoseEstimator pose    = new PoseEstimator();
+		double        trueX = 0.0, trueY = 0.0, trueHeading = 0.0;
+		double        gyroHeading = 0.0;
+		double        deadX = 0.0, deadY = 0.0;
+		double        maxError = 0.0, maxDeadError = 0.0;
+
+		for (double t = 0.0; t < STILL_TIME + DRIVE_TIME; t += DT) {
+
+			boolean still = t < STILL_TIME;
+			double  speed = still ? 0.0 : SPEED;
+			double  turn  = still ? 0.0 : TURN_RATE;
+
+			trueHeading += turn * DT;
+			trueX       += speed * Math.cos(Math.toRadians(trueHeading)) * DT;
+			trueY       += speed * Math.sin(Math.toRadians(trueHeading)) * DT;
+
+			double headingChange = (turn + GYRO_BIAS + 0.05 * random.nextGaussian()) * DT;
+			double flowX         = speed + 2.0 * random.nextGaussian();   // Robot frame.
+			double flowY         =         2.0 * random.nextGaussian();
+
+			gyroHeading += headingChange;
+			deadX       += (flowX * Math.cos(Math.toRadians(gyroHeading)) - flowY * Math.sin(Math.toRadians(gyroHeading))) * DT;
+			deadY       += (flowX * Math.sin(Math.toRadians(gyroHeading)) + flowY * Math.cos(Math.toRadians(gyroHeading))) * DT;
+
+			pose.predict(headingChange, DT);
+
+			if (still) pose.updateStationary(headingChange / DT);
+			else       pose.updateFlow(flowX, flowY);
+
+			maxError     = Math.max(maxError    , Math.hypot(pose.x() - trueX, pose.y() - trueY));
+			maxDeadError = Math.max(maxDeadError, Math.hypot(deadX    - trueX, deadY    - trueY));
+		}
+
+		System.out.println(String.format("Heading: true %.1f  gyro %.1f  estimate %.1f   gyro bias: true %.2f  estimate %.3f deg/sec",
+				trueHeading, gyroHeading, pose.heading(), GYRO_BIAS, pose.gyroBias()));
+		System.out.println(String.format("Largest position error: estimate %.1f  dead reckoning %.1f inches", maxError, maxDeadError));
+	}
+
+	// Times a predict and an update of m measurements for an n state filter with full matrices.
+	private static void timeFilter (int n, int m) {
+
+		ExtendedKalmanFilter ekf    = new ExtendedKalmanFilter(n, m);
+		double[]             z      = new double[m];
+		Random               random = new Random(4579);
+
+		for (int i = 0; i < n; i++) {
+			ekf.P[i * n + i] = 1.0;
+			ekf.Q[i * n + i] = 0.01;
+			for (int j = 0; j < n; j++) ekf.F[i * n + j] = ((i == j) ? 1.0 : 0.0) + 0.01 * random.nextGaussian();
+		}
+
+		for (int i = 0; i < m; i++) {
+			ekf.R[i * m + i] = 0.1;
+			for (int j = 0; j < n; j++) ekf.H[i * n + j] = random.nextGaussian();
+		}
+
+		double predictNanos = 0.0, updateNanos = 0.0;
+
+		for (int pass = 0; pass < NUM_PASSES; pass++) {
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i < NUM_STEPS; i++) ekf.predict();
+
+			predictNanos = (double)(System.nanoTime() - start) / NUM_STEPS;
+			start        = System.nanoTime();
+
+			for (int i = 0; i < NUM_STEPS; i++) {
+				z[0] = i & 7;
+				ekf.update(z, m);
+			}
+
+			updateNanos = (double)(System.nanoTime() - start) / NUM_STEPS;
+			sink       += ekf.x[0];
+		}
+
+		System.out.println(String.format("ExtendedKalmanFilter %d states: predict %.0f ns, update with %d measurements %.0f ns", n, predictNanos, m, updateNanos));
+	}
+
+}
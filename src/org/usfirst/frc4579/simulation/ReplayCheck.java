@@ -0,0 +1,150 @@
+/******************************************************************************
+ * REPLAY CHECK
+ *
+ * Records a run of the simulated MPU6050 (see com.eagles.sensors.sim) the way
+ * the robot does, to a run directory, then replays it with SensorReplay, which
+ * prints the largest difference from the recorded heading.  It should be zero
+ * (to rounding):
+ *
+ *     java -cp <robot jar>:<wpilib jars> org.usfirst.frc4579.simulation.ReplayCheck
+ *
+ * The run is the case that a constant temperature log can't check: the MPU
+ * starts from a stored temperature model with a slope, and warms up while the
+ * robot alternately sits still and turns, with a gyro bias that follows the
+ * temperature.  The stored files and the run directory are made in a
+ * temporary directory (user.home is moved there), so the robot's own files
+ * are left alone.  The replay is run in a new JVM, as each sensor's debug
+ * files can only be created once per JVM.  It takes about 15 seconds, in real
+ * time.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.locks.LockSupport;
+
+import org.usfirst.frc4579.filters.StationaryDetector;
+import org.usfirst.frc4579.instrumentation.DebugTextFile;
+import org.usfirst.frc4579.instrumentation.Instrumentation;
+import org.usfirst.frc4579.replay.SensorReplay;
+
+import com.eagles.sensors.GyroTemperatureModel;
+import com.eagles.sensors.MPU6050_I2C;
+import com.eagles.sensors.sim.SimulatedMPU6050;
+
+import edu.wpi.first.wpilibj.Timer;
+
+public class ReplayCheck {
+
+	private static final double START_TEMP   = 80.0;    // Degrees F.
+	private static final double WARMING      = 1.0;     // Degrees F/sec.
+	private static final double BIAS         = 0.5;     // Gyro bias at START_TEMP (degrees/sec).
+	private static final double BIAS_SLOPE   = 0.03;    // Degrees/sec per degree F.
+	private static final double RATE_Z       = 30.0;    // While turning (degrees/sec).
+	private static final double SEGMENT_TIME = 3.0;     // Seconds still, then turning, and so on.
+	private static final int    NUM_SEGMENTS = 4;
+
+	public static void main (String[] args) throws IOException, InterruptedException {
+
+		// The calibration, the temperature model and the run directory go in user.home.  It must be
+		// moved before any instrumentation is created.
+		File home = Files.createTempDirectory("replayCheck").toFile();
+
+		System.setProperty("user.home", home.getPath());
+
+		Timer.SetImplementation(new SensorPathBenchmark.WallClock());
+
+		// The stored model: the bias slope, fitted over 20 degrees F.
+		GyroTemperatureModel model = new GyroTemperatureModel();
+
+		for (int i = 0; i <= 200; i++) {
+			double tempF = START_TEMP - 10.0 + 0.1 * i;
+			for (int axis = 0; axis < GyroTemperatureModel.AXIS_NAMES.length; axis++)
+				model.add(axis, tempF, BIAS + BIAS_SLOPE * (tempF - START_TEMP));
+		}
+
+		model.save();
+
+		// Record the run, as measurement does on the robot.
+		SimulatedMPU6050     device   = new SimulatedMPU6050(4579);
+		MPU6050_I2C          mpu      = new MPU6050_I2C(MPU6050_I2C.ACCELFULLSCALE.ACCEL2G, MPU6050_I2C.GYROFULLSCALE.DEGSEC250, device);
+		DebugTextFile        measData = new DebugTextFile("measData", true, new String[] {"zAngleRate", "zAngle"}, 20000);
+		MPU6050_I2C.Snapshot snapshot = new MPU6050_I2C.Snapshot();
+
+		mpu.setStationaryDetection(new StationaryDetector());
+		mpu.setTemperatureCompensation(true);
+
+		setTemperature(device, START_TEMP);
+
+		mpu.init();
+
+		// Calibrate while still, as while the robot is disabled.
+		long calStart = System.nanoTime();
+
+		mpu.setNotMoving(true);
+		mpu.setCalibrating(true);
+
+		while (!mpu.isCalibrated() && (System.nanoTime() - calStart < 5000000000L)) {
+			mpu.poll();
+			LockSupport.parkNanos((long)(MPU6050_I2C.SAMPLE_PERIOD * 1.0e9));
+		}
+
+		mpu.setCalibrating(false);
+
+		// Warm up while alternately still and turning.
+		long   start       = System.nanoTime();
+		long   lastSamples = -1;
+		double seconds     = 0.0;
+
+		while (seconds < NUM_SEGMENTS * SEGMENT_TIME) {
+
+			boolean still = ((int)(seconds / SEGMENT_TIME) % 2) == 0;
+
+			setTemperature(device, START_TEMP + WARMING * seconds);
+			device.setRateZ(still ? 0.0 : RATE_Z);
+			mpu.setNotMoving(still);
+
+			mpu.poll();
+			mpu.getSnapshot(snapshot);
+
+			// Tagged with the time of the sample, as by measurement.
+			if (snapshot.samples != lastSamples) {
+				measData.record(snapshot.timeNanos, snapshot.rateZ, snapshot.angleZ);
+				lastSamples = snapshot.samples;
+			}
+
+			LockSupport.parkNanos((long)(MPU6050_I2C.SAMPLE_PERIOD * 1.0e9));
+
+			seconds = (System.nanoTime() - start) * 1.0e-9;
+		}
+
+		// The first save only marks the start of the run (see DebugTextFile.saveDataFiles()).
+		DebugTextFile.saveDataFiles();
+		DebugTextFile.saveDataFiles();
+
+		String runDirectory = Instrumentation.dataDirectoryName();
+
+		if (runDirectory.isEmpty()) {
+			System.out.println("ReplayCheck: the run directory could not be created in " + home);
+			return;
+		}
+
+		System.out.println(String.format("Warmed from %.0f to %.0f F with a stored slope of %.3f deg/sec/F: heading %.3f deg, true %.3f deg", 
+				START_TEMP, START_TEMP + WARMING * seconds, BIAS_SLOPE, snapshot.angleZ, device.trueAngleZ()));
+
+		// Replay it.
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+		new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), SensorReplay.class.getName(), runDirectory)
+				.inheritIO().start().waitFor();
+	}
+
+	// Sets the temperature of the simulated MPU, and its gyro bias at that temperature.
+	private static void setTemperature (SimulatedMPU6050 device, double tempF) {
+		device.setTemperature(tempF);
+		device.setErrors(BIAS + BIAS_SLOPE * (tempF - START_TEMP), 0.05, 0.002);
+	}
+
+}
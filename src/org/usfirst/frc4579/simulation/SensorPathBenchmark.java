@@ -0,0 +1,310 @@
+/******************************************************************************
+ * SENSOR PATH BENCHMARK
+ *
+ * Runs the sensor code against the simulated MPU6050 and flow sensor (see
+ * com.eagles.sensors.sim) on a plain machine, in real time, and reports the
+ * throughput and latency of each sensor path:
+ *
+ *     java -cp <robot jar>:<wpilib jars> org.usfirst.frc4579.simulation.SensorPathBenchmark [seconds] [-bus 0]
+ *
+ * The MPU is run twice, reading the data registers every sample and reading
+ * the FIFO every FIFO_READ_PERIOD, by calling poll() at the rate of the
+ * sampling thread, after calibrating it in the background.  The flow sensor
+ * is read at the robot loop rate.  The simulated devices rotate (and move)
+ * at a constant rate, so the heading and flow position can be compared with
+ * the truth.  Then the flow sensor is read for a second over a surface it
+ * can't see, to check that the poor readings are rejected.
+ *
+ * Bus transfers take the time of the real bus; "-bus 0" makes them instant,
+ * leaving the cost of the processing alone.  No data files are written.
+ ******************************************************************************/
+
+package org.usfirst.frc4579.simulation;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.usfirst.frc4579.instrumentation.Instrumentation;
+import org.usfirst.frc4579.instrumentation.LatencyHistogram;
+
+import com.eagles.sensors.MPU6050_I2C;
+import com.eagles.sensors.sim.SimulatedFlowSensor;
+import com.eagles.sensors.sim.SimulatedMPU6050;
+
+import edu.wpi.first.wpilibj.Timer;
+import flowSensor.FlowMotion;
+
+public class SensorPathBenchmark {
+
+	private static final double RATE_Z      = 45.0;    // Rotation after calibration (degrees/sec).
+	private static final double FLOW_RATE_X = 400.0;   // Motion after init (counts/sec).
+	private static final double FLOW_RATE_Y = -150.0;
+	private static final double LOOP_PERIOD = 0.02;    // Robot loop (seconds).
+
+	static {
+		Timer.SetImplementation(new WallClock());
+		Instrumentation.disableDataFiles();
+	}
+
+	private static final ThreadMXBean threads  = ManagementFactory.getThreadMXBean();
+	private static double             busClock = -1.0;  // < 0 => the default of each device.
+
+	public static void main (String[] args) {
+
+		double seconds = 5.0;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-bus"))
+				busClock = Double.parseDouble(args[++i]);
+			else
+				seconds = Double.parseDouble(args[i]);
+		}
+
+		benchmarkMpu("MPU6050, data registers", false, seconds);
+		benchmarkMpu("MPU6050, FIFO"          , true , seconds);
+		benchmarkFlow("Flow sensor"           , seconds);
+	}
+
+	// Calibrates a simulated MPU, then polls it for "seconds" while it rotates.
+	private static void benchmarkMpu (String name, boolean fifoMode, double seconds) {
+
+		SimulatedMPU6050 device = new SimulatedMPU6050(4579);
+		MPU6050_I2C      mpu    = new MPU6050_I2C(MPU6050_I2C.ACCELFULLSCALE.ACCEL2G, MPU6050_I2C.GYROFULLSCALE.DEGSEC250, device);
+
+		// Always calibrate (in the background), and leave the calibration file alone.
+		mpu.setPersistedCalibration(false);
+
+		if (busClock >= 0.0) device.setBusTiming(busClock, 0.0);
+
+		mpu.setFifoMode(fifoMode);
+
+		long    initStart = System.nanoTime();
+		boolean available = mpu.init();
+		double  initTime  = (System.nanoTime() - initStart) * 1.0e-9;
+
+		// Calibrate while still, as while the robot is disabled.
+		double period   = fifoMode ? MPU6050_I2C.FIFO_READ_PERIOD : MPU6050_I2C.SAMPLE_PERIOD;
+		long   calStart = System.nanoTime();
+
+		mpu.setNotMoving(true);
+		mpu.setCalibrating(true);
+
+		while (!mpu.isCalibrated() && (System.nanoTime() - calStart < 5000000000L)) {
+			mpu.poll();
+			LockSupport.parkNanos((long)(period * 1.0e9));
+		}
+
+		double calTime = (System.nanoTime() - calStart) * 1.0e-9;
+
+		mpu.setCalibrating(false);
+		mpu.setNotMoving(false);
+
+		device.setRateZ(RATE_Z);
+
+		MPU6050_I2C.Snapshot snapshot = new MPU6050_I2C.Snapshot();
+
+		mpu.poll();
+		mpu.resetAngleZ();
+		mpu.getSnapshot(snapshot);
+
+		double startAngle        = device.trueAngleZ();
+		long   startProduced     = device.samples();
+		long   startProcessed    = snapshot.samples;
+		long   startTransactions = device.transactions();
+		long   startBytes        = device.bytes();
+		long   startBusy         = device.busyNanos();
+
+		LatencyHistogram latency = new LatencyHistogram();
+		long             cpu     = runPeriodic(period, seconds, latency, mpu::poll);
+
+		mpu.getSnapshot(snapshot);
+
+		long   processed  = snapshot.samples - startProcessed;
+		double trueAngle  = device.trueAngleZ() - startAngle;
+
+		System.out.println(name + ":");
+		System.out.println(String.format("  init           %.3f s, available=%b", initTime, available));
+		System.out.println(String.format("  calibration    %.3f s in the background, calibrated=%b", calTime, mpu.isCalibrated()));
+		System.out.println(String.format("  samples        %d produced, %d processed (%.1f/s)", 
+				device.samples() - startProduced, processed, processed / seconds));
+		printBus(device.transactions() - startTransactions, device.bytes() - startBytes, device.busyNanos() - startBusy, seconds);
+		System.out.println(              "  poll (ms)      " + latency.summary());
+		System.out.println(String.format("  cpu/sample     %.1f us (including bus time)", (processed == 0) ? 0.0 : cpu * 1.0e-3 / processed));
+		System.out.println(String.format("  heading        %.3f deg, true %.3f deg, error %.3f deg", 
+				snapshot.angleZ, trueAngle, snapshot.angleZ - trueAngle));
+		System.out.println();
+	}
+
+	// Initializes a simulated flow sensor, then reads it every loop for "seconds" while it moves.
+	private static void benchmarkFlow (String name, double seconds) {
+
+		SimulatedFlowSensor device = new SimulatedFlowSensor(4579);
+		FlowMotion          flow   = new FlowMotion(device);
+
+		if (busClock >= 0.0) device.setBusTiming(busClock, 0.0);
+
+		// FlowMotion prints during init().  That output isn't wanted here.
+		PrintStream out = System.out;
+
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write (int b) {
+			}
+		}));
+
+		boolean          available;
+		LatencyHistogram latency = new LatencyHistogram();
+		long             startX, startY, startTransactions, startBytes, startBusy, cpu;
+
+		try {
+			available = flow.init();
+
+			device.setVelocity(FLOW_RATE_X, FLOW_RATE_Y);
+
+			flow.getCounts();
+			flow.reset();
+
+			startX            = device.trueX();
+			startY            = device.trueY();
+			startTransactions = device.transactions();
+			startBytes        = device.bytes();
+			startBusy         = device.busyNanos();
+
+			cpu = runPeriodic(LOOP_PERIOD, seconds, latency, flow::getCounts);
+		}
+		finally {
+			System.setOut(out);
+		}
+
+		System.out.println(name + ":");
+		System.out.println(String.format("  init           available=%b", available));
+		System.out.println(String.format("  readings       %d (%.1f/s)", latency.count(), latency.count() / seconds));
+		printBus(device.transactions() - startTransactions, device.bytes() - startBytes, device.busyNanos() - startBusy, seconds);
+		System.out.println(              "  getCounts (ms) " + latency.summary());
+		System.out.println(String.format("  cpu/reading    %.1f us (including bus time)", 
+				(latency.count() == 0) ? 0.0 : cpu * 1.0e-3 / latency.count()));
+		FlowMotion.Snapshot snapshot = new FlowMotion.Snapshot();
+
+		flow.getSnapshot(snapshot);
+
+		System.out.println(String.format("  position       x %d, y %d counts (filtered x %d, y %d), true x %d, y %d counts", 
+				snapshot.x, snapshot.y, flow.accumDeltaX, flow.accumDeltaY, device.trueX() - startX, device.trueY() - startY));
+		System.out.println(String.format("  quality        %.2f, %d bad readings", snapshot.quality, snapshot.badReadings));
+
+		// Then a second over a surface the sensor can't see, with the poor readings rejected.
+		flow.setQualityGating(true);
+		device.setSqual(0x10);
+
+		startX = snapshot.x;
+
+		runPeriodic(LOOP_PERIOD, 1.0, new LatencyHistogram(), flow::getCounts);
+
+		flow.getSnapshot(snapshot);
+
+		System.out.println(String.format("  poor surface   quality %.2f, %d bad readings, %d counts in 1 s", 
+				snapshot.quality, snapshot.badReadings, snapshot.x - startX));
+		System.out.println();
+	}
+
+	// Runs "work" every "period" seconds for "seconds", recording the time of each run.  Returns
+	// the CPU time used by the runs (nanoseconds).
+	private static long runPeriodic (double period, double seconds, LatencyHistogram latency, Runnable work) {
+
+		long periodNanos = (long)(period * 1.0e9);
+		long start       = System.nanoTime();
+		long end         = start + (long)(seconds * 1.0e9);
+		long cpuStart    = threads.getCurrentThreadCpuTime();
+
+		for (long next = start; next < end; next += periodNanos) {
+
+			long wait = next - System.nanoTime();
+
+			if (wait > 0) LockSupport.parkNanos(wait);
+
+			long runStart = System.nanoTime();
+
+			work.run();
+
+			latency.record(System.nanoTime() - runStart);
+		}
+
+		return threads.getCurrentThreadCpuTime() - cpuStart;
+	}
+
+	private static void printBus (long transactions, long bytes, long busyNanos, double seconds) {
+		System.out.println(String.format("  bus            %d transactions (%.1f/s), %d bytes, busy %.2f%%", 
+				transactions, transactions / seconds, bytes, busyNanos * 1.0e-7 / seconds));
+	}
+
+	/******************************************************************************
+	 * The WPILib Timer on the machine's clock, in place of the FPGA.  Also used
+	 * by ReplayCheck.
+	 ******************************************************************************/
+	static class WallClock implements Timer.StaticInterface {
+
+		private final long startTime = System.nanoTime();
+
+		@Override
+		public double getFPGATimestamp () {
+			return Instrumentation.nanosToSeconds(System.nanoTime() - startTime);
+		}
+
+		@Override
+		public double getMatchTime () {
+			return -1.0;
+		}
+
+		@Override
+		public void delay (double seconds) {
+			LockSupport.parkNanos((long)(seconds * 1.0e9));
+		}
+
+		@Override
+		public Timer.Interface newTimer () {
+
+			return new Timer.Interface() {
+
+				private double  startTime   = 0.0;
+				private double  accumulated = 0.0;
+				private boolean running     = false;
+
+				@Override
+				public double get () {
+					return running ? accumulated + getFPGATimestamp() - startTime : accumulated;
+				}
+
+				@Override
+				public void reset () {
+					accumulated = 0.0;
+					startTime   = getFPGATimestamp();
+				}
+
+				@Override
+				public void start () {
+					startTime = getFPGATimestamp();
+					running   = true;
+				}
+
+				@Override
+				public void stop () {
+					accumulated = get();
+					running     = false;
+				}
+
+				@Override
+				public boolean hasPeriodPassed (double period) {
+
+					if (get() < period) return false;
+
+					startTime += period;
+
+					return true;
+				}
+			};
+		}
+	}
+
+}
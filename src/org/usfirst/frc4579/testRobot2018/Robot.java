@@ -20,7 +20,10 @@ import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 import org.usfirst.frc4579.instrumentation.DebugTextFile;
+import org.usfirst.frc4579.instrumentation.EventLogging;
+import org.usfirst.frc4579.instrumentation.FRCSmartDashboard;
 import org.usfirst.frc4579.instrumentation.Instrumentation;
+import org.usfirst.frc4579.instrumentation.LoopProfiler;
 import org.usfirst.frc4579.testRobot2018.commands.*;
 import org.usfirst.frc4579.testRobot2018.subsystems.*;
 
@@ -45,6 +48,12 @@ public class Robot extends TimedRobot {
     // END AUTOGENERATED CODE, SOURCE=ROBOTBUILDER ID=DECLARATIONS
 
     public static lifter lifter;
+
+    // Times the phases of each autonomous and teleop loop.
+    public static final LoopProfiler loopProfiler = new LoopProfiler("Robot", TimedRobot.DEFAULT_PERIOD);
+    private static final LoopProfiler.Phase measurePhase   = loopProfiler.addPhase("measure");
+    private static final LoopProfiler.Phase countsPhase    = loopProfiler.addPhase("getCounts");
+    private static final LoopProfiler.Phase schedulerPhase = loopProfiler.addPhase("scheduler");
     
     /**
      * This function is run when the robot is first started up and should be
@@ -74,6 +83,14 @@ public class Robot extends TimedRobot {
     // END AUTOGENERATED CODE, SOURCE=ROBOTBUILDER ID=AUTONOMOUS
         SmartDashboard.putData("Auto mode", chooser);
         
+        // Stream debug data to the run directory while the robot runs.
+        DebugTextFile.startBackgroundWriter();
+        
+        // Send the dashboard values updated every loop 10 times a second.
+        FRCSmartDashboard.startPublisher(0.1);
+
+        // The sensor samples are only logged while the robot is enabled.
+        Robot.measurement.setLogging(false);
         Robot.measurement.initialize();
     	Robot.measurement.initFlowMotion();
     }
@@ -84,20 +101,46 @@ public class Robot extends TimedRobot {
      */
     @Override
     public void disabledInit(){
-//    	Instrumentation.deleteOldDataDirectories(2);   // Delete Instrumentation directories older than 2 days
-//    	DebugTextFile.saveDataFiles();
+    	// Stop logging the sensor samples, so that a robot left on while disabled doesn't fill the flash.
+    	Robot.measurement.setLogging(false);
+    	
+    	Instrumentation.deleteOldDataDirectories(2);   // Delete Instrumentation directories older than 2 days
+    	EventLogging.saveSpanSummary();
+    	DebugTextFile.saveDataFiles();
+    	
+    	// The time until the next enabled loop isn't loop jitter.
+    	loopProfiler.reset();
+    	
+    	// The motor controllers keep their last speeds while disabled, and those would tell the MPU that
+    	// the robot is moving (see measurement.updateCalibration()).
+    	Robot.driveTrain.stop();
     	
     	Robot.measurement.reset();
     	Robot.measurement.resetFlowMotion();
+    	
+    	// Refine the gyro calibration in the background while the robot sits still.
+    	Robot.measurement.setCalibrating(true);
+    }
+
+    /**
+     * This function is called every loop, in every mode.
+     */
+    @Override
+    public void robotPeriodic() {
+    	EventLogging.publishSpanStats();
+    	loopProfiler.endLoop();
     }
 
     @Override
     public void disabledPeriodic() {
+    	Robot.measurement.updateCalibration();
         Scheduler.getInstance().run();
     }
 
     @Override
     public void autonomousInit() {
+    	Robot.measurement.setCalibrating(false);
+    	Robot.measurement.setLogging(true);
     	
         autonomousCommand = chooser.getSelected();
         // schedule the autonomous command (example)
@@ -109,9 +152,16 @@ public class Robot extends TimedRobot {
      */
     @Override
     public void autonomousPeriodic() {
+    	loopProfiler.startLoop();
+    	measurePhase.start();
     	Robot.measurement.measure();  //JGH these two lines should probably be in a Command.
+    	measurePhase.end();
+    	countsPhase.start();
     	Robot.measurement.getCounts();
+    	countsPhase.end();
+    	schedulerPhase.start();
         Scheduler.getInstance().run();
+    	schedulerPhase.end();
     }
 
     @Override
@@ -122,6 +172,9 @@ public class Robot extends TimedRobot {
         // this line or comment it out.
         if (autonomousCommand != null) autonomousCommand.cancel();
 
+        Robot.measurement.setCalibrating(false);
+        Robot.measurement.setLogging(true);
+
     }
 
     /**
@@ -129,8 +182,15 @@ public class Robot extends TimedRobot {
      */
     @Override
     public void teleopPeriodic() {
+    	loopProfiler.startLoop();
+    	measurePhase.start();
     	Robot.measurement.measure();  //JGH  these lines should probably be in a Command.
+    	measurePhase.end();
+    	countsPhase.start();
     	Robot.measurement.getCounts();
+    	countsPhase.end();
+    	schedulerPhase.start();
         Scheduler.getInstance().run();
+    	schedulerPhase.end();
     }
 }
@@ -14,6 +14,7 @@ import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.command.Command;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
+import org.usfirst.frc4579.instrumentation.LoopProfiler;
 import org.usfirst.frc4579.testRobot2018.Robot;
 
 /**
@@ -55,9 +56,13 @@ public class centerAuto extends Command {
     	startTime = Timer.getFPGATimestamp();
     }
 
+    // Times each execute() in the robot loop profile.
+    private static final LoopProfiler.Phase executePhase = Robot.loopProfiler.addPhase("centerAuto.execute");
+
     // Called repeatedly when this Command is scheduled to run
     @Override
     protected void execute() {
+    	executePhase.start();
     	if(runs%2 == 0){
     		direction = 1;
     	}
@@ -77,6 +82,7 @@ public class centerAuto extends Command {
     	speed = Math.max(.1, Math.min(0.3, speed + increment));
     	Robot.driveTrain.driveStraight(speed * direction);
     	
+    	executePhase.end();
     }
 
     // Make this return true when this Command no longer needs to run execute()
@@ -11,6 +11,8 @@
 
 package org.usfirst.frc4579.testRobot2018.commands;
 import edu.wpi.first.wpilibj.command.Command;
+
+import org.usfirst.frc4579.instrumentation.LoopProfiler;
 import org.usfirst.frc4579.testRobot2018.Robot;
 
 /**
@@ -40,10 +42,17 @@ public class closeGripper extends Command {
     	setTimeout(.5);
     }
 
+    // Times each execute() in the robot loop profile.
+    private static final LoopProfiler.Phase executePhase = Robot.loopProfiler.addPhase("closeGripper.execute");
+
     // Called repeatedly when this Command is scheduled to run
     @Override
     protected void execute() {
+    	executePhase.start();
+    	
     	Robot.arms.closeGripper();
+    	
+    	executePhase.end();
     }
 
     // Make this return true when this Command no longer needs to run execute()
@@ -11,8 +11,9 @@
 
 package org.usfirst.frc4579.testRobot2018.commands;
 import edu.wpi.first.wpilibj.command.Command;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
+import org.usfirst.frc4579.instrumentation.FRCSmartDashboard;
+import org.usfirst.frc4579.instrumentation.LoopProfiler;
 import org.usfirst.frc4579.testRobot2018.Robot;
 
 /**
@@ -43,24 +44,36 @@ public class drive extends Command {
 
     }
 
+    // Times each execute() in the robot loop profile.
+    private static final LoopProfiler.Phase executePhase = Robot.loopProfiler.addPhase("drive.execute");
+
+    // Dashboard displays (sent by the SmartDashboard publisher).
+    private static final FRCSmartDashboard.NumberValue flowMotionXDisplay = new FRCSmartDashboard.NumberValue("Flow Motion X: ", 0.0);
+    private static final FRCSmartDashboard.NumberValue flowMotionYDisplay = new FRCSmartDashboard.NumberValue("Flow Motion Y: ", 0.0);
+    private static final FRCSmartDashboard.NumberValue angleDisplay       = new FRCSmartDashboard.NumberValue("Robot Angle: "  , 0.01);
+    private static final FRCSmartDashboard.NumberValue joystickXDisplay   = new FRCSmartDashboard.NumberValue("Joystick X:"    , 0.001);
+    private static final FRCSmartDashboard.NumberValue joystickYDisplay   = new FRCSmartDashboard.NumberValue("Joystick Y:"    , 0.001);
+
     // Called repeatedly when this Command is scheduled to run
     @Override
     protected void execute() {
+    	executePhase.start();
     	
-    	SmartDashboard.putNumber("Flow Motion X: ", Robot.measurement.getFlowMotionX());
+    	flowMotionXDisplay.put(Robot.measurement.getFlowMotionX());
 
-    	SmartDashboard.putNumber("Flow Motion Y: ", Robot.measurement.getFlowMotionY());
+    	flowMotionYDisplay.put(Robot.measurement.getFlowMotionY());
 
     	// Update IMU data.
     	Robot.measurement.measure();
     	
-    	SmartDashboard.putNumber("Robot Angle: ", Robot.measurement.getAngle());
+    	angleDisplay.put(Robot.measurement.getAngle());
     	
     	Robot.driveTrain.joeyStickDrive();
     	
-    	SmartDashboard.putNumber("Joystick X:", Robot.oi.driveStick.getX());
-    	SmartDashboard.putNumber("Joystick Y:", Robot.oi.driveStick.getY());
-
+    	joystickXDisplay.put(Robot.oi.driveStick.getX());
+    	joystickYDisplay.put(Robot.oi.driveStick.getY());
+    	
+    	executePhase.end();
     }
 
     // Make this return true when this Command no longer needs to run execute()
@@ -11,6 +11,8 @@
 
 package org.usfirst.frc4579.testRobot2018.commands;
 import edu.wpi.first.wpilibj.command.Command;
+
+import org.usfirst.frc4579.instrumentation.LoopProfiler;
 import org.usfirst.frc4579.testRobot2018.Robot;
 
 /**
@@ -39,10 +41,17 @@ public class moveRightGripper extends Command {
     protected void initialize() {
     }
 
+    // Times each execute() in the robot loop profile.
+    private static final LoopProfiler.Phase executePhase = Robot.loopProfiler.addPhase("moveRightGripper.execute");
+
     // Called repeatedly when this Command is scheduled to run
     @Override
     protected void execute() {
+    	executePhase.start();
+    	
     	Robot.arms.moveRight(1.0);
+    	
+    	executePhase.end();
     }
 
     // Make this return true when this Command no longer needs to run execute()
@@ -11,6 +11,8 @@
 
 package org.usfirst.frc4579.testRobot2018.commands;
 import edu.wpi.first.wpilibj.command.Command;
+
+import org.usfirst.frc4579.instrumentation.LoopProfiler;
 import org.usfirst.frc4579.testRobot2018.Robot;
 
 /**
@@ -39,11 +41,18 @@ public class openGripper extends Command {
     	System.out.println("Starting .1 Sec Timeout");
     }
 
+    // Times each execute() in the robot loop profile.
+    private static final LoopProfiler.Phase executePhase = Robot.loopProfiler.addPhase("openGripper.execute");
+
     // Called repeatedly when this Command is scheduled to run
     @Override
     protected void execute() {
+    	executePhase.start();
+    	
     	if (!isTimedOut()) Robot.arms.openGripper();
     	if (isTimedOut()) Robot.arms.stopMovement();
+    	
+    	executePhase.end();
     }
 
     // Make this return true when this Command no longer needs to run execute()
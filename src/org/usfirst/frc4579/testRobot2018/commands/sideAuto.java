@@ -12,8 +12,9 @@
 package org.usfirst.frc4579.testRobot2018.commands;
 import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.command.Command;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
+import org.usfirst.frc4579.instrumentation.FRCSmartDashboard;
+import org.usfirst.frc4579.instrumentation.LoopProfiler;
 import org.usfirst.frc4579.testRobot2018.Robot;
 
 /**
@@ -62,9 +63,16 @@ public class sideAuto extends Command {
     	timer.start();
     }
 
+    // Times each execute() in the robot loop profile.
+    private static final LoopProfiler.Phase executePhase = Robot.loopProfiler.addPhase("sideAuto.execute");
+
+    // Dashboard display (sent by the SmartDashboard publisher).
+    private static final FRCSmartDashboard.NumberValue realAngleDisplay = new FRCSmartDashboard.NumberValue("Real Angle: ", 0.01);
+
     // Called repeatedly when this Command is scheduled to run
     @Override
     protected void execute() {
+    	executePhase.start();
     	
     	//System.out.println("Side Auto Running       " + turnLocation);
     	
@@ -112,7 +120,9 @@ public class sideAuto extends Command {
     		}
     	}
     	
-    	SmartDashboard.putNumber("Real Angle: ", Robot.measurement.getRobotAngle());
+    	realAngleDisplay.put(Robot.measurement.getRobotAngle());
+    	
+    	executePhase.end();
     }
 
     // Make this return true when this Command no longer needs to run execute()
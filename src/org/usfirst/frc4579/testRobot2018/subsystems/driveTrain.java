@@ -67,6 +67,11 @@ public class driveTrain extends Subsystem {
     	return (leftDrive.get() == 0.0) && (rightDrive.get() == 0.0);
     }
     
+    // Return the forward speed the motors are commanded to: the average of the two sides (-1 to 1).
+    public double getCommandedSpeed() {
+    	return (leftDrive.get() + rightDrive.get()) / 2.0;
+    }
+    
     public void joeyStickDrive() { //The finest drive code known to man.
 		
     	//Read the gyro and the driveStick.
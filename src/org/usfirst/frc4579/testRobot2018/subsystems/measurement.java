@@ -12,7 +12,11 @@
 package org.usfirst.frc4579.testRobot2018.subsystems;
 
 import org.usfirst.frc4579.testRobot2018.Robot;
+import org.usfirst.frc4579.filters.PoseEstimator;
+import org.usfirst.frc4579.filters.StationaryDetector;
 import org.usfirst.frc4579.instrumentation.DebugTextFile;
+import org.usfirst.frc4579.instrumentation.EventLogging;
+import org.usfirst.frc4579.instrumentation.FRCSmartDashboard;
 import org.usfirst.frc4579.instrumentation.Instrumentation;
 import org.usfirst.frc4579.testRobot2018.RobotMap;
 import org.usfirst.frc4579.testRobot2018.commands.*;
@@ -42,35 +46,110 @@ public class measurement extends Subsystem {
     // Makes an instance of the flowMotion
 	FlowMotion opticSensor = new FlowMotion();
 	
+	// Latest flow totals (see FlowMotion.getSnapshot()), and the counts in the last loop.
+	private final FlowMotion.Snapshot flowSnapshot = new FlowMotion.Snapshot();
+	private long lastFlowTotalX = 0;
+	private long lastFlowTotalY = 0;
+	private long lastFlowTime   = 0;
+	private int  loopFlowX      = 0;
+	private int  loopFlowY      = 0;
+	private double loopFlowSeconds = 0.0;  // Time between the readings that the loop counts are between.
+	private long lastFlowBadReadings = 0;
+	private long flowOriginX = 0;          // Flow totals at the last resetFlowMotion().
+	private long flowOriginY = 0;
+	private boolean flowGood = false;      // True if the loop counts can be used (see isFlowGood()).
+	
 	public boolean initFlowMotion(){
-		return opticSensor.init();
+		// Don't count readings taken while the sensor can't see the carpet.
+		opticSensor.setQualityGating(true);
+		
+		boolean available = opticSensor.init();
+		
+		// Read the sensor on its own thread from now on, faster than the loop, so that no counts are lost.
+		if (available) opticSensor.startSampling();
+		
+		return available;
 	}
 	
+	// Gets the flow sensor's totals (reading it here if it has no sampling thread) and updates the pose.
 	public void getCounts(){
-		opticSensor.getCounts();
+		if (!opticSensor.isSampling()) opticSensor.getCounts();
+		
+		updateFlowCounts();
+		
+		flowQualityDisplay.put(flowSnapshot.quality);
+		
+		updatePose();
+	}
+	
+	// Takes the latest flow totals, and the counts since the last ones.
+	private void updateFlowCounts(){
+		opticSensor.getSnapshot(flowSnapshot);
+		
+		loopFlowX      = (int)(flowSnapshot.totalX - lastFlowTotalX);
+		loopFlowY      = (int)(flowSnapshot.totalY - lastFlowTotalY);
+		lastFlowTotalX = flowSnapshot.totalX;
+		lastFlowTotalY = flowSnapshot.totalY;
+		
+		loopFlowSeconds = (lastFlowTime == 0) ? 0.0 : Instrumentation.nanosToSeconds(flowSnapshot.timeNanos - lastFlowTime);
+		lastFlowTime    = flowSnapshot.timeNanos;
+		
+		// The loop counts are good if no reading in the loop was rejected and the quality is holding up.
+		flowGood            = (flowSnapshot.badReadings == lastFlowBadReadings) && (flowSnapshot.quality >= minFlowQuality);
+		lastFlowBadReadings = flowSnapshot.badReadings;
+	}
+		
+	// Starts the loop counts over from the latest flow totals, so that the next loop doesn't see the
+	// counts from before (e.g. while the robot was disabled) as its own motion.
+	private void resyncFlowCounts(){
+		opticSensor.getSnapshot(flowSnapshot);
+		
+		lastFlowTotalX      = flowSnapshot.totalX;
+		lastFlowTotalY      = flowSnapshot.totalY;
+		lastFlowTime        = flowSnapshot.timeNanos;
+		lastFlowBadReadings = flowSnapshot.badReadings;
+		loopFlowX           = 0;
+		loopFlowY           = 0;
+		loopFlowSeconds     = 0.0;
+		flowGood            = false;
 	}
 
+	// Flow counts since the last resetFlowMotion().
 	public int getFlowMotionX(){
-		return opticSensor.accumDeltaX;
+		return (int)(flowSnapshot.totalX - flowOriginX);
 	}
 	
 	public int getFlowMotionY(){
-		return opticSensor.accumDeltaY;
+		return (int)(flowSnapshot.totalY - flowOriginY);
 	}
 	
+	// The sampling thread resets the sensor's own counts at its next reading.  The counts returned above
+	// start over at once, from the latest totals, so a command reading them right after sees the reset.
 	public void resetFlowMotion(){
 		opticSensor.reset();
+		
+		opticSensor.getSnapshot(flowSnapshot);
+		
+		flowOriginX = flowSnapshot.totalX;
+		flowOriginY = flowSnapshot.totalY;
 	}
 	
+	// Flow counts in the last loop.
 	public int getX(){
-		return opticSensor.deltaX;
+		return loopFlowX;
 	}
 	public int getY(){
-		return opticSensor.deltaY;
+		return loopFlowY;
 	}
 	
 	public double getRateX() {
-		return opticSensor.rateX;
+		return flowSnapshot.rateX;
+	}
+	
+	// True if the flow sensor could see the surface throughout the last loop.  If not, the pose uses the
+	// commanded speed instead (see updatePose()).
+	public boolean isFlowGood() {
+		return flowGood;
 	}
 	
 	
@@ -80,6 +159,9 @@ public class measurement extends Subsystem {
     private final MPU6050_I2C mpu   = new MPU6050_I2C(MPU6050_I2C.ACCELFULLSCALE.ACCEL2G, 
 			  MPU6050_I2C.GYROFULLSCALE.DEGSEC250);
 	
+    // Latest heading data from the MPU sampling thread.
+    private final MPU6050_I2C.Snapshot mpuSnapshot = new MPU6050_I2C.Snapshot();
+	
 	// Put methods for controlling this subsystem
 	// here. Call these from Commands.
 	
@@ -99,12 +181,34 @@ public class measurement extends Subsystem {
 	private double robotAngleZ      = 0.0;
 	private double robotAngleY      = 0.0;
 	private double robotAngleX      = 0.0;
+	private double robotYaw         = 0.0;  // Yaw from the attitude estimator (wrapped to +/-180).
+	
+	private double linearAccelX     = 0.0;  // Acceleration less gravity, X and Y level, Z up (g).
+	private double linearAccelY     = 0.0;
+	private double linearAccelZ     = 0.0;
 	
 	private double correctedRange   = 0.0;  // Range finder range.
 	
-	private double lastTime  = 0.0;
+	// Field position and velocity from the gyro heading and the flow sensor (see PoseEstimator).
+	// The flow sensor's scale isn't calibrated yet, so they are in flow counts.
+	private static final double flowUnitsPerCount = 1.0;
+	private final PoseEstimator pose = new PoseEstimator();
+	private long   lastPoseTime     = 0;    // Time of the last pose step (nanoseconds), 0 after a reset.
+	private double lastPoseAngleZ   = 0.0;  // Gyro heading at the last pose step.
+	
+	// The MPU decides whether the robot is still from its samples (see StationaryDetector), given a hint:
+	// the motors commanded to zero and no more than flowStillCounts from the flow sensor in the last loop.
+	private static final int flowStillCounts = 2;
+	
+	// While the flow readings are poor (see isFlowGood()) the pose uses the gyro and the forward speed the
+	// motors are commanded to, times the flow counts/sec per unit of command (speedScale).  The scale is
+	// learned while the flow is good and the command is at least minLearnCommand.
+	private static final double minFlowQuality  = 0.5;   // Average reading quality (see FlowMotion).
+	private static final double minLearnCommand = 0.2;
+	private static final double speedScaleK     = 0.02;  // Low pass filter constant of the learned scale.
+	private double  speedScale        = 0.0;
+	private boolean speedScaleLearned = false;
 	
-	private boolean firstCall       = true;
 	private boolean mpuAvailable    = false;
 	private boolean lidarAvailable  = false;
 	private boolean lidarContinuous = true;  // True  => lidar makes continous back-to-back measurements.
@@ -115,23 +219,44 @@ public class measurement extends Subsystem {
 	DebugTextFile measData = new DebugTextFile(
 												"measData", 															// Base file name.
 												true, 																	// Add time stamp to data.
-												"AccelX\tAccelY\tAccelZ\tVelX\tVelY\tdistX\tdistY\tzAngleRate\tzAngle", // File header.
+												new String[] {"zAngleRate", "zAngle"},									// File columns.
 												20000);																	// Max anticipated lines in file.
 	
+	// Dashboard displays, updated every loop.
+	private static final FRCSmartDashboard.FormattedNumber angleZDisplay = new FRCSmartDashboard.FormattedNumber("Angle Z:", 7, 1);
+	private static final FRCSmartDashboard.FormattedNumber angleYDisplay = new FRCSmartDashboard.FormattedNumber("Angle Y:", 7, 1);
+	private static final FRCSmartDashboard.FormattedNumber angleXDisplay = new FRCSmartDashboard.FormattedNumber("Angle X:", 7, 1);
+	private static final FRCSmartDashboard.FormattedNumber fieldPosXDisplay = new FRCSmartDashboard.FormattedNumber("Field Pos X:", 7, 1);
+	private static final FRCSmartDashboard.FormattedNumber fieldPosYDisplay = new FRCSmartDashboard.FormattedNumber("Field Pos Y:", 7, 1);
+	private static final FRCSmartDashboard.FormattedNumber gyroBiasDisplay  = new FRCSmartDashboard.FormattedNumber("Pose Gyro Bias:", 7, 3);
+	private static final FRCSmartDashboard.FormattedNumber flowQualityDisplay = new FRCSmartDashboard.FormattedNumber("Flow Quality:", 7, 2);
+	
 	// Initializes the accelerometer and distance ranging devices.
 	public void initialize() {
 	
+	// Read every sample from the MPU's FIFO.
+	mpu.setFifoMode(true);
+	
+	// Only learn the gyro bias while the samples show that the robot is still.
+	mpu.setStationaryDetection(new StationaryDetector());
+	
+	// Correct the gyro biases as the MPU warms up.
+	mpu.setTemperatureCompensation(true);
+	
 	mpuAvailable = mpu.init();
 	
 	
 	if (mpuAvailable) {
 	
+		// Sample the MPU on its own thread from now on.
+		mpu.startSampling();
+		
 		System.out.println("***** MEASUREMENT INITIALIZED" + "\n");
 	
 	}
 	else {
 		System.out.println("***** MPU INIT FAILED *********" + "\n");
-		measData.write("MPU INIT FAILED");
+		EventLogging.logBadEvent(EventLogging.BADEVENTS.MPU_INIT_FAILED, "");
 	}
 	
 		reset();
@@ -141,6 +266,31 @@ public class measurement extends Subsystem {
 	}
 	
 	
+	// Turns the logging of the sensor samples on (while the robot is enabled) or off.
+	public void setLogging(boolean log) {
+		mpu.setLogging(log);
+		opticSensor.setLogging(log);
+	}
+	
+	// Turns the MPU's background calibration on (while the robot is disabled) or off.
+	public void setCalibrating(boolean calibrate) {
+		mpu.setCalibrating(calibrate);
+	}
+	
+	// Call every loop while the robot is disabled, so that the MPU only calibrates while the robot is still.
+	// The flow counts are taken here, as getCounts() isn't called while disabled.
+	public void updateCalibration() {
+		updateFlowCounts();
+		mpu.setNotMoving(isAtRest());
+	}
+	
+	// True if the motors are commanded to zero and the flow sensor saw (almost) no motion in the last loop.
+	private boolean isAtRest() {
+		return Robot.driveTrain.isNotMoving() && 
+			   (Math.abs(loopFlowX) + Math.abs(loopFlowY) <= flowStillCounts);
+	}
+	
+	
 	// Resets the robot's current kinematic data.  All new kinematic computations
 	// will be relative to the position of the robot at the time of this call.
 	public void reset() {
@@ -153,6 +303,14 @@ public class measurement extends Subsystem {
 		robotAngleZ      = 0.0;
 		robotAngleY      = 0.0;
 		robotAngleX      = 0.0;
+		robotYaw         = 0.0;
+		fieldPosX        = 0.0;
+		fieldPosY        = 0.0;
+		lastPoseTime     = 0;
+		
+		pose.reset();
+		mpu.resetAngleZ();
+		resyncFlowCounts();
 	}
 	
 	
@@ -165,19 +323,10 @@ public class measurement extends Subsystem {
 	public void measure() {
 		if (mpuAvailable) {
 		
-		// Compute change in time since last computations.
-		double time   = Instrumentation.timeNow();
-		if (firstCall) {
-			lastTime = time;
-			firstCall = false;
-		}
-		double deltaT = time - lastTime;
-		//System.out.println(deltaT);
-		
-		lastTime = time;
-
-		// Get latest accelerometer data.
-		mpu.read(Robot.driveTrain.isNotMoving(), time);
+		// Let the MPU sampling thread know whether it can correct drift, and get its latest data.
+		// The MPU integrates the heading at its own sample rate.
+		mpu.setNotMoving(isAtRest());
+		mpu.getSnapshot(mpuSnapshot);
 		
 		/*
 		// Compute new distance vector.
@@ -190,15 +339,19 @@ public class measurement extends Subsystem {
 		*/
 		
 		// Compute new angular data.
-		robotAngleRateZ = mpu.getGyroRateZ();
-		robotAngleZ    += robotAngleRateZ * deltaT;
+		robotAngleRateZ = mpuSnapshot.rateZ;
+		robotAngleZ     = mpuSnapshot.angleZ;
 		
 		realAngleZ = getRobotAngle();
 //		System.out.println(robotAngleRateZ);
-		//double angleRateY = mpu.getGyroRateY();
-		//robotAngleY    += angleRateY * deltaT;
-		//double angleRateX = mpu.getGyroRateX();
-		//robotAngleX    += angleRateX * deltaT;
+		
+		// Attitude, fused from all six axes by the MPU sampling thread.
+		robotAngleX     = mpuSnapshot.roll;
+		robotAngleY     = mpuSnapshot.pitch;
+		robotYaw        = mpuSnapshot.yaw;
+		linearAccelX    = mpuSnapshot.linearX;
+		linearAccelY    = mpuSnapshot.linearY;
+		linearAccelZ    = mpuSnapshot.linearZ;
 		
 		/*
 		// Compute the relative motion to absolute field coordinates.
@@ -213,11 +366,12 @@ public class measurement extends Subsystem {
 		SmartDashboard.putString ("Velocity X:" , String.format("%7.2f", velocityX));
 		SmartDashboard.putString ("Velocity Y:" , String.format("%7.2f", velocityY));
 		*/
-		SmartDashboard.putString ("Angle Z:"    , String.format("%7.1f", robotAngleZ));
-		SmartDashboard.putString ("Angle Y:"    , String.format("%7.1f", robotAngleY));
-		SmartDashboard.putString ("Angle X:"    , String.format("%7.1f", robotAngleX));
+		angleZDisplay.put(robotAngleZ);
+		angleYDisplay.put(robotAngleY);
+		angleXDisplay.put(robotAngleX);
 		
-		measData.write(robotAngleRateZ + "\t" + robotAngleZ);
+		// Tagged with the time of the sample so that the file can be compared with a replay (see SensorReplay).
+		measData.record(mpuSnapshot.timeNanos, robotAngleRateZ, robotAngleZ);
 		
 	}
 	
@@ -239,37 +393,79 @@ public class measurement extends Subsystem {
 	
 	}
 	
-	/*    // Returns the X displacement from starting location in inches.
-	public double getFieldPositionX() {
-	return fieldPosX;
+	// Advances the pose one loop: the gyro heading change, then the flow sensor's motion, or zero motion
+	// and gyro bias if the robot is still (see StationaryDetector), or the commanded speed if the flow
+	// readings are poor.  Called after measure() and the flow sensor reading.
+	private void updatePose() {
+		long time = Instrumentation.timeNowNanos();
+		
+		if (lastPoseTime != 0) {
+			double dt            = Instrumentation.nanosToSeconds(time - lastPoseTime);
+			double headingChange = robotAngleZ - lastPoseAngleZ;
+			
+			pose.predict(headingChange, dt);
+			
+			// Zero velocity update, and gyro bias, while the MPU finds the robot still.
+			if (mpuAvailable ? mpuSnapshot.stationary : isAtRest())
+				pose.updateStationary(headingChange / dt);
+			else if (flowGood && (loopFlowSeconds > 0.0)) {
+				double flowVelocityX = loopFlowX * flowUnitsPerCount / loopFlowSeconds;
+				
+				pose.updateFlow(flowVelocityX, loopFlowY * flowUnitsPerCount / loopFlowSeconds, flowSnapshot.quality);
+				learnSpeedScale(flowVelocityX);
+			}
+			else if (speedScaleLearned)
+				pose.updateSpeed(Robot.driveTrain.getCommandedSpeed() * speedScale);
+		}
+		
+		lastPoseTime   = time;
+		lastPoseAngleZ = robotAngleZ;
+		
+		fieldPosX = pose.x();
+		fieldPosY = pose.y();
+		velocityX = pose.velocityX();
+		velocityY = pose.velocityY();
+		
+		fieldPosXDisplay.put(fieldPosX);
+		fieldPosYDisplay.put(fieldPosY);
+		gyroBiasDisplay.put(pose.gyroBias());
 	}
 	
-	public double getDistanceX() {
-	return distanceX;
+	// Learns the forward speed per unit of motor command from a good flow velocity (units/sec).
+	private void learnSpeedScale(double flowVelocityX) {
+		double command = Robot.driveTrain.getCommandedSpeed();
+		
+		if (Math.abs(command) < minLearnCommand) return;
+		
+		double scale = flowVelocityX / command;
+		
+		speedScale        = speedScaleLearned ? speedScale + speedScaleK * (scale - speedScale) : scale;
+		speedScaleLearned = true;
 	}
 	
-	// Returns the Y displacement from starting location in inches.
-	public double getFieldPositionY() {
-	return fieldPosY;
+	// Returns the X displacement from starting location (in flow counts, see flowUnitsPerCount).
+	public double getFieldPositionX() {
+		return fieldPosX;
 	}
 	
-	public double getDistanceY() {
-	return distanceY;
+	// Returns the Y displacement from starting location.
+	public double getFieldPositionY() {
+		return fieldPosY;
 	}
 	
-	// X component of velocity vector in inches/sec.
+	// X component of the field frame velocity vector (flow counts/sec).
 	public double getVelocityX() {
-	return velocityX;
+		return velocityX;
 	}
 	
-	// Y component of velocity vector in inches/sec.
+	// Y component of the field frame velocity vector.
 	public double getVelocityY() {
-	return velocityY;
+		return velocityY;
 	}
-	*/
 	
-	public void read(boolean isNotMoving, double timeNow){
-		mpu.read(isNotMoving, timeNow);
+	
+	public void read(boolean isNotMoving, long timeNanos){
+		mpu.read(isNotMoving, timeNanos);
 	}
 	
 	
@@ -299,6 +495,32 @@ public class measurement extends Subsystem {
 		return robotAngleRateZ;
 	}
 	
+	// Returns the roll, pitch (about the robot's X and Y axes) and yaw (wrapped to +/-180) in degrees.
+	public double getRoll() {
+		return robotAngleX;
+	}
+	
+	public double getPitch() {
+		return robotAngleY;
+	}
+	
+	public double getYaw() {
+		return robotYaw;
+	}
+	
+	// Returns the acceleration with gravity removed, X and Y level, Z up (in g).
+	public double getLinearAccelX() {
+		return linearAccelX;
+	}
+	
+	public double getLinearAccelY() {
+		return linearAccelY;
+	}
+	
+	public double getLinearAccelZ() {
+		return linearAccelZ;
+	}
+	
 	// Returns the current range from a detected object (in inches).
 	public double getRange() {
 		return correctedRange;